@@ -0,0 +1,95 @@
+package shell.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import shell.CompletionEngine;
+
+/**
+ * First-word TAB completion over a synthetic candidate set: the sorted-range engine against the previous
+ * approach of filtering every candidate into a fresh TreeSet and folding the common prefix.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+public class CompletionBenchmark {
+    @Param({"10000", "50000"})
+    int candidates;
+
+    // A short prefix matching many names and a longer one narrowing to a few.
+    @Param({"g", "git-re"})
+    String prefix;
+
+    private List<String> names;
+    private CompletionEngine engine;
+
+    @Setup
+    public void setup() {
+        names = syntheticNames(candidates, 42);
+        engine = CompletionEngine.of(names);
+    }
+
+    @Benchmark
+    public void engine(Blackhole bh) {
+        var matches = engine.complete(prefix);
+        bh.consume(matches.count());
+        bh.consume(matches.longestCommonPrefix());
+    }
+
+    @Benchmark
+    public void treeSetScan(Blackhole bh) {
+        var matches = new TreeSet<String>();
+        for (String name : names) {
+            if (name.startsWith(prefix)) {
+                matches.add(name);
+            }
+        }
+        bh.consume(matches.size());
+        if (!matches.isEmpty()) {
+            String lcp = matches.first();
+            for (String m : matches) {
+                int i = 0;
+                int len = Math.min(lcp.length(), m.length());
+                while (i < len && lcp.charAt(i) == m.charAt(i)) {
+                    i++;
+                }
+                lcp = lcp.substring(0, i);
+            }
+            bh.consume(lcp);
+        }
+    }
+
+    /** Executable-looking names: a handful of families with subcommand suffixes plus random words. */
+    static List<String> syntheticNames(int count, long seed) {
+        var random = new Random(seed);
+        String[] families = {"git-", "gcc-", "python3.", "x86_64-linux-gnu-", "perl", "lib", "k"};
+        var out = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            var sb = new StringBuilder();
+            if (i % 3 == 0) {
+                sb.append(families[random.nextInt(families.length)]);
+            }
+            int len = 3 + random.nextInt(10);
+            for (int j = 0; j < len; j++) {
+                sb.append((char) ('a' + random.nextInt(26)));
+            }
+            out.add(sb.toString());
+        }
+        return out;
+    }
+}
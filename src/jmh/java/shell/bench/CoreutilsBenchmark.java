@@ -0,0 +1,111 @@
+package shell.bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import shell.Builtin;
+import shell.Command;
+import shell.Coreutils;
+import shell.Stdio;
+
+/**
+ * One {@code tool} command per file over {@code files} small files, as a script would run them: the fork-free builtin
+ * against starting the real program. A score is the time for all the files.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 10)
+public class CoreutilsBenchmark {
+    @Param({"200"})
+    int files;
+
+    @Param({"cat", "head", "tail", "wc", "grep"})
+    String tool;
+
+    private Path dir;
+    private final List<Command> commands = new ArrayList<>();
+    private Builtin builtin;
+    private Stdio io;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("coreutils-bench");
+        for (int i = 0; i < files; i++) {
+            var text = new StringBuilder();
+            for (int line = 0; line < 40; line++) {
+                text.append("line ").append(line).append(" of file ").append(i).append(": lorem ipsum dolor\n");
+            }
+            Path file = dir.resolve("file" + i + ".txt");
+            Files.writeString(file, text);
+            String name = file.toString();
+            String[] args = switch (tool) {
+                case "head" -> new String[] {"-n", "5", name};
+                case "tail" -> new String[] {"-n", "5", name};
+                case "wc" -> new String[] {"-l", name};
+                case "grep" -> new String[] {"-c", "ipsum", name};
+                default -> new String[] {name};
+            };
+            String[] withCommand = new String[args.length + 1];
+            withCommand[0] = tool;
+            System.arraycopy(args, 0, withCommand, 1, args.length);
+            commands.add(new Command(tool, args, withCommand, List.of()));
+        }
+        builtin = Coreutils.builtins(() -> dir).stream().filter(b -> b.name().equals(tool)).findFirst().orElseThrow();
+        io = new Stdio(InputStream.nullInputStream(), new PrintStream(OutputStream.nullOutputStream()), System.err);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    @Benchmark
+    public void builtin() throws IOException, InterruptedException {
+        for (Command command : commands) {
+            builtin.run(command, io);
+        }
+    }
+
+    @Benchmark
+    public long fork() throws IOException, InterruptedException {
+        long bytes = 0;
+        for (Command command : commands) {
+            Process process = new ProcessBuilder(command.commandWithArgs())
+                    .redirectError(ProcessBuilder.Redirect.INHERIT)
+                    .start();
+            bytes += process.getInputStream().readAllBytes().length;
+            process.waitFor();
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,85 @@
+package shell.bench;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import shell.CompletionEngine;
+
+/**
+ * TAB on an argument in a directory of {@code entries} files: the engine, whose cached listing costs a stat and two
+ * binary searches after the first visit, against listing the directory and filtering it on every keystroke.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+public class DirectoryCompletionBenchmark {
+    @Param({"100000"})
+    int entries;
+
+    // A prefix matching a tenth of the names and one matching a single name.
+    @Param({"f1", "f12345"})
+    String prefix;
+
+    private Path dir;
+    private String line;
+    private CompletionEngine engine;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("completion");
+        for (int i = 0; i < entries; i++) {
+            Files.createFile(dir.resolve("f" + i));
+        }
+        line = "cat " + prefix;
+        engine = CompletionEngine.of(List.of());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path path : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    @Benchmark
+    public void engine(Blackhole bh) {
+        var completed = engine.completeLine(line, dir);
+        bh.consume(completed.matches().count());
+        bh.consume(completed.matches().longestCommonPrefix());
+    }
+
+    @Benchmark
+    public void listEveryTime(Blackhole bh) throws IOException {
+        var matches = new TreeSet<String>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, prefix + "*")) {
+            for (Path path : stream) {
+                matches.add(path.getFileName().toString());
+            }
+        }
+        bh.consume(matches.size());
+        bh.consume(matches.isEmpty() ? "" : matches.first());
+    }
+}
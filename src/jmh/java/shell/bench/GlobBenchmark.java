@@ -0,0 +1,92 @@
+package shell.bench;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import shell.Glob;
+
+/**
+ * Pathname expansion over a tree of {@code files} files, 1000 to a directory in {@code a<i>/b<j>/}, half of them
+ * {@code .java}: {@link Glob}, which reads only the directories a pattern can still match (walking {@code **} on a
+ * fork-join pool), against a {@link Files#walk} of the whole tree filtered with a glob {@link PathMatcher}.
+ *
+ * <p>{@code **}/*.java matches half the tree; {@code a0/**}/*.java needs one branch; *&#47;b1/f1*.java needs one
+ * directory listing per {@code a<i>}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 1, time = 5)
+@Measurement(iterations = 3, time = 10)
+public class GlobBenchmark {
+    private static final int PER_DIRECTORY = 1000;
+    private static final int FANOUT = 32;
+
+    @Param({"100000", "1000000"})
+    int files;
+
+    @Param({"**/*.java", "a0/**/*.java", "*/b1/f1*.java"})
+    String pattern;
+
+    private Path root;
+    private PathMatcher matcher;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        root = Files.createTempDirectory("glob");
+        for (int d = 0; d < files / PER_DIRECTORY; d++) {
+            Path dir = Files.createDirectories(root.resolve("a" + d / FANOUT).resolve("b" + d % FANOUT));
+            for (int f = 0; f < PER_DIRECTORY; f++) {
+                Files.createFile(dir.resolve("f" + f + (f % 2 == 0 ? ".java" : ".txt")));
+            }
+        }
+        matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    @Benchmark
+    public List<String> glob() {
+        return Glob.expand(pattern, root);
+    }
+
+    @Benchmark
+    public List<String> walkAndFilter() throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            return paths.map(root::relativize)
+                    .filter(matcher::matches)
+                    .map(Path::toString)
+                    .sorted()
+                    .toList();
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package shell.bench;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import shell.History;
+
+/** Loading, rewriting, appending to and following a large HISTFILE, and a long bounded, deduplicated session. */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class HistoryBenchmark {
+    @Param({"1000000"})
+    int lines;
+
+    private Path histfile;
+    private Path scratch;
+    private Path shared;
+    private History loaded;
+    private History follower;
+    private History otherSession;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        histfile = Files.createTempFile("histfile-bench", ".txt");
+        scratch = Files.createTempFile("histfile-bench-out", ".txt");
+        try (BufferedWriter out = Files.newBufferedWriter(histfile)) {
+            for (int i = 0; i < lines; i++) {
+                out.write(syntheticCommand(i));
+                out.newLine();
+            }
+        }
+        loaded = new History();
+        loaded.read(histfile);
+        shared = Files.createTempFile("histfile-bench-shared", ".txt");
+        Files.copy(histfile, shared, StandardCopyOption.REPLACE_EXISTING);
+        follower = new History();
+        follower.read(shared);
+        otherSession = new History(-1, -1, null);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(histfile);
+        Files.deleteIfExists(scratch);
+        Files.deleteIfExists(shared);
+        Files.deleteIfExists(shared.resolveSibling(shared.getFileName() + ".lock"));
+        Files.deleteIfExists(scratch.resolveSibling(scratch.getFileName() + ".lock"));
+        Files.deleteIfExists(histfile.resolveSibling(histfile.getFileName() + ".lock"));
+    }
+
+    @Benchmark
+    public History load() {
+        var history = new History();
+        history.read(histfile);
+        return history;
+    }
+
+    /** Startup followed by `history 100`. */
+    @Benchmark
+    public void loadAndShowRecent(Blackhole bh) {
+        var history = new History();
+        history.read(histfile);
+        for (int i = history.size() - 100; i < history.size(); i++) {
+            bh.consume(history.get(i));
+        }
+    }
+
+    @Benchmark
+    public Path writeAll() {
+        loaded.write(scratch);
+        return scratch;
+    }
+
+    @Benchmark
+    public Path appendNew() {
+        for (int i = 0; i < 100; i++) {
+            loaded.add(syntheticCommand(i));
+        }
+        loaded.append(scratch);
+        return scratch;
+    }
+
+    /** Another session appends 100 commands to a shared 1M-line HISTFILE, then `history -n` picks them up. */
+    @Benchmark
+    public History readNewTail() {
+        for (int i = 0; i < 100; i++) {
+            otherSession.add(syntheticCommand(i));
+        }
+        otherSession.append(shared);
+        follower.readNew(shared);
+        return follower;
+    }
+
+    /** A long session under HISTSIZE=1000 and HISTCONTROL=erasedups, where most commands repeat. */
+    @Benchmark
+    public History addBoundedErasedups() {
+        var history = new History(1000, -1, "erasedups");
+        for (int i = 0; i < lines; i++) {
+            history.add(syntheticCommand(i % 5000));
+        }
+        return history;
+    }
+
+    static String syntheticCommand(int i) {
+        return switch (i % 5) {
+            case 0 -> "git commit -m 'change " + i + "'";
+            case 1 -> "cd /srv/app/releases/" + i;
+            case 2 -> "grep -rn \"TODO " + (i % 97) + "\" src/main/java";
+            case 3 -> "ls -la /var/log/app-" + (i % 13);
+            default -> "mvn -q -B package -Ddir=/tmp/build-" + i;
+        };
+    }
+}
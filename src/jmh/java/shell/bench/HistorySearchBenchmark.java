@@ -0,0 +1,106 @@
+package shell.bench;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import shell.History;
+import shell.HistorySearch;
+
+/**
+ * Ctrl-R over a synthetic 5M-entry HISTFILE: the newest match for a query, each keystroke of typing it, and the
+ * linear newest-first scan that walking the history by hand amounts to.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class HistorySearchBenchmark {
+    @Param({"5000000"})
+    int entries;
+
+    // A recent common command, an old unique one, and a miss.
+    @Param({"TODO 42\"", "releases/123451", "no-such-command"})
+    String query;
+
+    private Path histfile;
+    private History history;
+    private HistorySearch search;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        histfile = Files.createTempFile("histsearch-bench", ".txt");
+        try (BufferedWriter out = Files.newBufferedWriter(histfile)) {
+            for (int i = 0; i < entries; i++) {
+                out.write(HistoryBenchmark.syntheticCommand(i));
+                out.newLine();
+            }
+        }
+        history = new History();
+        history.read(histfile);
+        search = new HistorySearch(history);
+        search.update();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(histfile);
+    }
+
+    @Benchmark
+    public int newestMatch() {
+        return search.findBackward(query, history.size() - 1);
+    }
+
+    /** One search per typed character, as incremental search does. */
+    @Benchmark
+    public void typeQuery(Blackhole bh) {
+        int from = history.size() - 1;
+        for (int i = 1; i <= query.length(); i++) {
+            int found = search.findBackward(query.substring(0, i), from);
+            if (found >= 0) {
+                from = found;
+            }
+            bh.consume(found);
+        }
+    }
+
+    @Benchmark
+    public int linearScan() {
+        for (int i = history.size() - 1; i >= 0; i--) {
+            if (history.get(i).contains(query)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /** Indexing the whole file, as the first Ctrl-R after startup does. */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public HistorySearch buildIndex() {
+        var fresh = new HistorySearch(history);
+        fresh.update();
+        return fresh;
+    }
+}
@@ -0,0 +1,73 @@
+package shell.bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import shell.Command;
+import shell.Parallel;
+import shell.Stdio;
+
+/**
+ * {@code parallel -j jobs} over {@code inputs} jobs, each a {@code sh} process that either burns CPU ({@code cpu}: it
+ * scales with the cores there are) or waits ({@code sleep}: it scales with {@code -j} alone). A score is the time
+ * for all the jobs, so perfect scaling halves it each time {@code jobs} doubles.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 1, time = 5)
+@Measurement(iterations = 3, time = 10)
+public class ParallelBenchmark {
+    @Param({"32"})
+    int inputs;
+
+    @Param({"1", "2", "4", "8"})
+    int jobs;
+
+    @Param({"cpu", "sleep"})
+    String workload;
+
+    private final Parallel parallel = new Parallel(() -> Path.of("."), name -> null);
+    private Command command;
+    private Stdio io;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        String script = workload.equals("cpu")
+                ? "i=0; while [ $i -lt 20000 ]; do i=$((i+1)); done; echo $0"
+                : "sleep 0.05; echo $0";
+        var args = new ArrayList<>(List.of("-j", Integer.toString(jobs), "sh", "-c", script, ":::"));
+        for (int i = 0; i < inputs; i++) {
+            args.add(Integer.toString(i));
+        }
+        var argv = new ArrayList<>(args);
+        argv.add(0, "parallel");
+        command = new Command("parallel", args.toArray(String[]::new), argv.toArray(String[]::new), List.of());
+        io = new Stdio(InputStream.nullInputStream(), new PrintStream(OutputStream.nullOutputStream()), System.err);
+    }
+
+    @Benchmark
+    public void run() throws IOException, InterruptedException {
+        parallel.run(command, io);
+    }
+}
@@ -0,0 +1,63 @@
+package shell.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import shell.Command;
+import shell.Lexer;
+import shell.Parser;
+
+/** Tokenizing and parsing command lines: long quoted lines, redirections and pipelines. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+public class ParserBenchmark {
+    // Number of arguments on the long line.
+    @Param({"16", "256"})
+    int words;
+
+    private String quotedLine;
+    private String redirectLine;
+    private String pipelineLine;
+
+    @Setup
+    public void setup() {
+        var sb = new StringBuilder("printf");
+        for (int i = 0; i < words; i++) {
+            switch (i % 4) {
+                case 0 -> sb.append(" plain").append(i);
+                case 1 -> sb.append(" 'single quoted ").append(i).append('\'');
+                case 2 -> sb.append(" \"double \\\"quoted\\\" $HOME ").append(i).append('"');
+                default -> sb.append(" escaped\\ space\\\\").append(i);
+            }
+        }
+        quotedLine = sb.toString();
+        redirectLine = quotedLine + " 2>> /tmp/bench/err.log";
+        pipelineLine = quotedLine + " | grep -v 'x y' | sort -r | uniq -c | head -n 10";
+    }
+
+    @Benchmark
+    public Object lexQuotedLine() {
+        return Lexer.lex(quotedLine);
+    }
+
+    @Benchmark
+    public Command parseRedirect() {
+        return Parser.parse(redirectLine);
+    }
+
+    @Benchmark
+    public Object parsePipeline() {
+        return Parser.parseLine(pipelineLine);
+    }
+}
@@ -0,0 +1,104 @@
+package shell.bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import shell.CompletionEngine;
+import shell.PathIndex;
+
+/**
+ * Completion and lookup through a {@link PathIndex} over synthetic PATH directories filled with executable files:
+ * the cold scan, and a warm TAB press (which still revalidates every directory's mtime).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+public class PathIndexBenchmark {
+    @Param({"4"})
+    int dirs;
+
+    @Param({"2500"})
+    int perDir;
+
+    @Param({"g", "git-re"})
+    String prefix;
+
+    private final List<Path> roots = new ArrayList<>();
+    private String path;
+    private String known;
+    private CompletionEngine engine;
+    private PathIndex index;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        var names = CompletionBenchmark.syntheticNames(dirs * perDir, 7);
+        var exec = PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwxr-xr-x"));
+        var sb = new StringBuilder();
+        for (int d = 0; d < dirs; d++) {
+            Path root = Files.createTempDirectory("pathindex-bench");
+            roots.add(root);
+            for (int i = d * perDir; i < (d + 1) * perDir; i++) {
+                Path file = root.resolve(names.get(i));
+                if (!Files.exists(file)) {
+                    Files.createFile(file, exec);
+                }
+            }
+            sb.append(d == 0 ? "" : ":").append(root);
+        }
+        path = sb.toString();
+        known = names.get(names.size() - 1);
+        index = new PathIndex(() -> path);
+        index.build();
+        engine = new CompletionEngine(List.of("echo", "exit", "type"), index);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        for (Path root : roots) {
+            try (var walk = Files.walk(root)) {
+                for (Path p : walk.sorted(Comparator.reverseOrder()).toList()) {
+                    Files.delete(p);
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public PathIndex coldBuild() {
+        var fresh = new PathIndex(() -> path);
+        fresh.build();
+        return fresh;
+    }
+
+    @Benchmark
+    public void warmComplete(Blackhole bh) {
+        var matches = engine.complete(prefix);
+        bh.consume(matches.count());
+        bh.consume(matches.longestCommonPrefix());
+    }
+
+    @Benchmark
+    public String warmLookup() {
+        return index.resolve(known);
+    }
+}
@@ -0,0 +1,87 @@
+package shell.bench;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import shell.ExternalPipeline;
+
+/**
+ * {@code cat big | cat | wc -c} through both ways of connecting external stages. The primary score is pipelines per
+ * second; the {@code megabytes} secondary score is the throughput in MB/s.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 1, time = 5)
+@Measurement(iterations = 3, time = 10)
+public class PipelineBenchmark {
+    @Param({"2048"})
+    int sizeMb;
+
+    @Param({"KERNEL", "PUMP"})
+    ExternalPipeline.Mode mode;
+
+    private Path input;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Moved {
+        public long megabytes;
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        input = Files.createTempFile("pipeline-bench", ".txt");
+        byte[] chunk = "the quick brown fox jumps over the lazy dog 0123456789\n".repeat(1 << 14).getBytes();
+        long target = (long) sizeMb << 20;
+        try (OutputStream out = Files.newOutputStream(input)) {
+            for (long written = 0; written < target; written += chunk.length) {
+                out.write(chunk);
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(input);
+    }
+
+    @Benchmark
+    public long catCatWc(Moved moved) throws IOException, InterruptedException {
+        var first = new ProcessBuilder("cat", input.toString());
+        var middle = new ProcessBuilder("cat");
+        var last = new ProcessBuilder("wc", "-c");
+        first.redirectError(ProcessBuilder.Redirect.INHERIT);
+        middle.redirectError(ProcessBuilder.Redirect.INHERIT);
+        last.redirectError(ProcessBuilder.Redirect.INHERIT);
+
+        List<Process> procs = ExternalPipeline.start(List.of(first, middle, last), mode);
+        Process tail = procs.get(procs.size() - 1);
+        long bytes = Long.parseLong(new String(tail.getInputStream().readAllBytes()).trim());
+        for (Process p : procs) {
+            p.waitFor();
+        }
+        moved.megabytes += bytes >> 20;
+        return bytes;
+    }
+}
@@ -0,0 +1,141 @@
+package shell.bench;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time to first prompt: from launching {@code java Main --first-prompt} until {@code $ } appears on its output, with a
+ * HISTFILE of {@code historyLines} lines. The shell runs under {@code script} when it is on PATH, so it sees a
+ * terminal as it would for a user; otherwise raw mode falls back to forking {@code stty}.
+ *
+ * <p>To measure the AOT/CDS cache from {@code mvn -Pcds package}, pass its option through {@code jvmArgs}, e.g.
+ * {@code -Djmh.args="StartupBenchmark -p jvmArgs=-XX:AOTCache=target/codecrafters-shell.aot"}; the cache only
+ * applies to the jar it was trained with, so also pass {@code -p classpath=target/codecrafters-shell.jar}.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 2)
+@Measurement(iterations = 20)
+public class StartupBenchmark {
+    @Param({"0", "100000"})
+    int historyLines;
+
+    @Param({""})
+    String jvmArgs;
+
+    // Defaults to this JVM's class path, which has target/classes.
+    @Param({""})
+    String classpath;
+
+    private Path histfile;
+    private List<String> command;
+    private Process shell;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        histfile = Files.createTempFile("startup-bench", ".txt");
+        try (BufferedWriter out = Files.newBufferedWriter(histfile)) {
+            for (int i = 0; i < historyLines; i++) {
+                out.write("git commit -m 'change " + i + "' && echo " + (i * 7919L % 100_003));
+                out.newLine();
+            }
+        }
+
+        var java = new ArrayList<String>();
+        java.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        java.add("--enable-preview");
+        java.add("--enable-native-access=ALL-UNNAMED");
+        for (String arg : jvmArgs.split(" ")) {
+            if (!arg.isBlank()) {
+                java.add(arg);
+            }
+        }
+        java.add("-cp");
+        java.add(classpath.isEmpty() ? System.getProperty("java.class.path") : classpath);
+        java.add("Main");
+        java.add("--first-prompt");
+
+        if (onPath("script")) {
+            // script -q -e -c "<command>" /dev/null: run it on a new pseudo-terminal, log nowhere.
+            command = List.of("script", "-qec", String.join(" ", java.stream().map(StartupBenchmark::quote).toList()),
+                    "/dev/null");
+        } else {
+            command = java;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(histfile);
+    }
+
+    // Outside the measurement: let the shell exit on its own (it does right after the prompt).
+    @TearDown(Level.Invocation)
+    public void reap() throws InterruptedException {
+        if (shell != null) {
+            if (!shell.waitFor(10, TimeUnit.SECONDS)) {
+                shell.destroyForcibly().waitFor();
+            }
+            shell = null;
+        }
+    }
+
+    @Benchmark
+    public int firstPrompt() throws IOException {
+        var builder = new ProcessBuilder(command).redirectErrorStream(true);
+        builder.environment().put("HISTFILE", histfile.toString());
+        shell = builder.start();
+        shell.getOutputStream().close();
+        InputStream out = shell.getInputStream();
+        int previous = -1;
+        int read = 0;
+        int b;
+        while ((b = out.read()) != -1) {
+            read++;
+            if (previous == '$' && b == ' ') {
+                return read;
+            }
+            previous = b;
+        }
+        throw new IllegalStateException("shell exited without a prompt");
+    }
+
+    private static boolean onPath(String name) {
+        String path = System.getenv("PATH");
+        if (path == null) {
+            return false;
+        }
+        for (String dir : path.split(":")) {
+            if (!dir.isEmpty() && Files.isExecutable(Path.of(dir, name))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String quote(String arg) {
+        return "'" + arg.replace("'", "'\\''") + "'";
+    }
+}
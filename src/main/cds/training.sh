@@ -0,0 +1,13 @@
+# Training run for the AOT/CDS cache (mvn -Pcds package). The jar is started as `Main --first-prompt training.sh`:
+# it goes through an interactive startup up to the first prompt, then runs these commands so the common code paths
+# are in the cache too.
+echo training
+pwd
+type echo ls
+ls /
+echo a b c | cat | wc -l
+ls / | grep -c bin
+history 1
+hash
+time true
+stats
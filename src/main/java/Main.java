@@ -1,756 +1,774 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Locale;
 import java.util.Objects;
-import java.util.TreeSet;
-import java.util.Iterator;
-import java.util.Set;
+
+import shell.Builtin;
+import shell.Builtins;
+import shell.Command;
+import shell.CommandStats;
+import shell.CompletionEngine;
+import shell.Coreutils;
+import shell.CountingOutputStream;
+import shell.ExternalPipeline;
+import shell.Glob;
+import shell.History;
+import shell.HistoryJournal;
+import shell.HistorySearch;
+import shell.Jobs;
+import shell.KeyReader;
+import shell.LineEditor;
+import shell.Metrics;
+import shell.Parallel;
+import shell.Parser;
+import shell.PathIndex;
+import shell.Pipeline;
+import shell.Redirections;
+import shell.ResourceUsage;
+import shell.Stdio;
+import shell.Termios;
+import shell.Trace;
 
 public class Main {
     private static final String HOME = "~";
-    private static final String PATH = "PATH";
     private static Path pwd = Paths.get(System.getProperty("user.dir"));
-    private static final List<String> history = new ArrayList<>();
-    // Tracks how many entries have already been flushed to disk via history -a/-w/-r
-    private static int historyPersistedIndex = 0;
-
-    // #region agent log
-    private static String esc(String s) { return s == null ? "null" : s.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n"); }
-    private static void debugLog(String location, String message, String data, String hypothesisId) {
-        try {
-            String line = String.format("{\"sessionId\":\"debug-session\",\"runId\":\"run1\",\"hypothesisId\":\"%s\",\"location\":\"%s\",\"message\":\"%s\",\"data\":\"%s\",\"timestamp\":%d}\n",
-                esc(hypothesisId), esc(location), esc(message), esc(data), System.currentTimeMillis());
-            Files.writeString(Path.of("/Users/chaitanya../codecrafters-shell-java/9de43f6f5f7cd3e1/.cursor/debug.log"), line, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
-        } catch (Exception ignored) {}
+    private static final History history = new History();
+    // Trigram index over `history` for Ctrl-R / Ctrl-S
+    private static final HistorySearch historySearch = new HistorySearch(history);
+    // Write-behind HISTFILE appends (SHELL_HISTSYNC), interactive sessions only
+    private static HistoryJournal journal;
+    // Background jobs (`cmd &`)
+    private static final Jobs jobs = new Jobs();
+
+    // What the running command line has cost so far, for its CommandStats; see execute().
+    private static int lastStatus;
+    private static long spawnNanos;
+    private static long[] stageBytes;
+    // Executables on PATH, shared by command lookup, `type`, `hash` and TAB completion
+    private static final PathIndex pathIndex = new PathIndex();
+    // Opt-in compatibility mode: launch external commands through `bash -lc` as before
+    private static final boolean BASH_LAUNCH = "bash".equals(System.getenv("SHELL_LAUNCH"));
+    // Standard input of background jobs
+    private static final ProcessBuilder.Redirect NO_INPUT = ProcessBuilder.Redirect.from(new File("/dev/null"));
+    // The shell's builtins, then any found through ServiceLoader.
+    private static final Builtins builtins = Builtins.load(coreBuiltins());
+    private static final CompletionEngine completion = new CompletionEngine(builtins.names(), pathIndex);
+
+    private static List<Builtin> coreBuiltins() {
+        var core = new ArrayList<Builtin>(List.of(
+                new Builtin.Simple("exit", true, true, Main::runExit),
+                Builtin.of("echo", Main::runEcho),
+                Builtin.of("type", Main::runType),
+                Builtin.of("pwd", Main::runPwd),
+                new Builtin.Simple("cd", true, true, Main::runCd),
+                // Runs the external ls, also in pipelines.
+                new Builtin.Simple("ls", false, false, Main::runExternal),
+                Builtin.of("history", Main::runHistory),
+                Builtin.of("hash", Main::runHash),
+                Builtin.of("stats", Main::runStats),
+                Builtin.of("jobs", Main::runJobs),
+                Builtin.of("fg", Main::runFg),
+                Builtin.of("bg", Main::runBg),
+                Builtin.of("wait", Main::runWait),
+                Builtin.of("kill", Main::runKill),
+                new Parallel(() -> pwd, name -> builtins.get(name))));
+        // Opt-in: fork-free cat/head/tail/wc/grep. Off by default, as `type cat` then reports a builtin.
+        if ("builtin".equals(System.getenv("SHELL_COREUTILS"))) {
+            core.addAll(Coreutils.builtins(() -> pwd));
+        }
+        return core;
     }
-    // #endregion
 
-    // Returns the completed builtin (with trailing space) or null if no match.
-    private static String builtinCompletion(String before) {
-        if (before == null || before.isEmpty()) {
-            return null;
+    private static class RawMode implements AutoCloseable {
+        private static final int STDIN = 0;
+        // termios backend: settings saved by tcgetattr (null when the stty fallback is used)
+        private final byte[] saved;
+        // stty fallback: output of `stty -g`
+        private final String original;
+
+        private RawMode(byte[] saved, String original) {
+            this.saved = saved;
+            this.original = original;
         }
 
-        // Only complete the first word (no whitespace allowed).
-        for (int i = 0; i < before.length(); i++) {
-            if (Character.isWhitespace(before.charAt(i))) {
-                return null;
+        static RawMode enable() throws IOException, InterruptedException {
+            long start = System.nanoTime();
+            byte[] saved = Termios.makeRaw(STDIN);
+            if (saved != null) {
+                Metrics.since("rawmode.enable.termios", start);
+                bracketedPaste(true);
+                return new RawMode(saved, null);
             }
+
+            Process p = new ProcessBuilder("sh", "-lc", "stty -g < /dev/tty").redirectErrorStream(true).start();
+            String orig = new String(p.getInputStream().readAllBytes());
+            p.waitFor();
+
+            new ProcessBuilder("sh", "-lc", "stty raw -echo < /dev/tty")
+                    .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                    .redirectError(ProcessBuilder.Redirect.DISCARD)
+                    .start()
+                    .waitFor();
+            Metrics.since("rawmode.enable.stty", start);
+            bracketedPaste(true);
+            return new RawMode(null, orig.trim());
         }
 
-        if ("echo".startsWith(before)) {
-            return "echo ";
+        @Override
+        public void close() throws IOException, InterruptedException {
+            bracketedPaste(false);
+            long start = System.nanoTime();
+            if (saved != null) {
+                Termios.restore(STDIN, saved);
+                Metrics.since("rawmode.close.termios", start);
+                return;
+            }
+            if (original != null && !original.isBlank()) {
+                new ProcessBuilder("sh", "-lc", "stty " + original + " < /dev/tty")
+                        .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                        .redirectError(ProcessBuilder.Redirect.DISCARD)
+                        .start()
+                        .waitFor();
+                Metrics.since("rawmode.close.stty", start);
+            }
         }
-        if ("exit".startsWith(before)) {
-            return "exit ";
+
+        // While enabled the terminal wraps pastes in ESC[200~ ... ESC[201~, so they are not taken for typed keys.
+        private static void bracketedPaste(boolean on) {
+            System.out.print(on ? "\033[?2004h" : "\033[?2004l");
+            System.out.flush();
         }
-        return null;
     }
 
-    private static TreeSet<String> executableMatches(String before) {
-        var matches = new TreeSet<String>();
+    public static void main(String[] args) throws Exception {
+        Trace.configureFromEnv();
+        if (args.length >= 1 && args[0].startsWith("--trace=")) {
+            Trace.configure(args[0].substring("--trace=".length()));
+            args = Arrays.copyOfRange(args, 1, args.length);
+        }
 
-        if (before == null || before.isEmpty()) {
-            return matches;
+        // Startup benchmark and AOT/CDS training run: start like an interactive shell, report the time to the first
+        // prompt and leave; then run the script, if given, so command execution is trained too.
+        boolean firstPrompt = args.length >= 1 && "--first-prompt".equals(args[0]);
+        if (firstPrompt) {
+            args = Arrays.copyOfRange(args, 1, args.length);
         }
+        Metrics.dumpOnExitIfEnabled();
 
-        // Only complete the first word (no whitespace allowed).
-        for (int i = 0; i < before.length(); i++) {
-            if (Character.isWhitespace(before.charAt(i))) {
-                return matches;
+        if (firstPrompt) {
+            runInteractive(true);
+            if (args.length >= 1) {
+                try (var reader = Files.newBufferedReader(resolvePath(args[0]))) {
+                    runBatch(reader);
+                }
             }
+            return;
         }
 
-        String pathEnv = System.getenv(PATH);
-        if (pathEnv == null || pathEnv.isBlank()) {
-            return matches;
+        // Non-interactive: `-c "cmd"`, a script file, or stdin that is not a terminal.
+        if (args.length >= 1 && "-c".equals(args[0])) {
+            if (args.length < 2) {
+                System.err.println("-c: option requires an argument");
+                System.exit(2);
+            }
+            runBatch(new BufferedReader(new StringReader(args[1])));
+            return;
         }
-
-        String sep = System.getProperty("path.separator");
-        for (String dir : pathEnv.split(java.util.regex.Pattern.quote(sep))) {
-            if (dir == null || dir.isBlank()) {
-                continue;
+        if (args.length >= 1) {
+            Path script = resolvePath(args[0]);
+            if (!Files.isReadable(script)) {
+                System.err.println(String.format("%s: No such file or directory", args[0]));
+                System.exit(127);
             }
-            try (var stream = Files.list(Paths.get(dir))) {
-                stream.forEach(p -> {
-                    try {
-                        String name = p.getFileName().toString();
-                        if (name.startsWith(before) && Files.isExecutable(p)) {
-                            matches.add(name);
-                        }
-                    } catch (Exception ignored) {
-                        // ignore unreadable entries
-                    }
-                });
-            } catch (Exception ignored) {
-                // ignore unreadable PATH directories
+            try (var reader = Files.newBufferedReader(script)) {
+                runBatch(reader);
             }
+            return;
+        }
+        if (!Termios.isTerminal(0)) {
+            runBatch(new BufferedReader(new InputStreamReader(System.in)));
+            return;
         }
 
-        return matches;
+        runInteractive(false);
     }
 
-    private static String longestCommonPrefix(TreeSet<String> values) {
-        if (values == null || values.isEmpty()) {
-            return "";
-        }
-        Iterator<String> it = values.iterator();
-        String prefix = it.next();
-        while (it.hasNext() && !prefix.isEmpty()) {
-            prefix = commonPrefix(prefix, it.next());
+    // Prints the time from JVM start to the first prompt on stderr and records it as the "startup.first-prompt" timer.
+    private static void reportFirstPrompt() {
+        long now = System.currentTimeMillis();
+        // Loads java.management, so only after the prompt is out.
+        long jvmStart = ManagementFactory.getRuntimeMXBean().getStartTime();
+        Metrics.record("startup.first-prompt", (now - jvmStart) * 1_000_000);
+        System.err.printf("%nfirst prompt after %dms%n", now - jvmStart);
+    }
+
+    // Executes one command line (a pipeline or a single command), optionally prefixed with `time`, and records what
+    // it cost in Metrics. Package-private so tests can run several at once.
+    static void execute(String line) throws IOException, InterruptedException {
+        String timed = timedLine(line);
+        long wallStart = System.nanoTime();
+        ResourceUsage.Sample before = ResourceUsage.sample();
+        lastStatus = 0;
+        spawnNanos = 0;
+        stageBytes = null;
+        long parseNanos = -1;
+        try {
+            long start = System.nanoTime();
+            Pipeline pipeline = Parser.parsePipeline(timed != null ? timed : line);
+            parseNanos = System.nanoTime() - start;
+            Trace.end("parse", start, line, pipeline.stages().size());
+            pipeline = Glob.expand(pipeline, pwd);
+            var commands = pipeline.stages();
+            if (pipeline.background()) {
+                runInBackground(pipeline, line);
+            } else if (commands.size() == 1) {
+                runCounted(commands.get(0));
+            } else {
+                runPipeline(commands);
+            }
+        } catch (IllegalArgumentException ignored) {
+            // ignore invalid/empty commands
+        } finally {
+            long wallNanos = System.nanoTime() - wallStart;
+            ResourceUsage.Sample used = ResourceUsage.sample().since(before);
+            var stats = new CommandStats(line, parseNanos, spawnNanos, wallNanos,
+                    sum(used.selfUserNanos(), used.selfSystemNanos()), used.childUserNanos(),
+                    used.childSystemNanos(), lastStatus, stageBytes != null ? stageBytes : new long[0]);
+            Metrics.command(stats);
+            if (timed != null) {
+                printTimes(stats, used);
+            }
         }
-        return prefix;
     }
 
-    private static String commonPrefix(String a, String b) {
-        int len = Math.min(a.length(), b.length());
-        int i = 0;
-        while (i < len && a.charAt(i) == b.charAt(i)) {
-            i++;
+    // `time pipeline`: the pipeline without its `time` keyword, or null when the line is not timed.
+    private static String timedLine(String line) {
+        String stripped = line.stripLeading();
+        if (stripped.startsWith("time") && (stripped.length() == 4 || Character.isWhitespace(stripped.charAt(4)))) {
+            return stripped.substring(4);
         }
-        return a.substring(0, i);
+        return null;
     }
 
-    private static class RawMode implements AutoCloseable {
-        private final String original;
+    private static long sum(long a, long b) {
+        return a < 0 || b < 0 ? -1 : a + b;
+    }
 
-        private RawMode(String original) {
-            this.original = original;
+    // bash's `time` report on stderr: user and sys include the shell's own time, which builtins run in.
+    private static void printTimes(CommandStats stats, ResourceUsage.Sample used) {
+        long user = used.childUserNanos() < 0
+                ? used.selfUserNanos()
+                : sum(used.selfUserNanos(), used.childUserNanos());
+        long sys = used.childSystemNanos() < 0
+                ? used.selfSystemNanos()
+                : sum(used.selfSystemNanos(), used.childSystemNanos());
+        System.out.flush();
+        System.err.printf("%nreal\t%s%nuser\t%s%nsys\t%s%n",
+                minutes(stats.wallNanos()), minutes(user), minutes(sys));
+        System.err.flush();
+    }
+
+    // 1234567890ns -> "0m1.235s"
+    private static String minutes(long nanos) {
+        if (nanos < 0) {
+            return "?";
         }
+        long millis = (nanos + 500_000) / 1_000_000;
+        return String.format("%dm%d.%03ds", millis / 60_000, millis / 1000 % 60, millis % 1000);
+    }
 
-        static RawMode enable() throws IOException, InterruptedException {
-            Process p = new ProcessBuilder("sh", "-lc", "stty -g < /dev/tty").redirectErrorStream(true).start();
-            String orig = new String(p.getInputStream().readAllBytes());
-            p.waitFor();
+    // Runs a single command with its redirections; a builtin's output is counted on its way to System.out (output
+    // redirected to a file is not counted).
+    private static void runCounted(Command command) throws IOException, InterruptedException {
+        Redirections redirections = openRedirections(command);
+        if (redirections == null) {
+            return;
+        }
+        try (redirections) {
+            Builtin builtin = builtins.get(command.command());
+            // One that is not pipeline-capable (ls) is started like an external command here too, with the
+            // redirections just opened.
+            if (builtin == null || !builtin.pipelineCapable() || !builtin.accepts(command, !redirections.keeps(0))) {
+                stageBytes = new long[] {-1};
+                lastStatus = runNotBuiltin(command, redirections);
+                return;
+            }
+            var counter = new CountingOutputStream(System.out, true);
+            var out = new PrintStream(counter, true, System.out.charset());
+            try {
+                lastStatus = builtin.run(command, redirections.stdio(new Stdio(System.in, out, System.err)));
+            } finally {
+                out.flush();
+                stageBytes = new long[] {counter.count()};
+            }
+        }
+    }
 
-            new ProcessBuilder("sh", "-lc", "stty raw -echo < /dev/tty")
-                    .redirectOutput(ProcessBuilder.Redirect.DISCARD)
-                    .redirectError(ProcessBuilder.Redirect.DISCARD)
-                    .start()
-                    .waitFor();
-            return new RawMode(orig.trim());
+    // Opens a command's redirections, or reports why one failed and returns null; like bash, the command then does
+    // not run and its status is 1.
+    private static Redirections openRedirections(Command command) {
+        try {
+            return Redirections.open(command.redirects(), pwd);
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            lastStatus = 1;
+            return null;
         }
+    }
 
-        @Override
-        public void close() throws IOException, InterruptedException {
-            if (original != null && !original.isBlank()) {
-                new ProcessBuilder("sh", "-lc", "stty " + original + " < /dev/tty")
-                        .redirectOutput(ProcessBuilder.Redirect.DISCARD)
-                        .redirectError(ProcessBuilder.Redirect.DISCARD)
-                        .start()
-                        .waitFor();
+    // Runs commands line by line with no raw mode, prompt or echo. Like bash, history is not recorded.
+    // Note that reading stdin through a buffer means children don't see the lines after their own.
+    private static void runBatch(BufferedReader reader) throws IOException, InterruptedException {
+        String line;
+        while ((line = reader.readLine()) != null) {
+            String trimmed = line.strip();
+            if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+                continue;
             }
+            long start = System.nanoTime();
+            execute(line);
+            Metrics.since("command.batch", start);
         }
+        System.out.flush();
     }
 
-    public static void main(String[] args) throws Exception {
+    // With firstPromptOnly, returns as soon as the first prompt is drawn (see --first-prompt).
+    private static void runInteractive(boolean firstPromptOnly) throws Exception {
         final String prompt = "$ ";
-        StringBuilder buf = new StringBuilder();
         String lastTabPrefix = null;
         boolean awaitingSecondTabForList = false;
-        int historyIndex = history.size(); // points just after the last entry
-        boolean inEscape = false;
-        int escState = 0; // 0=none, 1=got ESC, 2=got ESC[
 
-        // Load history on startup from HISTFILE (if provided)
         String histfile = System.getenv("HISTFILE");
-        if (histfile != null && !histfile.isBlank()) {
-            runHistoryRead(histfile);
-        }
-        // Reset history index after loading history
-        historyIndex = history.size();
 
+        // Incremental search state (Ctrl-R / Ctrl-S)
+        boolean searching = false;
+        boolean searchBackward = true;
+        boolean searchFailed = false;
+        var searchQuery = new StringBuilder();
+        String lastSearch = "";
+        int searchStart = 0; // where the current query started looking
+        int searchMatch = -1; // entry shown, or -1
+        String searchSavedLine = "";
+
+        var keys = new KeyReader(System.in);
+        var editor = new LineEditor(System.out, () -> Termios.columns(1));
+        Termios.onResize(editor::resized);
         RawMode raw = RawMode.enable();
         try {
-            System.out.print(prompt);
-            System.out.flush();
+            editor.start(prompt);
+            if (firstPromptOnly) {
+                reportFirstPrompt();
+            }
+
+            // What the prompt does not need only starts once it is drawn: loading history from HISTFILE (if
+            // provided), waited for before the first key is handled, and indexing PATH for completion (a lookup
+            // before it is done waits for it, PathIndex being synchronized).
+            Thread historyLoader = null;
+            if (histfile != null && !histfile.isBlank()) {
+                historyLoader = Thread.ofPlatform().name("history-load").start(() -> {
+                    runHistoryRead(histfile);
+                    historySearch.updateInBackground();
+                });
+            }
+            Thread.ofPlatform().name("path-index").daemon().start(pathIndex::build);
+            if (firstPromptOnly) {
+                return;
+            }
+            if (historyLoader != null) {
+                historyLoader.join();
+                // Opt-in: write commands to HISTFILE as they run, and with "share" also pick up other sessions'
+                // commands
+                String sync = System.getenv("SHELL_HISTSYNC");
+                if ("journal".equals(sync) || "share".equals(sync)) {
+                    journal = HistoryJournal.start(history, resolvePath(histfile));
+                    if ("share".equals(sync)) {
+                        journal.watch();
+                    }
+                }
+            }
+            int historyIndex = history.size(); // points just after the last entry
 
             while (true) {
-                int ch = System.in.read();
-                if (ch == -1) {
+                KeyReader.Key key = keys.next();
+                if (key.type() == KeyReader.Type.EOF) {
                     break;
                 }
+                int ch = key.type() == KeyReader.Type.CONTROL ? key.code() : -1;
+                if (ch != '\t') {
+                    awaitingSecondTabForList = false;
+                    lastTabPrefix = null;
+                }
 
-                // TAB completion for builtins (echo/exit).
-                if (ch == '\t') {
-                    String before = buf.toString();
+                if (!searching && (ch == 18 || ch == 19)) { // Ctrl-R / Ctrl-S: start incremental search
+                    searching = true;
+                    searchBackward = ch == 18;
+                    searchFailed = false;
+                    searchQuery.setLength(0);
+                    searchStart = searchBackward ? history.size() - 1 : 0;
+                    searchMatch = -1;
+                    searchSavedLine = editor.text();
+                } else if (searching) {
+                    boolean edited = true;
+                    int from = searchMatch >= 0 ? searchMatch : searchStart;
+                    if (key.type() == KeyReader.Type.TEXT || key.type() == KeyReader.Type.PASTE) {
+                        searchQuery.append(printable(key.text()));
+                    } else if (ch == 18 || ch == 19) {
+                        // Again: next match further in that direction (or reuse the last query if empty).
+                        boolean backward = ch == 18;
+                        if (searchQuery.isEmpty()) {
+                            searchQuery.append(lastSearch);
+                        } else if (searchMatch >= 0 && backward == searchBackward) {
+                            from = backward ? searchMatch - 1 : searchMatch + 1;
+                        }
+                        searchBackward = backward;
+                    } else if (ch == 127 || ch == 8) {
+                        if (!searchQuery.isEmpty()) {
+                            searchQuery.setLength(searchQuery.length() - 1);
+                        }
+                        from = searchStart;
+                    } else if (ch == 7 || ch == 3) { // Ctrl-G / Ctrl-C: give up and restore the line
+                        searching = false;
+                        editor.replace(searchSavedLine);
+                        editor.refresh();
+                        continue;
+                    } else {
+                        // Any other key accepts the match and then does what it normally does.
+                        searching = false;
+                        edited = false;
+                        if (searchMatch >= 0) {
+                            String matched = history.get(searchMatch);
+                            editor.replace(matched, Math.max(matched.indexOf(searchQuery.toString()), 0));
+                            historyIndex = searchMatch;
+                        }
+                        lastSearch = searchQuery.toString();
+                        editor.refresh();
+                    }
+                    if (edited) {
+                        String query = searchQuery.toString();
+                        int found = query.isEmpty() ? -1 : searchBackward
+                                ? historySearch.findBackward(query, from)
+                                : from >= history.size() ? -1 : historySearch.findForward(query, from);
+                        searchFailed = !query.isEmpty() && found < 0;
+                        if (found >= 0) {
+                            searchMatch = found;
+                        }
+                    }
+                }
+                if (searching) {
+                    String query = searchQuery.toString();
+                    String label = (searchFailed ? "(failed " : "(")
+                            + (searchBackward ? "reverse-i-search)`" : "i-search)`") + query + "': ";
+                    String matched = searchMatch >= 0 ? history.get(searchMatch) : "";
+                    int at = matched.indexOf(query);
+                    editor.show(label, matched, at >= 0 && !query.isEmpty() ? at : 0);
+                    continue;
+                }
 
-                    // Builtins take precedence.
-                    String completed = builtinCompletion(before);
-                    if (completed != null) {
-                        awaitingSecondTabForList = false;
-                        lastTabPrefix = null;
+                switch (key.type()) {
+                    case TEXT -> editor.insert(key.text());
+                    case PASTE -> {
+                        // Pasted line breaks run the lines before them, as if typed; the rest stays editable.
+                        String[] lines = key.text().split("\r\n|\r|\n", -1);
+                        for (int i = 0; i < lines.length; i++) {
+                            editor.insert(printable(lines[i]));
+                            if (i < lines.length - 1) {
+                                raw = submit(editor, raw, prompt);
+                                historyIndex = history.size();
+                            }
+                        }
+                    }
+                    case UP -> {
+                        // Up walks back through history, Down forward to the empty line after the newest entry.
+                        if (historyIndex > 0) {
+                            historyIndex--;
+                            editor.replace(history.get(historyIndex));
+                        }
+                    }
+                    case DOWN -> {
+                        if (historyIndex < history.size() - 1) {
+                            historyIndex++;
+                            editor.replace(history.get(historyIndex));
+                        } else if (historyIndex == history.size() - 1) {
+                            historyIndex = history.size();
+                            editor.clear();
+                        }
+                    }
+                    case RIGHT -> {
+                        if (key.ctrlOrAlt()) editor.wordRight(); else editor.right();
+                    }
+                    case LEFT -> {
+                        if (key.ctrlOrAlt()) editor.wordLeft(); else editor.left();
+                    }
+                    case HOME -> editor.home();
+                    case END -> editor.end();
+                    case DELETE -> editor.deleteForward();
+                    case ALT -> {
+                        switch (key.code()) {
+                            case 'b' -> editor.wordLeft();
+                            case 'f' -> editor.wordRight();
+                            case 'd' -> editor.killWordForward();
+                            case 127, 8 -> editor.killWordBack();
+                            default -> {
+                                // Unknown Alt combination: ignore
+                            }
+                        }
+                    }
+                    case CONTROL -> {
+                        // handled below
+                    }
+                    default -> {
+                        // Insert, PageUp/Down, function keys and unbound sequences: ignore
                     }
+                }
+                if (ch < 0) {
+                    editor.refresh();
+                    continue;
+                }
 
-                    if (completed == null) {
-                        TreeSet<String> matches = executableMatches(before);
-                        if (matches.size() == 1) {
-                            completed = matches.first() + " ";
+                // TAB completion: command names for the first word, file names for the others.
+                if (ch == '\t') {
+                    String before = editor.beforeCursor();
+                    var completed = completion.completeLine(before, pwd);
+                    var matches = completed.matches();
+                    if (matches.count() == 1) {
+                        // Insert only the missing suffix, then a space (or "/" for a directory): the match is unique.
+                        editor.insert(completion.insertion(completed, matches.first(), true));
+                        editor.refresh();
+                        awaitingSecondTabForList = false;
+                        lastTabPrefix = null;
+                    } else if (matches.count() > 1) {
+                        String lcp = matches.longestCommonPrefix();
+                        if (lcp.length() > completed.prefix().length()) {
+                            // Extend to the longest common prefix (no trailing space unless unique).
+                            editor.insert(completion.insertion(completed, lcp, false));
+                            editor.refresh();
                             awaitingSecondTabForList = false;
                             lastTabPrefix = null;
-                        } else if (matches.size() > 1) {
-                            String lcp = longestCommonPrefix(matches);
-                            if (lcp.length() > before.length()) {
-                                // Extend to the longest common prefix (no trailing space unless unique).
-                                String suffix = lcp.substring(before.length());
-                                System.out.print(suffix);
-                                System.out.flush();
-                                buf.append(suffix);
-                                awaitingSecondTabForList = false;
-                                lastTabPrefix = null;
-                                // clear escape sequence parsing state
-                                inEscape = false;
-                                escState = 0;
-                                continue;
-                            }
-
-                            if (awaitingSecondTabForList && before.equals(lastTabPrefix)) {
-                                // Second TAB: print matches, then re-print prompt and current buffer.
-                                System.out.print("\r\n");
-                                System.out.print(String.join("  ", matches));
-                                System.out.print("\r\n");
-                                System.out.print(prompt);
-                                System.out.print(before);
-                                System.out.flush();
-                                awaitingSecondTabForList = false;
-                                lastTabPrefix = null;
-                                // clear escape sequence parsing state
-                                inEscape = false;
-                                escState = 0;
-                                continue;
+                        } else if (awaitingSecondTabForList && before.equals(lastTabPrefix)) {
+                            // Second TAB: print matches, then re-print prompt and current buffer.
+                            var labels = new ArrayList<String>(matches.count());
+                            for (String match : matches.asList()) {
+                                labels.add(completion.label(completed, match));
                             }
-
+                            System.out.print("\r\n");
+                            System.out.print(String.join("  ", labels));
+                            System.out.print("\r\n");
+                            editor.redrawAll();
+                            awaitingSecondTabForList = false;
+                            lastTabPrefix = null;
+                        } else {
                             // First TAB with multiple matches and no further prefix: ring bell and arm second-tab behavior.
                             System.out.print("\u0007");
                             System.out.flush();
                             awaitingSecondTabForList = true;
                             lastTabPrefix = before;
-                            // clear escape sequence parsing state
-                            inEscape = false;
-                            escState = 0;
-                            continue;
-                        } else {
-                            // No matches.
-                            completed = null;
                         }
-                    }
-
-                    if (completed == null) {
+                    } else {
                         // No match: ring bell.
                         System.out.print("\u0007");
                         System.out.flush();
-                    } else if (!completed.equals(before)) {
-                        awaitingSecondTabForList = false;
-                        lastTabPrefix = null;
-                        // Print only the suffix to avoid relying on terminal control sequences.
-                        String suffix = completed.substring(before.length());
-                        System.out.print(suffix);
-                        System.out.flush();
-                        buf.append(suffix);
                     }
-                    // clear escape sequence parsing state
-                    inEscape = false;
-                    escState = 0;
                     continue;
                 }
 
                 // ENTER: run command
                 if (ch == '\n' || ch == '\r') {
-                    awaitingSecondTabForList = false;
-                    lastTabPrefix = null;
-                    // Use CRLF so the cursor returns to column 0 before external output.
-                    System.out.print("\r\n");
-                    System.out.flush();
-
-                    String line = buf.toString();
-                    buf.setLength(0);
+                    raw = submit(editor, raw, prompt);
                     historyIndex = history.size();
-                    escState = 0;
-                    inEscape = false;
-
-                    // Disable raw mode while executing the command so external programs output normally.
-                    raw.close();
-
-                    if (line != null && !line.isBlank()) {
-                        // Record history for every executed command line (including `history` itself)
-                        history.add(line);
-                        historyIndex = history.size();
-                        try {
-                            if (!tryPipeline(line)) {
-                                var command = parse(line);
-                                run(command);
-                            }
-                        } catch (IllegalArgumentException ignored) {
-                            // ignore invalid/empty commands
-                        }
-                    }
-
-                    // Re-enable raw mode for next prompt/input.
-                    raw = RawMode.enable();
-
-                    System.out.print(prompt);
-                    System.out.flush();
                     continue;
                 }
 
-                // Handle ANSI escape sequences for arrow keys (Up Arrow: ESC [ A)
-                if (escState == 0) {
-                    if (ch == 27) { // ESC
-                        escState = 1;
-                        continue;
-                    }
-                } else if (escState == 1) {
-                    if (ch == '[') {
-                        escState = 2;
+                // Editing keys (emacs bindings)
+                switch (ch) {
+                    case 1 -> editor.home(); // Ctrl-A
+                    case 2 -> editor.left(); // Ctrl-B
+                    case 3 -> { // Ctrl-C: abandon the line
+                        System.out.print("^C\r\n");
+                        historyIndex = history.size();
+                        editor.start(prompt);
                         continue;
                     }
-                    // Not an escape sequence we care about
-                    escState = 0;
-                } else if (escState == 2) {
-                    // Arrow key code
-                    if (ch == 'A') {
-                        // Up arrow
-                        if (!history.isEmpty() && historyIndex > 0) {
-                            historyIndex--;
-                            String cmd = history.get(historyIndex);
-
-                            // Rewrite the current line: CR + clear-to-end + prompt + command
-                            System.out.print("\r");
-                            System.out.print("\033[0K");
-                            System.out.print(prompt);
-                            System.out.print(cmd);
+                    case 4 -> { // Ctrl-D: EOF on an empty line, otherwise delete under the cursor
+                        if (editor.isEmpty()) {
+                            System.out.print("\r\n");
                             System.out.flush();
-
-                            buf.setLength(0);
-                            buf.append(cmd);
-                            awaitingSecondTabForList = false;
-                            lastTabPrefix = null;
+                            return;
                         }
-                        escState = 0;
+                        editor.deleteForward();
+                    }
+                    case 5 -> editor.end(); // Ctrl-E
+                    case 6 -> editor.right(); // Ctrl-F
+                    case 8, 127 -> editor.backspace(); // Ctrl-H / Backspace
+                    case 11 -> editor.killToEnd(); // Ctrl-K
+                    case 12 -> { // Ctrl-L: clear the screen
+                        System.out.print("\033[H\033[2J");
+                        editor.redrawAll();
                         continue;
                     }
-
-                    if (ch == 'B') {
-                        // Down arrow
-                        if (!history.isEmpty()) {
-                            if (historyIndex < history.size() - 1) {
-                                historyIndex++;
-                                String cmd = history.get(historyIndex);
-
-                                // Rewrite the current line: CR + clear-to-end + prompt + command
-                                System.out.print("\r");
-                                System.out.print("\033[0K");
-                                System.out.print(prompt);
-                                System.out.print(cmd);
-                                System.out.flush();
-
-                                buf.setLength(0);
-                                buf.append(cmd);
-                                awaitingSecondTabForList = false;
-                                lastTabPrefix = null;
-                            } else if (historyIndex == history.size() - 1) {
-                                // Move to "empty" current input after the newest entry
-                                historyIndex = history.size();
-
-                                System.out.print("\r");
-                                System.out.print("\033[0K");
-                                System.out.print(prompt);
-                                System.out.flush();
-
-                                buf.setLength(0);
-                                awaitingSecondTabForList = false;
-                                lastTabPrefix = null;
-                            }
-                        }
-                        escState = 0;
+                    case 21 -> editor.killToStart(); // Ctrl-U
+                    case 23 -> editor.killWordBack(); // Ctrl-W
+                    case 25 -> editor.yank(); // Ctrl-Y
+                    default -> {
+                        // Other control characters: ignore
                         continue;
                     }
-
-                    // Any other escape sequence: ignore
-                    escState = 0;
-                    continue;
                 }
-                // Normal character: append to buffer and echo it.
-                awaitingSecondTabForList = false;
-                lastTabPrefix = null;
-                buf.append((char) ch);
-                System.out.print((char) ch);
-                System.out.flush();
+                editor.refresh();
             }
         } finally {
             if (raw != null) {
                 raw.close();
             }
-        }
-    }
-
-    enum CommandName {
-        exit,
-        echo,
-        type,
-        pwd,
-        cd,
-        ls,
-        history;
-
-        static CommandName of(String name) {
-            try {
-                return valueOf(name);
-            } catch (IllegalArgumentException e) {
-                return null;
+            if (journal != null) {
+                journal.close();
             }
         }
     }
 
-    record Command(
-            String command,
-            String[] args,
-            String[] commandWithArgs,
-            RedirectType redirectType,
-            String redirectTo) {}
+    // Runs the edited line like ENTER does and starts a fresh prompt. Returns the raw mode re-entered afterwards.
+    private static RawMode submit(LineEditor editor, RawMode raw, String prompt) throws Exception {
+        // Use CRLF so the cursor returns to column 0 before external output.
+        editor.end();
+        editor.refresh();
+        System.out.print("\r\n");
+        System.out.flush();
 
-    private static Command parse(String command) {
-        if (command == null || command.isEmpty()) {
-            throw new IllegalArgumentException("command cannot be null or empty");
-        }
+        String line = editor.text();
 
-        List<String> split = splitCommand(command);
-        return parseTokens(split);
-    }
+        // Disable raw mode while executing the command so external programs output normally.
+        raw.close();
 
-    private static Command parseTokens(List<String> tokens) {
-        if (tokens == null || tokens.isEmpty()) {
-            throw new IllegalArgumentException("command cannot be empty");
-        }
-
-        String[] splitArray = tokens.toArray(new String[0]);
-
-        if (splitArray.length == 1) {
-            // no args
-            return new Command(tokens.get(0), new String[0], splitArray, null, "");
-        }
-
-        var rediect = getRedirect(splitArray);
-        var rediectAt = rediect.redirectAt;
-        String[] args = Arrays.copyOfRange(splitArray, 1, rediectAt);
-        var commandWithArgs = Arrays.copyOf(splitArray, rediectAt);
-        String redirectTo = "";
-        if (rediect.redirectType != null) {
-            String op = splitArray[rediectAt];
-            String branch = "none";
-            if (op.startsWith("2>>") && op.length() > 3) {
-                redirectTo = op.substring(3); branch = "2>>attach";
-            } else if (op.startsWith("2>") && !op.startsWith("2>>") && op.length() > 2) {
-                redirectTo = op.substring(2); branch = "2>attach";
-            } else if (op.startsWith("1>>") && op.length() > 3) {
-                redirectTo = op.substring(3); branch = "1>>attach";
-            } else if (op.startsWith("1>") && !op.startsWith("1>>") && op.length() > 2) {
-                redirectTo = op.substring(2); branch = "1>attach";
-            } else {
-                redirectTo = splitArray[rediectAt + 1]; branch = "else";
+        if (!line.isBlank()) {
+            if (journal != null) {
+                journal.sync();
             }
-            // #region agent log
-            debugLog("parseTokens", "redirectTo extraction", String.format("op=%s branch=%s redirectTo=%s nextTok=%s", op, branch, redirectTo, rediectAt + 1 < splitArray.length ? splitArray[rediectAt + 1] : "OOB"), "H1");
-            if (rediect.redirectType == RedirectType.stderr_append) debugLog("parseTokens", "stderr_append path", "redirectTo=" + redirectTo + " tokens=" + Arrays.toString(splitArray), "H2");
-            // #endregion
-        }
-
-        return new Command(tokens.get(0), args, commandWithArgs, rediect.redirectType, redirectTo);
-    }
-
-    private static boolean tryPipeline(String line) throws IOException, InterruptedException {
-        List<String> tokens = splitCommand(line);
-        if (!tokens.contains("|")) {
-            return false;
-        }
-
-        // Split tokens into segments by '|'
-        List<List<String>> segments = new ArrayList<>();
-        int start = 0;
-        for (int i = 0; i < tokens.size(); i++) {
-            if ("|".equals(tokens.get(i))) {
-                if (i == start) {
-                    throw new IllegalArgumentException("pipeline needs command on both sides");
-                }
-                segments.add(tokens.subList(start, i));
-                start = i + 1;
+            // Record history for every executed command line (including `history` itself)
+            history.add(line);
+            if (journal != null) {
+                journal.commit();
             }
+            long start = System.nanoTime();
+            execute(line);
+            Metrics.since("command.interactive", start);
         }
-        if (start >= tokens.size()) {
-            throw new IllegalArgumentException("pipeline needs command on both sides");
-        }
-        segments.add(tokens.subList(start, tokens.size()));
-
-        // Parse segments into Commands
-        List<Command> commands = new ArrayList<>();
-        for (var seg : segments) {
-            commands.add(parseTokens(seg));
-        }
-
-        runPipeline(commands);
-        return true;
-    }
-
-    private static Redirect getRedirect(String[] split) {
-        var rediectAt = split.length;
-        RedirectType type = null;
-        for (int i = 0; i < split.length; i++) {
-            var s = split[i];
-            // Support attached redirections (e.g. 2>>/tmp/file)
-            if (s.startsWith("2>>") && s.length() > 3) {
-                rediectAt = i;
-                type = RedirectType.stderr_append;
-                break;
-            }
-            if (s.startsWith("2>") && !s.startsWith("2>>") && s.length() > 2) {
-                rediectAt = i;
-                type = RedirectType.stderr;
-                break;
-            }
-            if (s.startsWith("1>>") && s.length() > 3) {
-                rediectAt = i;
-                type = RedirectType.stdout_append;
-                break;
-            }
-            if (s.startsWith("1>") && !s.startsWith("1>>") && s.length() > 2) {
-                rediectAt = i;
-                type = RedirectType.stdout;
-                break;
-            }
-            if (s.equals(">") || s.equals("1>")) {
-                rediectAt = i;
-                type = RedirectType.stdout;
-                break;
-            }
-            if (s.equals("2>")) {
-                rediectAt = i;
-                type = RedirectType.stderr;
-                break;
-            }
-            if (s.equals(">>") || s.equals("1>>")) {
-                rediectAt = i;
-                type = RedirectType.stdout_append;
-                break;
-            }
-            if (s.equals("2>>")) {
-                rediectAt = i;
-                type = RedirectType.stderr_append;
-                break;
-            }
+        if (journal != null) {
+            journal.sync();
         }
-        return new Redirect(type, rediectAt);
-    }
+        jobs.reportDone(System.out);
 
-    private record Redirect(RedirectType redirectType, int redirectAt) {}
+        // Re-enable raw mode for next prompt/input.
+        raw = RawMode.enable();
 
-    private enum RedirectType {
-        stdout,
-        stderr,
-        stdout_append,
-        stderr_append
+        editor.start(prompt);
+        return raw;
     }
 
-    private enum QuteMode {
-        singleQuote,
-        doubleQuote
-    }
-
-    private static List<String> splitCommand(String command) {
-        var result = new ArrayList<String>();
-        var temp = new StringBuilder();
-        QuteMode quteMode = null;
-        var escape = false;
-        var toEscape = Set.of('\"', '\\', '$', '`');
-
-        for (char ch : command.toCharArray()) {
-            if (quteMode == QuteMode.singleQuote) {
-                if (ch == '\'') {
-                    quteMode = null;
-                } else {
-                    temp.append(ch);
-                }
-            } else if (quteMode == QuteMode.doubleQuote) {
-                if (escape) {
-                    if (!toEscape.contains(ch)) {
-                        temp.append('\\');
-                    }
-                    temp.append(ch);
-                    escape = false;
-                } else {
-                    if (ch == '\"') {
-                        quteMode = null;
-                    } else if (ch == '\\') {
-                        escape = true;
-                    } else {
-                        temp.append(ch);
-                    }
-                }
-            } else {
-                if (escape) {
-                    temp.append(ch);
-                    escape = false;
-                } else {
-                    if (ch == '\'') {
-                        quteMode = QuteMode.singleQuote;
-                    } else if (ch == '\"') {
-                        quteMode = QuteMode.doubleQuote;
-                    } else if (ch == ' ') {
-                        addTemp(result, temp);
-                    } else if (ch == '\\') {
-                        escape = true;
-                    } else {
-                        temp.append(ch);
+    // Pasted tabs and other control characters would desynchronise the editor's column count; show them as spaces.
+    private static String printable(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) < 0x20 || s.charAt(i) == 0x7F) {
+                var sb = new StringBuilder(s);
+                for (int j = i; j < sb.length(); j++) {
+                    if (sb.charAt(j) < 0x20 || sb.charAt(j) == 0x7F) {
+                        sb.setCharAt(j, ' ');
                     }
                 }
+                return sb.toString();
             }
         }
+        return s;
+    }
 
-        if (quteMode != null) {
-            throw new IllegalArgumentException("Unclosed quote.");
+    private static int runExit(Command command, Stdio io) {
+        int status = 0;
+        if (command.args().length != 0) {
+            status = Integer.parseInt(command.args()[0]);
         }
 
-        addTemp(result, temp);
+        // Append only new history entries to HISTFILE on exit (if provided)
+        String histfile = System.getenv("HISTFILE");
+        if (journal != null) {
+            journal.close();
+        } else if (histfile != null && !histfile.isBlank()) {
+            runHistoryAppend(histfile);
+        }
 
-        return result;
+        System.exit(status);
+        return status;
     }
 
-    private static void addTemp(List<String> result, StringBuilder temp) {
-        if (temp.length() > 0) {
-            result.add(temp.toString());
-            temp.setLength(0);
-        }
+    private static int runPwd(Command command, Stdio io) {
+        // Print the current working directory as an absolute path
+        io.out().println(pwd.toAbsolutePath().normalize());
+        return 0;
     }
 
-    private static void run(Command command) throws IOException, InterruptedException {
-        var commandName = CommandName.of(command.command);
-
-        if (Objects.isNull(commandName)) {
-            runNotBuiltin(command);
-            return;
+    private static int runHistory(Command command, Stdio io) {
+        // Support:
+        //  - history
+        //  - history <n>
+        //  - history -r <path>
+        //  - history -w <path>
+        //  - history -a <path>
+        //  - history -n [path]
+        if (command.args().length >= 2 && "-r".equals(command.args()[0])) {
+            runHistoryRead(command.args()[1]);
+            return 0;
         }
 
-        switch (commandName) {
-            case exit -> {
-                int status = 0;
-                if (command.args.length != 0) {
-                    status = Integer.parseInt(command.args[0]);
-                }
-
-                // Append only new history entries to HISTFILE on exit (if provided)
-                String histfile = System.getenv("HISTFILE");
-                if (histfile != null && !histfile.isBlank()) {
-                    runHistoryAppend(histfile);
-                }
-
-                System.exit(status);
-            }
-            case echo -> {
-                runEcho(command);
-            }
-            case type -> {
-                runType(command);
-            }
-            case pwd -> {
-                // Print the current working directory as an absolute path
-                System.out.println(pwd.toAbsolutePath().normalize());
-            }
-            case cd -> {
-                runCd(command);
-            }
-            case ls -> {
-                runNotBuiltin(command);
-            }
-            case history -> {
-                // Support:
-                //  - history
-                //  - history <n>
-                //  - history -r <path>
-                //  - history -w <path>
-                if (command.args.length >= 2 && "-r".equals(command.args[0])) {
-                    runHistoryRead(command.args[1]);
-                    return;
-                }
-
-                if (command.args.length >= 2 && "-w".equals(command.args[0])) {
-                    runHistoryWrite(command.args[1]);
-                    return;
-                }
-
-                if (command.args.length >= 2 && "-a".equals(command.args[0])) {
-                    runHistoryAppend(command.args[1]);
-                    return;
-                }
-
-                int n = -1;
-                if (command.args.length >= 1) {
-                    try {
-                        n = Integer.parseInt(command.args[0]);
-                    } catch (NumberFormatException ignored) {
-                        n = -1;
-                    }
-                }
-                runHistory(n);
-            }
+        if (command.args().length >= 2 && "-w".equals(command.args()[0])) {
+            runHistoryWrite(command.args()[1]);
+            return 0;
         }
-    }
-
 
-    private static void runEcho(Command command) throws IOException {
-        var message = String.join(" ", command.args);
-
-        // No redirection: print normally
-        if (command.redirectType == null) {
-            System.out.println(message);
-            return;
+        if (command.args().length >= 2 && "-a".equals(command.args()[0])) {
+            runHistoryAppend(command.args()[1]);
+            return 0;
         }
 
-        // Resolve redirect target relative to current working directory (pwd)
-        Path path = Path.of(command.redirectTo);
-        if (!path.isAbsolute()) {
-            path = pwd.resolve(path);
+        if (command.args().length >= 1 && "-n".equals(command.args()[0])) {
+            runHistoryReadNew(command.args().length >= 2 ? command.args()[1] : System.getenv("HISTFILE"));
+            return 0;
         }
-        path = path.normalize();
 
-        // Ensure parent directories exist if possible
-        try {
-            if (path.getParent() != null) {
-                Files.createDirectories(path.getParent());
+        int n = -1;
+        if (command.args().length >= 1) {
+            try {
+                n = Integer.parseInt(command.args()[0]);
+            } catch (NumberFormatException ignored) {
+                n = -1;
             }
-        } catch (IOException ignored) {
         }
+        runHistory(n, io);
+        return 0;
+    }
 
-        byte[] bytes = (message + "\n").getBytes();
-
-        switch (command.redirectType) {
-            case stdout -> {
-                Files.write(path, bytes, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
-            }
-            case stdout_append -> {
-                Files.write(path, bytes, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
-            }
-            case stderr -> {
-                // echo writes to stdout only. If stderr is redirected, just create/truncate the stderr target.
-                Files.write(path, new byte[0], StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
-                System.out.println(message);
-            }
-            case stderr_append -> {
-                // echo writes to stdout only. If stderr is appended, just ensure the file exists.
-                Files.write(path, new byte[0], StandardOpenOption.CREATE);
-                System.out.println(message);
-            }
-        }
+    private static int runEcho(Command command, Stdio io) {
+        io.out().println(String.join(" ", command.args()));
+        return 0;
     }
 
-    private static void runCd(Command command) {
-        if (command.args.length == 0) {
-            return;
+    private static int runCd(Command command, Stdio io) {
+        if (command.args().length == 0) {
+            return 0;
         }
-        var targetPath = command.args[0];
+        var targetPath = command.args()[0];
         var separator = System.getProperty("file.separator");
         if (targetPath.equals(HOME) || targetPath.startsWith(HOME + separator)) {
             var homeDir = System.getenv("HOME");
@@ -772,7 +790,8 @@ public class Main {
         }
         if (!Files.isDirectory(newPath)) {
             var error = String.format("cd: %s: No such file or directory", targetPath);
-            System.out.println(error);
+            io.out().println(error);
+            return 1;
         } else {
             // Use the real/normalized filesystem path so that `..` behaves correctly
             try {
@@ -781,110 +800,212 @@ public class Main {
                 pwd = newPath.toAbsolutePath().normalize();
             }
         }
+        return 0;
     }
 
-    private static void runNotBuiltin(Command command) throws IOException, InterruptedException {
-        var executable = findExecutable(command.command);
-        if (executable != null) {
-            var execCommand = new ArrayList<String>();
-            execCommand.add("bash");
-            execCommand.add("-lc");
-
-            StringBuilder script = new StringBuilder();
-            if (command.redirectType != null) {
-                // When redirection is requested, run directly so bash handles redirection reliably
-                script.append("'").append(executable.replace("'", "'\\''")).append("'");
-            } else {
-                // Preserve argv[0] for `type` output etc.
-                script.append("exec -a ");
-                script.append("'").append(command.command.replace("'", "'\\''")).append("'");
-                script.append(" ");
-                script.append("'").append(executable.replace("'", "'\\''")).append("'");
+    // Runs the external program of the same name with a builtin's streams (for builtins that hand over to the real
+    // program, like `kill -l`): its output is copied to io, so redirections the caller already opened, or a pipe,
+    // apply without opening anything again. Only parks while waiting, so it can run on a pipeline's virtual thread.
+    private static int runExternal(Command command, Stdio io) throws IOException, InterruptedException {
+        var executable = findExecutable(command.command());
+        if (executable == null) {
+            io.out().println(String.format("%s: command not found", command.command()));
+            return 127;
+        }
+        var execCommand = new ArrayList<String>();
+        execCommand.add(executable);
+        execCommand.addAll(List.of(command.args()));
+        Process process = new ProcessBuilder(execCommand)
+                .directory(pwd.toFile())
+                .redirectInput(NO_INPUT)
+                .start();
+        Thread err = Thread.ofVirtual().start(() -> {
+            try (InputStream in = process.getErrorStream()) {
+                in.transferTo(io.err());
+            } catch (IOException ignored) {
             }
+        });
+        try (InputStream in = process.getInputStream()) {
+            in.transferTo(io.out());
+        }
+        err.join();
+        io.out().flush();
+        io.err().flush();
+        return process.onExit().join().exitValue();
+    }
 
-            for (String arg : command.args) {
-                script.append(" ");
-                script.append("'").append(arg.replace("'", "'\\''")).append("'");
-            }
+    private static int runNotBuiltin(Command command, Redirections redirections)
+            throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        Process process = spawn(command, false, redirections);
+        if (process == null) {
+            return 127;
+        }
 
-            // Shell-level redirection for output/error
-            if (command.redirectType == RedirectType.stderr_append) {
-                script.append(" 2>> ");
-                script.append("'").append(Path.of(command.redirectTo).toAbsolutePath().toString().replace("'", "'\\''")).append("'");
-            }
-            if (command.redirectType == RedirectType.stderr) {
-                script.append(" 2> ");
-                script.append("'").append(Path.of(command.redirectTo).toAbsolutePath().toString().replace("'", "'\\''")).append("'");
-            }
-            if (command.redirectType == RedirectType.stdout_append) {
-                script.append(" 1>> ");
-                script.append("'").append(Path.of(command.redirectTo).toAbsolutePath().toString().replace("'", "'\\''")).append("'");
-            }
-            if (command.redirectType == RedirectType.stdout) {
-                script.append(" 1> ");
-                script.append("'").append(Path.of(command.redirectTo).toAbsolutePath().toString().replace("'", "'\\''")).append("'");
-            }
+        String mode = BASH_LAUNCH ? "bash" : "direct";
+        long waitStart = Trace.begin();
+        int exitCode = process.waitFor();
+        Metrics.since("run." + mode, start);
+        Trace.end("wait", waitStart, command.command(), exitCode);
+        return exitCode;
+    }
 
-            // Ensure redirect target file exists for append modes
-            if (command.redirectType == RedirectType.stderr_append || command.redirectType == RedirectType.stdout_append) {
-                try {
-                    Files.createDirectories(Path.of(command.redirectTo).toAbsolutePath().getParent());
-                    Files.write(Path.of(command.redirectTo).toAbsolutePath(), new byte[0], StandardOpenOption.CREATE);
-                } catch (IOException ignored) {
-                }
-            }
+    // Starts an external command, or prints "command not found" and returns null. A background command reads
+    // /dev/null instead of competing with the line editor for the terminal.
+    private static Process spawn(Command command, boolean background, Redirections redirections) throws IOException {
+        var executable = findExecutable(command.command());
+        if (executable == null) {
+            var error = String.format("%s: command not found", command.command());
+            System.out.println(error);
+            return null;
+        }
 
-            execCommand.add(script.toString());
-            var processBuilder = new ProcessBuilder(execCommand);
+        long start = System.nanoTime();
+        Process process = BASH_LAUNCH
+                ? startViaBash(command, executable, background, redirections)
+                : startDirect(command, executable, background, redirections);
+        String mode = BASH_LAUNCH ? "bash" : "direct";
+        Metrics.since("spawn." + mode, start);
+        spawnNanos += System.nanoTime() - start;
+        Trace.end("spawn", start, command.command(), process.pid());
+        return process;
+    }
 
-            // Let bash handle redirection via the script. Keep both streams inherited.
-            processBuilder.redirectOutput(ProcessBuilder.Redirect.INHERIT);
-            processBuilder.redirectError(ProcessBuilder.Redirect.INHERIT);
+    // Runs the executable itself, with the redirected files handed to it through ProcessBuilder.
+    private static Process startDirect(Command command, String executable, boolean background,
+            Redirections redirections) throws IOException {
+        var execCommand = new ArrayList<String>();
+        // The path the index found, so the JVM does not search PATH again; the child's argv[0] is that path, since
+        // ProcessBuilder cannot set it apart from the program. Messages keep the name as typed.
+        execCommand.add(executable);
+        execCommand.addAll(List.of(command.args()));
+
+        var processBuilder = new ProcessBuilder(execCommand);
+        processBuilder.directory(pwd.toFile());
+        processBuilder.redirectInput(background ? NO_INPUT : ProcessBuilder.Redirect.INHERIT);
+        processBuilder.redirectOutput(ProcessBuilder.Redirect.INHERIT);
+        processBuilder.redirectError(ProcessBuilder.Redirect.INHERIT);
+        redirections.applyTo(processBuilder);
+        return processBuilder.start();
+    }
 
-            var process = processBuilder.start();
-            int exitCode = process.waitFor();
-            if (exitCode != 0) {}
-        } else {
-            var error = String.format("%s: command not found", command.command);
-            System.out.println(error);
+    // Compatibility mode (SHELL_LAUNCH=bash): let `bash -lc` exec the program. Redirections are set up as for a
+    // direct start, so bash only ever sees the command itself.
+    private static Process startViaBash(Command command, String executable, boolean background,
+            Redirections redirections) throws IOException {
+        var execCommand = new ArrayList<String>();
+        execCommand.add("bash");
+        execCommand.add("-lc");
+
+        StringBuilder script = new StringBuilder();
+        // Preserve argv[0] for `type` output etc.
+        script.append("exec -a ");
+        script.append("'").append(command.command().replace("'", "'\\''")).append("'");
+        script.append(" ");
+        script.append("'").append(executable.replace("'", "'\\''")).append("'");
+
+        for (String arg : command.args()) {
+            script.append(" ");
+            script.append("'").append(arg.replace("'", "'\\''")).append("'");
+        }
+
+        execCommand.add(script.toString());
+        var processBuilder = new ProcessBuilder(execCommand);
+        processBuilder.redirectInput(background ? NO_INPUT : ProcessBuilder.Redirect.INHERIT);
+        processBuilder.redirectOutput(ProcessBuilder.Redirect.INHERIT);
+        processBuilder.redirectError(ProcessBuilder.Redirect.INHERIT);
+        redirections.applyTo(processBuilder);
+        return processBuilder.start();
+    }
+
+    // Resolves a user-supplied path against the shell's working directory (pwd).
+    private static Path resolvePath(String pathStr) {
+        Path path = Path.of(pathStr);
+        if (!path.isAbsolute()) {
+            path = pwd.resolve(path);
         }
+        return path.normalize();
     }
 
 
-    private static void runType(Command command) {
-        if (command.args.length == 0) {
-            System.out.println("type: not found");
-            return;
+    private static int runType(Command command, Stdio io) {
+        if (command.args().length == 0) {
+            io.out().println("type: not found");
+            return 1;
         }
-        var arg0 = command.args[0];
-        var toType = CommandName.of(arg0);
-        if (toType == null) {
-            var executable = findExecutable(arg0);
+        var arg0 = command.args()[0];
+        if ("time".equals(arg0)) {
+            io.out().println("time is a shell keyword");
+        } else if (!builtins.contains(arg0)) {
+            var executable = pathIndex.resolve(arg0);
             if (executable != null) {
                 var message = String.format("%s is %s", arg0, executable);
-                System.out.println(message);
+                io.out().println(message);
             } else {
                 var error = String.format("%s: not found", arg0);
-                System.out.println(error);
+                io.out().println(error);
+                return 1;
             }
         } else {
-            var message = String.format("%s is a shell builtin", toType);
-            System.out.println(message);
+            var message = String.format("%s is a shell builtin", arg0);
+            io.out().println(message);
         }
+        return 0;
     }
 
     private static String findExecutable(String commandName) {
-        var pathEnv = System.getenv(PATH);
-        var directories = pathEnv.split(System.getProperty("path.separator"));
+        return pathIndex.lookup(commandName);
+    }
 
-        for (var dir : directories) {
-            var filePath = Paths.get(dir, commandName);
-            if (Files.isExecutable(filePath)) {
-                return filePath.toAbsolutePath().toString();
+    private static int runHash(Command command, Stdio io) {
+        // Support:
+        //  - hash             (list remembered commands with hit counts)
+        //  - hash -r          (forget everything and rescan PATH)
+        //  - hash -d <name>   (forget one command)
+        //  - hash -t <name>   (print the remembered path)
+        //  - hash <name>...   (look up and remember)
+        if (command.args().length == 0) {
+            var lines = pathIndex.describe();
+            if (lines.isEmpty()) {
+                io.out().println("hash: hash table empty");
+            }
+            for (String line : lines) {
+                io.out().println(line);
             }
+            return 0;
         }
 
-        return null;
+        var flag = command.args()[0];
+        if ("-r".equals(flag)) {
+            pathIndex.reset();
+            return 0;
+        }
+
+        int status = 0;
+        if ("-d".equals(flag) || "-t".equals(flag)) {
+            for (int i = 1; i < command.args().length; i++) {
+                var name = command.args()[i];
+                var path = pathIndex.remembered(name);
+                if ("-d".equals(flag) && pathIndex.forget(name)) {
+                    continue;
+                }
+                if ("-t".equals(flag) && path != null) {
+                    io.out().println(path);
+                    continue;
+                }
+                io.out().println(String.format("hash: %s: not found", name));
+                status = 1;
+            }
+            return status;
+        }
+
+        for (String name : command.args()) {
+            if (pathIndex.lookup(name) == null) {
+                io.out().println(String.format("hash: %s: not found", name));
+                status = 1;
+            }
+        }
+        return status;
     }
 
     private static void runPipeline(List<Command> commands) throws IOException, InterruptedException {
@@ -892,116 +1013,272 @@ public class Main {
             throw new IllegalArgumentException("pipeline must have at least 2 commands");
         }
 
+        Started started = startPipeline(commands, false);
+        if (started == null) {
+            return;
+        }
+        long waitStart = Trace.begin();
+        lastStatus = awaitPipeline(started);
+        Trace.end("pipeline.wait", waitStart, null, commands.size());
+        stageBytes = started.bytes();
+    }
+
+    // Whether `command` runs on a thread of the shell rather than as a process.
+    private static boolean inProcess(Builtin builtin, Command command, boolean pipedInput) {
+        return builtin != null && builtin.pipelineCapable() && builtin.accepts(command, pipedInput);
+    }
+
+    // A started pipeline: one process per external stage (null for builtins), the threads running the builtins, the
+    // counters of the builtins' output (null for processes, which write into kernel pipes), each builtin's exit status
+    // once its thread is done, and each stage's redirections, closed once the pipeline is done.
+    private record Started(Process[] procs, List<Thread> builtins, CountingOutputStream[] counters, int[] statuses,
+            Redirections[] redirections) {
+        List<Process> processes() {
+            return Arrays.stream(procs).filter(Objects::nonNull).toList();
+        }
+
+        long[] bytes() {
+            return Arrays.stream(counters).mapToLong(c -> c == null ? -1 : c.count()).toArray();
+        }
+    }
+
+    // Starts every stage of a pipeline (a single stage is fine too); null (with lastStatus set) if a redirection
+    // failed or a command was not found. The first stage of a background pipeline reads /dev/null, and `cd` and
+    // `exit` in it only affect the job, i.e. nothing.
+    //
+    // Stage i's output reaches stage i + 1 only while neither redirects it (linked[i]); otherwise the writer's own
+    // stdout is /dev/null and the reader's own stdin is empty, as in bash (`a >f | b`, `a | b <f`). With
+    // `a 2>&1 >f | b` only a's stderr is linked.
+    private static Started startPipeline(List<Command> commands, boolean background) throws IOException {
         int n = commands.size();
+        Redirections[] redirections = new Redirections[n];
+        for (int i = 0; i < n; i++) {
+            redirections[i] = openRedirections(commands.get(i));
+            if (redirections[i] == null) {
+                closeAll(redirections);
+                return null;
+            }
+        }
+        boolean[] linked = new boolean[n];
+        for (int i = 0; i + 1 < n; i++) {
+            linked[i] = redirections[i].writesOwnStdout() && redirections[i + 1].keeps(0);
+        }
+
+        // Only external or "ls" builtin (which is executed as external)
+        boolean[] external = new boolean[n];
+        String[] executables = new String[n];
+        Builtin[] stages = new Builtin[n];
+        for (int i = 0; i < n; i++) {
+            stages[i] = builtins.get(commands.get(i).command());
+            boolean pipedInput = i > 0 || background || !redirections[i].keeps(0);
+            external[i] = !inProcess(stages[i], commands.get(i), pipedInput);
+            if (external[i] && (executables[i] = findExecutable(commands.get(i).command())) == null) {
+                System.out.println(String.format("%s: command not found", commands.get(i).command()));
+                closeAll(redirections);
+                lastStatus = 127;
+                return null;
+            }
+        }
+
+        // Start each run of consecutive external stages connected by OS pipes.
         Process[] procs = new Process[n];
-        // Start external processes from right to left, skipping builtins (except ls)
-        for (int i = n - 1; i >= 0; i--) {
-            Command c = commands.get(i);
-            CommandName name = CommandName.of(c.command);
-            // Only external or "ls" builtin (which is executed as external)
-            if (name == null || name == CommandName.ls) {
-                String exec = findExecutable(c.command);
-                if (exec == null) {
-                    System.out.println(String.format("%s: command not found", c.command));
-                    // Clean up any started processes
-                    for (int j = i + 1; j < n; j++) {
-                        if (procs[j] != null && procs[j].isAlive()) procs[j].destroy();
-                    }
-                    return;
-                }
+        var mode = ExternalPipeline.defaultMode();
+        for (int i = 0; i < n; ) {
+            if (!external[i]) {
+                i++;
+                continue;
+            }
+            int end = i + 1;
+            while (end < n && external[end] && linked[end - 1] && redirections[end - 1].keeps(1)) {
+                end++;
+            }
+
+            var builders = new ArrayList<ProcessBuilder>();
+            for (int k = i; k < end; k++) {
+                Command c = commands.get(k);
                 List<String> cmd = new ArrayList<>();
-                cmd.add(exec);
-                cmd.addAll(List.of(c.args));
+                cmd.add(executables[k]);
+                cmd.addAll(List.of(c.args()));
                 ProcessBuilder pb = new ProcessBuilder(cmd);
                 pb.directory(pwd.toFile());
                 pb.redirectError(ProcessBuilder.Redirect.INHERIT);
-                if (i == n - 1) {
-                    pb.redirectOutput(ProcessBuilder.Redirect.INHERIT);
-                } else {
-                    pb.redirectOutput(ProcessBuilder.Redirect.PIPE);
-                }
-                procs[i] = pb.start();
+                builders.add(pb);
+            }
+            // Input from / output to a neighbouring builtin stays a PIPE that the builtin's thread uses directly.
+            if (i == 0) {
+                builders.get(0).redirectInput(background ? NO_INPUT : ProcessBuilder.Redirect.INHERIT);
+            } else if (!linked[i - 1]) {
+                builders.get(0).redirectInput(NO_INPUT);
+            }
+            if (end == n) {
+                builders.get(builders.size() - 1).redirectOutput(ProcessBuilder.Redirect.INHERIT);
+            } else if (!linked[end - 1]) {
+                builders.get(builders.size() - 1).redirectOutput(ProcessBuilder.Redirect.DISCARD);
+            }
+            // Within the run every stage keeps its pipes (that is what linked means), so only the ends change.
+            for (int k = i; k < end; k++) {
+                redirections[k].applyTo(builders.get(k - i));
             }
-        }
 
-        // Find the next external (or ls) process after a given index
-        java.util.function.IntUnaryOperator nextExternal = idx -> {
-            for (int i = idx + 1; i < n; i++) {
-                CommandName name = CommandName.of(commands.get(i).command);
-                if (name == null || name == CommandName.ls) return i;
+            long start = System.nanoTime();
+            List<Process> started = ExternalPipeline.start(builders, mode);
+            Metrics.since("spawn.pipeline", start);
+            spawnNanos += System.nanoTime() - start;
+            Trace.end("pipeline.spawn", start, commands.get(i).command(), end - i);
+            for (int k = i; k < end; k++) {
+                procs[k] = started.get(k - i);
             }
-            return -1;
-        };
+            i = end;
+        }
 
-        // For each command except the last, pump data if possible
-        List<Thread> pumps = new ArrayList<>();
-        for (int i = 0; i < n - 1; i++) {
-            CommandName srcName = CommandName.of(commands.get(i).command);
-            int dstIdx = nextExternal.applyAsInt(i);
-            if (dstIdx == -1) break;
-            if (srcName != null && srcName != CommandName.ls) {
-                // Builtin: write to next external's stdin
-                final int idx = i;
-                final int outIdx = dstIdx;
-                Thread t = new Thread(() -> {
-                    var originalOut = System.out;
-                    try {
-                        System.setOut(new java.io.PrintStream(procs[outIdx].getOutputStream(), true));
-                        run(commands.get(idx));
-                    } catch (Exception ignored) {
-                    } finally {
-                        System.out.flush();
-                        System.setOut(originalOut);
-                        try {
-                            procs[outIdx].getOutputStream().close();
-                        } catch (IOException ignored) {}
-                    }
-                });
-                t.start();
-                pumps.add(t);
-                break; // Only first builtin in pipeline is supported as producer
-            } else {
-                // External: pump output to next external's input
-                final int srcIdx = i;
-                final int dstIdx2 = dstIdx;
-                Thread t = new Thread(() -> {
-                    try (var in = procs[srcIdx].getInputStream(); var out = procs[dstIdx2].getOutputStream()) {
-                        byte[] buf = new byte[8192];
-                        int len;
-                        while ((len = in.read(buf)) != -1) {
-                            try {
-                                out.write(buf, 0, len);
-                                out.flush();
-                            } catch (IOException brokenPipe) {
-                                break;
-                            }
-                        }
+        // Two linked processes in different runs: the first one's stderr is the link (`a 2>&1 >f | b`).
+        for (int i = 0; i + 1 < n; i++) {
+            if (linked[i] && external[i] && external[i + 1] && !redirections[i].keeps(1)) {
+                InputStream from = procs[i].getErrorStream();
+                OutputStream to = procs[i + 1].getOutputStream();
+                Thread.ofPlatform().daemon().name("pipe-stderr").start(() -> {
+                    try (from; to) {
+                        from.transferTo(to);
                     } catch (IOException ignored) {
-                    } finally {
-                        try {
-                            procs[dstIdx2].getOutputStream().close();
-                        } catch (IOException ignored) {}
                     }
                 });
-                t.start();
-                pumps.add(t);
             }
         }
 
-        // If the last command is a builtin (except ls), just run it and ignore pipeline input
-        Command last = commands.get(n - 1);
-        CommandName lastName = CommandName.of(last.command);
-        if (lastName != null && lastName != CommandName.ls) {
-            run(last);
+        // Every builtin runs on its own virtual thread with its own streams: it reads the previous stage's output
+        // (an OS pipe, whether that stage is a process or another builtin) and writes into the next stage's input.
+        List<Thread> builtins = new ArrayList<>();
+        InputStream[] builtinIn = new InputStream[n];
+        CountingOutputStream[] counters = new CountingOutputStream[n];
+        int[] statuses = new int[n];
+        for (int i = 0; i < n; i++) {
+            if (external[i]) {
+                continue;
+            }
+            if (i == 0 || !linked[i - 1]) {
+                builtinIn[i] = InputStream.nullInputStream();
+            } else if (builtinIn[i] == null) {
+                builtinIn[i] = redirections[i - 1].keeps(1) ? procs[i - 1].getInputStream() : procs[i - 1].getErrorStream();
+            }
+
+            PrintStream out;
+            if (i == n - 1) {
+                counters[i] = new CountingOutputStream(System.out, true);
+                out = new PrintStream(counters[i], true, System.out.charset());
+            } else if (!linked[i]) {
+                counters[i] = new CountingOutputStream(OutputStream.nullOutputStream(), false);
+                out = new PrintStream(counters[i], false);
+            } else if (external[i + 1]) {
+                counters[i] = new CountingOutputStream(new BufferedOutputStream(procs[i + 1].getOutputStream()), false);
+                out = new PrintStream(counters[i], false);
+            } else {
+                var pipe = Pipe.open();
+                builtinIn[i + 1] = pipeInput(pipe.source());
+                var sink = new BufferedOutputStream(pipeOutput(pipe.sink()));
+                counters[i] = new CountingOutputStream(sink, false);
+                out = new PrintStream(counters[i], false);
+            }
+
+            var command = commands.get(i);
+            var own = new Stdio(builtinIn[i], out, System.err);
+            var io = redirections[i].stdio(own);
+            final int stage = i;
+            Builtin builtin = stages[i];
+            boolean inert = background && builtin.changesShellState();
+            builtins.add(Thread.ofVirtual().name("builtin-" + command.command()).start(() -> {
+                long start = Trace.begin();
+                try {
+                    if (!inert) {
+                        statuses[stage] = builtin.run(command, io);
+                    }
+                } catch (Exception e) {
+                    statuses[stage] = 1;
+                } finally {
+                    Trace.end("pipeline.builtin", start, command.command(), stage);
+                    // A redirected stream is flushed here and closed with the pipeline's redirections.
+                    io.out().flush();
+                    io.err().flush();
+                    // The last stage's counter only flushes into System.out when closed.
+                    own.out().close();
+                    // Unread input: let the upstream stage see a closed pipe instead of blocking on a full one.
+                    try {
+                        own.in().close();
+                    } catch (IOException ignored) {}
+                }
+            }));
         }
 
-        // Wait for pumps to finish
-        for (Thread t : pumps) {
+        return new Started(procs, builtins, counters, statuses, redirections);
+    }
+
+    private static void closeAll(Redirections[] redirections) {
+        for (Redirections r : redirections) {
+            if (r != null) {
+                try {
+                    r.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    // Streams over the ends of a Pipe between two builtins. Channels.newInputStream/newOutputStream hold a monitor
+    // while blocked, which before JDK 24 pins the virtual thread to its carrier: with a few builtin stages blocked on
+    // each other, the stage that could make progress gets no carrier to run on.
+    private static InputStream pipeInput(Pipe.SourceChannel source) {
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return len == 0 ? 0 : source.read(ByteBuffer.wrap(b, off, len));
+            }
+
+            @Override
+            public void close() throws IOException {
+                source.close();
+            }
+        };
+    }
+
+    private static OutputStream pipeOutput(Pipe.SinkChannel sink) {
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                var buffer = ByteBuffer.wrap(b, off, len);
+                while (buffer.hasRemaining()) {
+                    sink.write(buffer);
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                sink.close();
+            }
+        };
+    }
+
+    // Waits for a started pipeline and returns the exit status of its last stage. Only parks (no Process.waitFor,
+    // which pins a virtual thread), so background jobs can wait on their virtual threads.
+    private static int awaitPipeline(Started started) throws InterruptedException {
+        Process[] procs = started.procs();
+        int n = procs.length;
+        for (Thread t : started.builtins()) {
             t.join();
         }
-        // Wait for last process to finish if it's external
+        // The last stage's status: its process's, or what its builtin returned (the threads are joined above)
+        int status = started.statuses()[n - 1];
         if (procs[n - 1] != null) {
-            procs[n - 1].waitFor();
+            status = procs[n - 1].onExit().join().exitValue();
         }
         // Kill upstream processes if still running
         for (int i = 0; i < n - 1; i++) {
@@ -1012,116 +1289,323 @@ public class Main {
         }
         // Wait for all upstream to finish
         for (int i = 0; i < n - 1; i++) {
-            if (procs[i] != null) procs[i].waitFor();
+            if (procs[i] != null) procs[i].onExit().join();
         }
-        // Manually close all srcIn/dstOut streams
-        for (int i = 0; i < n; i++) {
-            if (procs[i] != null) {
-                try { procs[i].getInputStream().close(); } catch (IOException ignored) {}
-                try { procs[i].getOutputStream().close(); } catch (IOException ignored) {}
+        closeAll(started.redirections());
+        return status;
+    }
+
+    // Starts a `cmd &` line as a job and prints its number and pid, like bash's `[1] 12345`.
+    private static void runInBackground(Pipeline pipeline, String line) throws IOException {
+        List<Command> commands = pipeline.stages();
+        Builtin first = builtins.get(commands.get(0).command());
+        Started started;
+        // (A background job's stdin is /dev/null, which a builtin reads as an empty pipe.)
+        if (commands.size() == 1 && !inProcess(first, commands.get(0), true)) {
+            Redirections redirections = openRedirections(commands.get(0));
+            if (redirections == null) {
+                return;
+            }
+            Process process = spawn(commands.get(0), true, redirections);
+            if (process == null) {
+                redirections.close();
+                return;
+            }
+            started = new Started(new Process[] {process}, List.of(), new CountingOutputStream[1], new int[1],
+                    new Redirections[] {redirections});
+        } else {
+            started = startPipeline(commands, true);
+            if (started == null) {
+                return;
             }
         }
+        var job = jobs.start(jobLine(line), started.processes(), () -> awaitPipeline(started));
+        System.out.println(job.pid() >= 0
+                ? String.format("[%d] %d", job.id(), job.pid())
+                : String.format("[%d]", job.id()));
     }
-    private static void runHistoryRead(String pathStr) {
-        if (pathStr == null || pathStr.isBlank()) {
-            return;
-        }
 
-        Path path = Path.of(pathStr);
-        if (!path.isAbsolute()) {
-            path = pwd.resolve(path);
-        }
-        path = path.normalize();
+    // The line as `jobs` shows it: without the trailing `&`.
+    private static String jobLine(String line) {
+        String stripped = line.strip();
+        return stripped.substring(0, stripped.length() - 1).strip();
+    }
 
-        try {
-            List<String> lines = Files.readAllLines(path);
-            for (String l : lines) {
-                if (l == null) continue;
-                String s = l.stripTrailing();
-                if (s.isBlank()) continue; // ignore empty lines
-                history.add(s);
+    private static int runJobs(Command command, Stdio io) {
+        // Support:
+        //  - jobs       (the job table)
+        //  - jobs -l    (with pids)
+        //  - jobs -p    (only the pids)
+        boolean pids = Arrays.asList(command.args()).contains("-l");
+        if (Arrays.asList(command.args()).contains("-p")) {
+            for (Jobs.Job job : jobs.all()) {
+                if (job.pid() >= 0) {
+                    io.out().println(job.pid());
+                }
             }
-            // Everything we just loaded is already persisted.
-            historyPersistedIndex = history.size();
-        } catch (IOException ignored) {
-            // If file can't be read, do nothing for this stage
+            return 0;
+        }
+        for (String line : jobs.describe(pids)) {
+            io.out().println(line);
         }
+        return 0;
     }
 
-    private static void runHistoryWrite(String pathStr) {
-        if (pathStr == null || pathStr.isBlank()) {
-            return;
+    private static int runFg(Command command, Stdio io) throws IOException, InterruptedException {
+        var job = job("fg", command.args().length > 0 ? command.args()[0] : null, io);
+        if (job == null) {
+            return 1;
         }
-
-        Path path = Path.of(pathStr);
-        if (!path.isAbsolute()) {
-            path = pwd.resolve(path);
+        jobs.foreground(job);
+        io.out().println(job.line());
+        io.out().flush();
+        if (job.state() == Jobs.State.STOPPED) {
+            signal(handles(job), "CONT", io);
+            job.stopped(false);
         }
-        path = path.normalize();
+        return job.await();
+    }
 
-        // Build file content with trailing newline
-        StringBuilder sb = new StringBuilder();
-        for (String cmd : history) {
-            if (cmd == null) continue;
-            sb.append(cmd).append("\n");
+    private static int runBg(Command command, Stdio io) throws IOException, InterruptedException {
+        var job = job("bg", command.args().length > 0 ? command.args()[0] : null, io);
+        if (job == null) {
+            return 1;
         }
+        if (job.state() != Jobs.State.STOPPED) {
+            io.out().println(String.format("bg: job %d already in background", job.id()));
+            return 0;
+        }
+        signal(handles(job), "CONT", io);
+        job.stopped(false);
+        io.out().println(String.format("[%d]+ %s &", job.id(), job.line()));
+        return 0;
+    }
 
-        try {
-            if (path.getParent() != null) {
-                Files.createDirectories(path.getParent());
+    private static int runWait(Command command, Stdio io) {
+        // Support:
+        //  - wait               (every running job)
+        //  - wait %n|pid ...    (those jobs or processes; the status is the last one's)
+        if (command.args().length == 0) {
+            for (Jobs.Job job : jobs.all()) {
+                if (job.state() == Jobs.State.RUNNING) {
+                    job.await();
+                }
             }
-        } catch (IOException ignored) {
+            return 0;
         }
+        int status = 0;
+        for (String arg : command.args()) {
+            if (arg.startsWith("%")) {
+                var job = job("wait", arg, io);
+                status = job != null ? job.await() : 127;
+                continue;
+            }
+            long pid;
+            try {
+                pid = Long.parseLong(arg);
+            } catch (NumberFormatException e) {
+                io.out().println(String.format("wait: `%s': not a pid or valid job spec", arg));
+                status = 2;
+                continue;
+            }
+            Process process = jobs.all().stream()
+                    .flatMap(job -> job.processes().stream())
+                    .filter(p -> p.pid() == pid)
+                    .findFirst()
+                    .orElse(null);
+            if (process == null) {
+                io.out().println(String.format("wait: pid %d is not a child of this shell", pid));
+                status = 127;
+                continue;
+            }
+            status = process.onExit().join().exitValue();
+        }
+        return status;
+    }
 
-        try {
-            Files.writeString(path, sb.toString(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
-            // All history entries are now persisted.
-            historyPersistedIndex = history.size();
-        } catch (IOException ignored) {
-            // If file can't be written, do nothing for this stage
+    private static int runKill(Command command, Stdio io) throws IOException, InterruptedException {
+        // Support:
+        //  - kill [-SIGNAL | -s SIGNAL | -n NUMBER] %n|pid ...
+        //  - kill -l            (handed to the system's kill)
+        String[] args = command.args();
+        if (args.length > 0 && ("-l".equals(args[0]) || "-L".equals(args[0]))) {
+            return runExternal(command, io);
+        }
+        String signal = "TERM";
+        int i = 0;
+        if (args.length > 1 && ("-s".equals(args[0]) || "-n".equals(args[0]))) {
+            signal = signalName(args[1]);
+            i = 2;
+        } else if (args.length > 0 && args[0].startsWith("-") && args[0].length() > 1) {
+            signal = signalName(args[0].substring(1));
+            i = 1;
+        }
+        if (i == args.length) {
+            io.out().println("kill: usage: kill [-s sigspec | -n signum | -sigspec] pid | jobspec ...");
+            return 2;
+        }
+
+        int status = 0;
+        var targets = new ArrayList<ProcessHandle>();
+        for (; i < args.length; i++) {
+            if (args[i].startsWith("%")) {
+                var job = job("kill", args[i], io);
+                if (job == null) {
+                    status = 1;
+                    continue;
+                }
+                targets.addAll(handles(job));
+                switch (signal) {
+                    case "STOP", "TSTP", "TTIN", "TTOU" -> job.stopped(true);
+                    case "CONT" -> job.stopped(false);
+                    default -> {
+                        // the job's supervisor notices if it ends
+                    }
+                }
+                continue;
+            }
+            try {
+                long pid = Long.parseLong(args[i]);
+                var handle = ProcessHandle.of(pid);
+                if (handle.isEmpty() || pid == ProcessHandle.current().pid()) {
+                    io.out().println(String.format("kill: (%d) - No such process", pid));
+                    status = 1;
+                } else {
+                    targets.add(handle.get());
+                }
+            } catch (NumberFormatException e) {
+                io.out().println(String.format("kill: %s: arguments must be process or job IDs", args[i]));
+                status = 1;
+            }
         }
+        return signal(targets, signal, io) == 0 ? status : 1;
     }
 
-    private static void runHistoryAppend(String pathStr) {
-        if (pathStr == null || pathStr.isBlank()) {
-            return;
+    // The job named by `spec` (%n, %+, %name...; the current job when null), or null after saying there is none.
+    private static Jobs.Job job(String builtin, String spec, Stdio io) {
+        var job = jobs.resolve(spec == null ? "%+" : spec);
+        if (job == null) {
+            io.out().println(spec == null
+                    ? builtin + ": current: no such job"
+                    : String.format("%s: %s: no such job", builtin, spec));
         }
+        return job;
+    }
 
-        Path path = Path.of(pathStr);
-        if (!path.isAbsolute()) {
-            path = pwd.resolve(path);
+    private static List<ProcessHandle> handles(Jobs.Job job) {
+        return job.processes().stream().map(Process::toHandle).toList();
+    }
+
+    // "9" -> "KILL", "sigterm" -> "TERM"; other numbers are left as they are.
+    private static String signalName(String spec) {
+        String name = spec.toUpperCase(Locale.ROOT);
+        if (name.startsWith("SIG")) {
+            name = name.substring(3);
+        }
+        return switch (name) {
+            case "1" -> "HUP";
+            case "2" -> "INT";
+            case "3" -> "QUIT";
+            case "9" -> "KILL";
+            case "15" -> "TERM";
+            case "18" -> "CONT";
+            case "19" -> "STOP";
+            case "20" -> "TSTP";
+            default -> name;
+        };
+    }
+
+    // TERM and KILL go through ProcessHandle; Java has no way to send other signals, so the system's kill does.
+    // Handles are taken before anything is sent: in a pipeline, killing one stage may end the next on its own.
+    // Returns 1 if a signal could not be sent, as kill does.
+    private static int signal(List<ProcessHandle> targets, String signal, Stdio io)
+            throws IOException, InterruptedException {
+        var alive = targets.stream().filter(ProcessHandle::isAlive).toList();
+        if (alive.isEmpty()) {
+            return 0;
+        }
+        if ("TERM".equals(signal) || "KILL".equals(signal)) {
+            int status = 0;
+            for (ProcessHandle handle : alive) {
+                boolean sent = "KILL".equals(signal) ? handle.destroyForcibly() : handle.destroy();
+                if (!sent && handle.isAlive()) {
+                    io.out().println(String.format("kill: (%d) - Operation not permitted", handle.pid()));
+                    status = 1;
+                }
+            }
+            return status;
+        }
+        var killCommand = new ArrayList<String>();
+        killCommand.add("kill");
+        killCommand.add("-" + signal);
+        for (ProcessHandle handle : alive) {
+            killCommand.add(Long.toString(handle.pid()));
         }
-        path = path.normalize();
+        return new ProcessBuilder(killCommand).inheritIO().start().onExit().join().exitValue() == 0 ? 0 : 1;
+    }
+
+    private static int runStats(Command command, Stdio io) {
+        // Support:
+        //  - stats      (the last command line's breakdown, then every timer and counter)
+        //  - stats -j   (the same as JSON)
+        //  - stats -r   (reset)
+        List<String> args = Arrays.asList(command.args());
+        if (args.contains("-r")) {
+            Metrics.reset();
+            return 0;
+        }
+        if (args.contains("-j")) {
+            io.out().println(Metrics.json());
+            return 0;
+        }
+        CommandStats last = Metrics.last();
+        if (last != null) {
+            io.out().println("last: " + last.line());
+            io.out().printf("  parse %dus  spawn %dus  wall %dus  exit %d%n", last.parseNanos() / 1000,
+                    last.spawnNanos() / 1000, last.wallNanos() / 1000, last.exitStatus());
+            io.out().printf("  cpu shell %s  children user %s sys %s%n", micros(last.shellCpuNanos()),
+                    micros(last.childUserNanos()), micros(last.childSystemNanos()));
+            io.out().println("  bytes per stage " + Arrays.toString(last.stageBytes()));
+        }
+        for (String line : Metrics.summary()) {
+            io.out().println(line);
+        }
+        return 0;
+    }
 
-        // Append only commands that have not yet been written out.
-        if (historyPersistedIndex >= history.size()) {
-            return; // nothing new to append
+    private static String micros(long nanos) {
+        return nanos < 0 ? "?" : nanos / 1000 + "us";
+    }
+
+    private static void runHistoryRead(String pathStr) {
+        if (pathStr == null || pathStr.isBlank()) {
+            return;
         }
+        history.read(resolvePath(pathStr));
+    }
 
-        StringBuilder sb = new StringBuilder();
-        for (int i = historyPersistedIndex; i < history.size(); i++) {
-            String cmd = history.get(i);
-            if (cmd == null) continue;
-            sb.append(cmd).append("\n");
+    private static void runHistoryWrite(String pathStr) {
+        if (pathStr == null || pathStr.isBlank()) {
+            return;
         }
+        history.write(resolvePath(pathStr));
+    }
 
-        try {
-            if (path.getParent() != null) {
-                Files.createDirectories(path.getParent());
-            }
-        } catch (IOException ignored) {
+    private static void runHistoryReadNew(String pathStr) {
+        if (pathStr == null || pathStr.isBlank()) {
+            return;
         }
+        history.readNew(resolvePath(pathStr));
+    }
 
-        try {
-            Files.writeString(path, sb.toString(), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
-            // Update persisted index to reflect appended entries.
-            historyPersistedIndex = history.size();
-        } catch (IOException ignored) {
-            // If file can't be appended, do nothing for this stage
+    private static void runHistoryAppend(String pathStr) {
+        if (pathStr == null || pathStr.isBlank()) {
+            return;
         }
+        history.append(resolvePath(pathStr));
     }
 
-    private static void runHistory(int n) {
+    private static void runHistory(int n, Stdio io) {
         int total = history.size();
 
         // If n is invalid or larger than total, show all history.
@@ -1132,7 +1616,7 @@ public class Main {
 
         for (int i = start; i < total; i++) {
             // Expected: 4 spaces before 1, then two spaces after the number
-            System.out.printf("%5d  %s%n", i + 1, history.get(i));
+            io.out().printf("%5d  %s%n", history.base() + i + 1, history.get(i));
         }
     }
 }
\ No newline at end of file
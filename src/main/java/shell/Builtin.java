@@ -0,0 +1,57 @@
+package shell;
+
+import java.io.IOException;
+
+/**
+ * A command that runs inside the shell. It writes to the {@link Stdio} it is given, never to {@code System.out}, so it
+ * can run as a pipeline stage on its own thread.
+ *
+ * <p>The shell's own builtins are registered by {@code Main}; a class on the class path listed in
+ * {@code META-INF/services/shell.Builtin} (with a public no-argument constructor) adds one more, see {@link Builtins}.
+ */
+public interface Builtin {
+    String name();
+
+    /** Runs the command and returns its exit status, 0 for success, as a process would. */
+    int run(Command command, Stdio io) throws IOException, InterruptedException;
+
+    /**
+     * Whether it runs in-process as a pipeline stage (or a single command whose output is counted); if not, it is
+     * started like an external command of the same name.
+     */
+    default boolean pipelineCapable() {
+        return true;
+    }
+
+    /**
+     * Whether it handles this command line itself; if not, the external command of the same name runs instead (for
+     * a flag it does not implement, say). {@code pipedInput} tells whether its stdin is something other than the
+     * terminal: an earlier stage, a redirected file, or {@code /dev/null}.
+     */
+    default boolean accepts(Command command, boolean pipedInput) {
+        return true;
+    }
+
+    /** Whether it only changes the shell's own state ({@code cd}, {@code exit}), so in a background job it does nothing. */
+    default boolean changesShellState() {
+        return false;
+    }
+
+    /** What a builtin made with {@link #of} runs. */
+    @FunctionalInterface
+    interface Body {
+        int run(Command command, Stdio io) throws IOException, InterruptedException;
+    }
+
+    /** A pipeline-capable builtin that does not change the shell's state. */
+    static Builtin of(String name, Body body) {
+        return new Simple(name, true, false, body);
+    }
+
+    record Simple(String name, boolean pipelineCapable, boolean changesShellState, Body body) implements Builtin {
+        @Override
+        public int run(Command command, Stdio io) throws IOException, InterruptedException {
+            return body.run(command, io);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package shell;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+
+/**
+ * The builtins by name. Looking a command up is one hash probe that returns null for anything else, so the external
+ * commands that make up most lines cost no exception (as {@code Enum.valueOf} did) before PATH is searched.
+ *
+ * <p>The table is built once and never changes, so it is read from pipeline threads without locking.
+ */
+public final class Builtins {
+    private final Map<String, Builtin> byName;
+    private final List<String> names;
+
+    private Builtins(Map<String, Builtin> byName, List<String> names) {
+        this.byName = byName;
+        this.names = names;
+    }
+
+    /** Exactly {@code builtins}; on a duplicate name the first one wins. */
+    public static Builtins of(Collection<? extends Builtin> builtins) {
+        var byName = new HashMap<String, Builtin>(builtins.size() * 2);
+        var names = new ArrayList<String>(builtins.size());
+        for (Builtin builtin : builtins) {
+            if (byName.putIfAbsent(builtin.name(), builtin) == null) {
+                names.add(builtin.name());
+            }
+        }
+        return new Builtins(byName, List.copyOf(names));
+    }
+
+    /**
+     * {@code core} plus the builtins found through {@link ServiceLoader}, which cannot replace a core one. A provider
+     * that fails to load is reported on stderr and skipped.
+     */
+    public static Builtins load(List<? extends Builtin> core) {
+        var all = new ArrayList<Builtin>(core);
+        try {
+            ServiceLoader.load(Builtin.class).stream().forEach(provider -> {
+                try {
+                    all.add(provider.get());
+                } catch (ServiceConfigurationError e) {
+                    System.err.println("builtin: " + e.getMessage());
+                }
+            });
+        } catch (ServiceConfigurationError e) {
+            // A malformed provider file: the providers listed before it are kept.
+            System.err.println("builtin: " + e.getMessage());
+        }
+        return of(all);
+    }
+
+    /** The builtin called {@code name}, or null. */
+    public Builtin get(String name) {
+        return name == null ? null : byName.get(name);
+    }
+
+    public boolean contains(String name) {
+        return get(name) != null;
+    }
+
+    /** Names in registration order. */
+    public List<String> names() {
+        return names;
+    }
+}
@@ -0,0 +1,21 @@
+package shell;
+
+import java.util.List;
+
+/**
+ * One command of a pipeline. {@code patterns} is null unless a word of {@code commandWithArgs} is a glob pattern;
+ * then it runs parallel to {@code commandWithArgs}, holding each pattern word's {@link Lexer.Token#pattern} (and
+ * null for the other words) until {@link Glob#expand} replaces the patterns by what they match.
+ */
+public record Command(
+        String command,
+        String[] args,
+        String[] commandWithArgs,
+        List<Redirect> redirects,
+        String[] patterns) {
+
+    /** A command without glob patterns. */
+    public Command(String command, String[] args, String[] commandWithArgs, List<Redirect> redirects) {
+        this(command, args, commandWithArgs, redirects, null);
+    }
+}
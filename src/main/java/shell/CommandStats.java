@@ -0,0 +1,18 @@
+package shell;
+
+/**
+ * What one command line cost, split into the shell's overhead (parsing, spawning, its own CPU time) and the command's
+ * own (children's CPU time). Times are in nanoseconds, -1 where unknown. {@code stageBytes} has one entry per
+ * pipeline stage: the bytes it wrote, or -1 when they went through a kernel pipe or straight to a file or the
+ * terminal, where the shell does not see them.
+ */
+public record CommandStats(
+        String line,
+        long parseNanos,
+        long spawnNanos,
+        long wallNanos,
+        long shellCpuNanos,
+        long childUserNanos,
+        long childSystemNanos,
+        int exitStatus,
+        long[] stageBytes) {}
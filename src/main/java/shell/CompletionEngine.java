@@ -0,0 +1,270 @@
+package shell;
+
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * TAB completion: command names (builtins and PATH executables) for the first word of a command, file names for
+ * the words after it.
+ *
+ * <p>Candidates are kept in one sorted, de-duplicated array. A prefix selects a contiguous range that is found with
+ * two binary searches, so answering "which", "how many" and "longest common prefix" never scans the candidates
+ * or allocates a collection per keystroke. The command array is rebuilt only when the {@link PathIndex} generation
+ * moves; file names come from the sorted listings of a {@link DirectoryCache}.
+ */
+public final class CompletionEngine {
+    // Characters the lexer (or a glob) would otherwise read as something other than part of the word.
+    private static final String SPECIAL = " \t\n'\"\\|&;<>()$`*?[]!#";
+
+    private final String[] builtins;
+    private final PathIndex index;
+    private final DirectoryCache directories = new DirectoryCache(32);
+    private long generation = -1;
+    private String[] candidates;
+
+    public CompletionEngine(Collection<String> builtins, PathIndex index) {
+        this.builtins = builtins.toArray(new String[0]);
+        this.index = index;
+    }
+
+    /** Engine over a fixed candidate list (no PATH lookups). */
+    public static CompletionEngine of(Collection<String> candidates) {
+        var engine = new CompletionEngine(candidates, null);
+        engine.candidates = sortedUnique(engine.builtins, new String[0]);
+        return engine;
+    }
+
+    /** Candidates starting with {@code prefix}. An empty prefix matches nothing, like the first-word completion did. */
+    public Matches complete(String prefix) {
+        String[] all = candidates();
+        if (prefix == null || prefix.isEmpty()) {
+            return new Matches(all, 0, 0);
+        }
+        return range(all, prefix);
+    }
+
+    /**
+     * Completes the word that ends {@code before}, the line up to the cursor. The first word of a command (at the
+     * start of the line or after {@code |} or {@code &}) completes to a command name unless it contains a '/'; any
+     * other word completes to the names in its directory, relative to {@code cwd}, with a leading {@code ~/}
+     * meaning $HOME. Quotes and backslashes in the word are taken as the lexer takes them.
+     */
+    public Completion completeLine(String before, Path cwd) {
+        var word = new StringBuilder();
+        char quote = 0;
+        boolean started = false;
+        boolean command = true;
+        for (int i = 0; i < before.length(); i++) {
+            char c = before.charAt(i);
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                } else if (quote == '"' && c == '\\' && i + 1 < before.length()
+                        && "\"\\$`".indexOf(before.charAt(i + 1)) >= 0) {
+                    word.append(before.charAt(++i));
+                } else {
+                    word.append(c);
+                }
+                continue;
+            }
+            switch (c) {
+                case '\\' -> {
+                    if (i + 1 < before.length()) {
+                        word.append(before.charAt(++i));
+                    }
+                    started = true;
+                }
+                case '\'', '"' -> {
+                    quote = c;
+                    started = true;
+                }
+                case '|', '&' -> {
+                    word.setLength(0);
+                    started = false;
+                    command = true;
+                }
+                case '<', '>' -> {
+                    word.setLength(0);
+                    started = false;
+                    command = false;
+                }
+                default -> {
+                    if (Character.isWhitespace(c)) {
+                        command &= !started;
+                        word.setLength(0);
+                        started = false;
+                    } else {
+                        word.append(c);
+                        started = true;
+                    }
+                }
+            }
+        }
+        String text = word.toString();
+        if (command && text.indexOf('/') < 0) {
+            return new Completion(text, complete(text), null, quote);
+        }
+        String path = text;
+        String home = System.getenv("HOME");
+        if (path.startsWith("~/") && home != null && !home.isBlank()) {
+            path = home + path.substring(1);
+        }
+        int slash = path.lastIndexOf('/');
+        String name = path.substring(slash + 1);
+        Path dir;
+        try {
+            dir = slash < 0 ? cwd : cwd.resolve(path.substring(0, slash + 1));
+        } catch (InvalidPathException e) {
+            return new Completion(name, new Matches(new String[0], 0, 0), null, quote);
+        }
+        DirectoryCache.Listing listing = directories.list(dir);
+        if (listing == null) {
+            return new Completion(name, new Matches(new String[0], 0, 0), dir, quote);
+        }
+        // Dot files only complete from a "." prefix; any other prefix finds the same range in either array.
+        String[] names = name.startsWith(".") ? listing.names() : listing.visible();
+        return new Completion(name, range(names, name), dir, quote);
+    }
+
+    /**
+     * The text that completes {@code completion}'s word to {@code target} (one of its matches, or their common
+     * prefix), escaped for the quoting the word is in. A {@code unique} match is finished off: a directory with
+     * '/', anything else by closing the quote and adding a space.
+     */
+    public String insertion(Completion completion, String target, boolean unique) {
+        var out = new StringBuilder();
+        char quote = completion.quote();
+        for (int i = completion.prefix().length(); i < target.length(); i++) {
+            char c = target.charAt(i);
+            if (quote == '\'' && c == '\'') {
+                out.append("'\\''");
+                continue;
+            }
+            if (quote == '"' ? "\"\\$`".indexOf(c) >= 0 : quote == 0 && SPECIAL.indexOf(c) >= 0) {
+                out.append('\\');
+            }
+            out.append(c);
+        }
+        if (unique) {
+            if (isDirectory(completion, target)) {
+                out.append('/');
+            } else {
+                if (quote != 0) {
+                    out.append(quote);
+                }
+                out.append(' ');
+            }
+        }
+        return out.toString();
+    }
+
+    /** How a match is shown in the list of matches: directories with a trailing '/', as {@code ls -F} does. */
+    public String label(Completion completion, String match) {
+        return isDirectory(completion, match) ? match + "/" : match;
+    }
+
+    private static boolean isDirectory(Completion completion, String name) {
+        return completion.directory() != null && Files.isDirectory(completion.directory().resolve(name));
+    }
+
+    private static Matches range(String[] all, String prefix) {
+        int from = lowerBound(all, prefix);
+        int to = upperBound(all, prefix, from);
+        return new Matches(all, from, to);
+    }
+
+    private synchronized String[] candidates() {
+        if (index == null) {
+            return candidates;
+        }
+        long current = index.generation();
+        if (candidates == null || current != generation) {
+            candidates = sortedUnique(builtins, index.names());
+            generation = current;
+        }
+        return candidates;
+    }
+
+    private static String[] sortedUnique(String[] a, String[] b) {
+        var set = new TreeSet<String>();
+        set.addAll(Arrays.asList(a));
+        set.addAll(Arrays.asList(b));
+        return set.toArray(new String[0]);
+    }
+
+    // First index whose value is >= prefix.
+    private static int lowerBound(String[] all, String prefix) {
+        int lo = 0;
+        int hi = all.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (all[mid].compareTo(prefix) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    // First index at or after `from` whose value does not start with prefix.
+    private static int upperBound(String[] all, String prefix, int from) {
+        int lo = from;
+        int hi = all.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (all[mid].startsWith(prefix)) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * What TAB completes: the word typed so far (unquoted), the names it can become, the directory they are in
+     * ({@code null} for command names) and the quote the word is still inside (0 for none).
+     */
+    public record Completion(String prefix, Matches matches, Path directory, char quote) {}
+
+    /** A contiguous range of the sorted candidate array. */
+    public record Matches(String[] candidates, int from, int to) {
+        public int count() {
+            return to - from;
+        }
+
+        public boolean isEmpty() {
+            return from == to;
+        }
+
+        public String first() {
+            return candidates[from];
+        }
+
+        /** The range is sorted, so the common prefix of all matches is the common prefix of its ends. */
+        public String longestCommonPrefix() {
+            if (isEmpty()) {
+                return "";
+            }
+            String a = candidates[from];
+            String b = candidates[to - 1];
+            int len = Math.min(a.length(), b.length());
+            int i = 0;
+            while (i < len && a.charAt(i) == b.charAt(i)) {
+                i++;
+            }
+            return a.substring(0, i);
+        }
+
+        /** View of the matches, in sorted order. */
+        public List<String> asList() {
+            return Arrays.asList(candidates).subList(from, to);
+        }
+    }
+}
@@ -0,0 +1,1061 @@
+package shell;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Fork-free {@code cat}, {@code head}, {@code tail}, {@code wc} and {@code grep} for their common flags, printing what
+ * GNU coreutils and grep print.
+ *
+ * <p>Files are read through a {@link FileChannel}: a small file with one read into the heap, a large one mapped (for
+ * a few kilobytes, mapping and unmapping cost more than the copy they save), and unmapped as soon as the command is
+ * done. {@code tail} scans a file backwards from its end, so it touches only the pages it prints.
+ *
+ * <p>Plain {@code cat} into a redirected file ({@code cat a b > c}) has the kernel copy file to file with
+ * {@link FileChannel#transferTo}; nothing passes through the heap.
+ *
+ * <p>Each builtin accepts a command line only if it implements every flag on it; otherwise ({@link Builtin#accepts})
+ * the real program runs. Neither reads the terminal: with no file to read, a command whose stdin is not a pipe or a
+ * file also runs the real program.
+ */
+public final class Coreutils {
+    private static final long MAP_THRESHOLD = 64 * 1024;
+    private static final int CHUNK = 64 * 1024;
+
+    private Coreutils() {}
+
+    /** The builtins; file names are relative to whatever {@code cwd} returns when they run. */
+    public static List<Builtin> builtins(Supplier<Path> cwd) {
+        return List.of(new Cat(cwd), new Head(cwd), new Tail(cwd), new Wc(cwd), new Grep(cwd));
+    }
+
+    // GNU-style arguments: clusters ("-nv"), values attached or not ("-n5", "-n 5"), "--", and "-" for stdin.
+    // A tool's option() returns false for a flag it does not implement, and so does any long option.
+    private abstract static class Options {
+        final List<String> files = new ArrayList<>();
+        private String[] args;
+        private int index;
+        private String cluster;
+        private int pos;
+
+        final boolean parse(String[] args) {
+            this.args = args;
+            boolean options = true;
+            for (index = 0; index < args.length; index++) {
+                String arg = args[index];
+                if (options && arg.equals("--")) {
+                    options = false;
+                } else if (options && arg.length() > 1 && arg.charAt(0) == '-') {
+                    if (arg.startsWith("--")) {
+                        return false;
+                    }
+                    cluster = arg;
+                    for (pos = 1; pos < cluster.length(); ) {
+                        if (!option(cluster.charAt(pos++))) {
+                            return false;
+                        }
+                    }
+                } else if (!operand(arg)) {
+                    return false;
+                }
+            }
+            return finish();
+        }
+
+        abstract boolean option(char c);
+
+        boolean operand(String arg) {
+            files.add(arg);
+            return true;
+        }
+
+        boolean finish() {
+            return true;
+        }
+
+        // The value of the option just read: the rest of its cluster ("-n5") or the next argument ("-n 5").
+        final String value() {
+            if (pos < cluster.length()) {
+                String value = cluster.substring(pos);
+                pos = cluster.length();
+                return value;
+            }
+            return index + 1 < args.length ? args[++index] : null;
+        }
+
+        // The rest of the cluster from the option just read, for "-5".
+        final String number() {
+            String value = cluster.substring(pos - 1);
+            pos = cluster.length();
+            return value;
+        }
+    }
+
+    private abstract static class Tool<O extends Options> implements Builtin {
+        private final String name;
+        private final Supplier<Path> cwd;
+
+        Tool(String name, Supplier<Path> cwd) {
+            this.name = name;
+            this.cwd = cwd;
+        }
+
+        @Override
+        public String name() {
+            return name;
+        }
+
+        // Parsed options, or null when one is not implemented here.
+        abstract O parse(String[] args);
+
+        // Runs the tool and returns its exit status: 1 when an input could not be read (grep has its own).
+        abstract int run(O options, Stdio io) throws IOException;
+
+        @Override
+        public boolean accepts(Command command, boolean pipedInput) {
+            O options = parse(command.args());
+            return options != null && (pipedInput || !options.files.isEmpty() && !options.files.contains("-"));
+        }
+
+        @Override
+        public int run(Command command, Stdio io) throws IOException {
+            O options = parse(command.args());
+            if (options == null) {
+                io.err().println(name + ": unsupported option");
+                return 2;
+            }
+            int status = run(options, io);
+            io.out().flush();
+            return status;
+        }
+
+        // The operands, or stdin ("-") when there are none.
+        final List<String> inputs(O options) {
+            return options.files.isEmpty() ? List.of("-") : options.files;
+        }
+
+        final Path path(String file) {
+            return cwd.get().resolve(file);
+        }
+
+        // GNU's "No such file or directory" / "Permission denied" / "Is a directory" for a failed open or read.
+        static String reason(IOException e) {
+            if (e instanceof NoSuchFileException) {
+                return "No such file or directory";
+            }
+            if (e instanceof AccessDeniedException) {
+                return "Permission denied";
+            }
+            return e.getMessage() != null ? e.getMessage() : e.toString();
+        }
+    }
+
+    // A file's bytes, alive until `arena` is closed; see the class comment.
+    private static MemorySegment load(Path path, Arena arena) throws IOException {
+        if (Files.isDirectory(path)) {
+            throw new IOException("Is a directory");
+        }
+        try (FileChannel channel = FileChannel.open(path)) {
+            long size = channel.size();
+            if (size > MAP_THRESHOLD) {
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, size, arena);
+            }
+            if (size == 0) {
+                // /proc and friends report 0 and still have contents.
+                return MemorySegment.ofArray(Channels.newInputStream(channel).readAllBytes());
+            }
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                // a file that shrank stops early
+            }
+            return MemorySegment.ofArray(buffer.array()).asSlice(0, buffer.position());
+        }
+    }
+
+    // Reads a segment like a stream: no system call per read, only a copy.
+    private static InputStream stream(MemorySegment segment) {
+        return new InputStream() {
+            private long pos;
+
+            @Override
+            public int read() {
+                return pos < segment.byteSize() ? segment.get(ValueLayout.JAVA_BYTE, pos++) & 0xff : -1;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                long left = segment.byteSize() - pos;
+                if (left <= 0) {
+                    return len == 0 ? 0 : -1;
+                }
+                int n = (int) Math.min(len, left);
+                MemorySegment.copy(segment, ValueLayout.JAVA_BYTE, pos, b, off, n);
+                pos += n;
+                return n;
+            }
+        };
+    }
+
+    // Stops early when the output is gone (the next stage exited): PrintStream only records the error, and
+    // checkError() also flushes.
+    private static void write(MemorySegment segment, long from, long to, PrintStream out) {
+        byte[] chunk = new byte[(int) Math.min(CHUNK, Math.max(0, to - from))];
+        for (long pos = from; pos < to && !out.checkError(); ) {
+            int n = (int) Math.min(chunk.length, to - pos);
+            MemorySegment.copy(segment, ValueLayout.JAVA_BYTE, pos, chunk, 0, n);
+            out.write(chunk, 0, n);
+            pos += n;
+        }
+    }
+
+    // Calls `line` with each line of `in` (without its '\n'), until it returns false. `newline` is false only for a
+    // last line that does not end in '\n'. When the input would block, the output is flushed first, so a pipeline
+    // stage shows its lines as they come; reading stops when the output is gone.
+    private interface LineHandler {
+        boolean line(byte[] buf, int from, int to, boolean newline) throws IOException;
+    }
+
+    private static void lines(InputStream in, PrintStream out, LineHandler handler) throws IOException {
+        byte[] buf = new byte[CHUNK];
+        int start = 0;
+        int end = 0;
+        while (true) {
+            if (end == buf.length) {
+                if (start > 0) {
+                    System.arraycopy(buf, start, buf, 0, end - start);
+                    end -= start;
+                    start = 0;
+                } else {
+                    buf = Arrays.copyOf(buf, buf.length * 2);
+                }
+            }
+            if (in.available() == 0 && out.checkError()) {
+                return;
+            }
+            int n = in.read(buf, end, buf.length - end);
+            if (n < 0) {
+                if (start < end) {
+                    handler.line(buf, start, end, false);
+                }
+                return;
+            }
+            int scan = end;
+            end += n;
+            for (int i = scan; i < end; i++) {
+                if (buf[i] == '\n') {
+                    if (!handler.line(buf, start, i, true)) {
+                        return;
+                    }
+                    start = i + 1;
+                }
+            }
+            if (start == end) {
+                start = 0;
+                end = 0;
+            }
+        }
+    }
+
+    // Runs `body` on each input in turn, reporting the ones that cannot be read as `tool` does; false if there were
+    // any.
+    private interface InputHandler {
+        void input(String name, InputStream in, MemorySegment file) throws IOException;
+    }
+
+    private static boolean each(Tool<?> tool, List<String> inputs, Stdio io, String openFailure, InputHandler handler)
+            throws IOException {
+        boolean ok = true;
+        for (String name : inputs) {
+            if (name.equals("-")) {
+                handler.input(name, io.in(), null);
+                continue;
+            }
+            try (Arena arena = Arena.ofConfined()) {
+                MemorySegment file;
+                try {
+                    file = load(tool.path(name), arena);
+                } catch (IOException e) {
+                    io.out().flush();
+                    io.err().println(String.format(openFailure, tool.name(), name, Tool.reason(e)));
+                    ok = false;
+                    continue;
+                }
+                handler.input(name, stream(file), file);
+            }
+        }
+        return ok;
+    }
+
+    private static final class Cat extends Tool<Cat.Opts> {
+        static final class Opts extends Options {
+            boolean number;
+            boolean ends;
+
+            @Override
+            boolean option(char c) {
+                switch (c) {
+                    case 'n' -> number = true;
+                    case 'E' -> ends = true;
+                    case 'u' -> {}
+                    default -> {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        }
+
+        Cat(Supplier<Path> cwd) {
+            super("cat", cwd);
+        }
+
+        @Override
+        Opts parse(String[] args) {
+            var options = new Opts();
+            return options.parse(args) ? options : null;
+        }
+
+        @Override
+        int run(Opts options, Stdio io) throws IOException {
+            PrintStream out = io.out();
+            if (!options.number && !options.ends && io.outFile() != null) {
+                return transfer(options, io);
+            }
+            long[] lineNumber = {0};
+            boolean ok = each(this, inputs(options), io, "%s: %s: %s", (name, in, file) -> {
+                if (!options.number && !options.ends) {
+                    if (file != null) {
+                        write(file, 0, file.byteSize(), out);
+                    } else {
+                        copy(in, out);
+                    }
+                    return;
+                }
+                lines(in, out, (buf, from, to, newline) -> {
+                    if (options.number) {
+                        out.print(String.format("%6d\t", ++lineNumber[0]));
+                    }
+                    out.write(buf, from, to - from);
+                    if (newline) {
+                        if (options.ends) {
+                            out.write('$');
+                        }
+                        out.write('\n');
+                    }
+                    return true;
+                });
+            });
+            return ok ? 0 : 1;
+        }
+
+        // Plain cat into a file: each input that is a regular file goes to it with transferTo. Anything else (a
+        // pipe, a /proc file that reports size 0) is copied through a buffer as usual.
+        private int transfer(Opts options, Stdio io) throws IOException {
+            FileChannel target = io.outFile();
+            int status = 0;
+            for (String name : inputs(options)) {
+                if (name.equals("-")) {
+                    FileChannel source = io.inFile();
+                    if (source == null || source.size() == 0) {
+                        copy(io.in(), io.out());
+                    } else {
+                        io.out().flush();
+                        transfer(source, source.position(), source.size(), target);
+                        source.position(source.size());
+                    }
+                    continue;
+                }
+                Path path = path(name);
+                try (FileChannel source = FileChannel.open(path)) {
+                    if (Files.isDirectory(path)) {
+                        throw new IOException("Is a directory");
+                    }
+                    long size = source.size();
+                    if (size == 0) {
+                        copy(Channels.newInputStream(source), io.out());
+                    } else {
+                        io.out().flush();
+                        transfer(source, 0, size, target);
+                    }
+                } catch (IOException e) {
+                    io.out().flush();
+                    io.err().println(String.format("%s: %s: %s", name(), name, reason(e)));
+                    status = 1;
+                }
+            }
+            return status;
+        }
+
+        // transferTo may move fewer bytes than asked (it stops at 2GB a call on Linux).
+        private static void transfer(FileChannel source, long from, long to, FileChannel target) throws IOException {
+            for (long pos = from; pos < to; ) {
+                long n = source.transferTo(pos, to - pos, target);
+                if (n <= 0) {
+                    break;
+                }
+                pos += n;
+            }
+        }
+
+        private static void copy(InputStream in, PrintStream out) throws IOException {
+            byte[] chunk = new byte[CHUNK];
+            int n;
+            while ((n = in.read(chunk)) >= 0) {
+                out.write(chunk, 0, n);
+                if (in.available() == 0 && out.checkError()) {
+                    return;
+                }
+            }
+        }
+    }
+
+    // head and tail: -n N, -c N, -N, -q, -v. Headers ("==> name <==") when there are several inputs or with -v.
+    private static class Slice extends Options {
+        long count = 10;
+        boolean bytes;
+        // tail -n +N: from line (or byte) N on
+        boolean fromStart;
+        boolean quiet;
+        boolean verbose;
+        private final boolean plusAllowed;
+
+        Slice(boolean plusAllowed) {
+            this.plusAllowed = plusAllowed;
+        }
+
+        @Override
+        boolean option(char c) {
+            switch (c) {
+                case 'n', 'c' -> {
+                    bytes = c == 'c';
+                    return count(value());
+                }
+                case 'q' -> quiet = true;
+                case 'v' -> verbose = true;
+                default -> {
+                    return Character.isDigit(c) && count(number());
+                }
+            }
+            return true;
+        }
+
+        private boolean count(String value) {
+            if (value == null || value.isEmpty()) {
+                return false;
+            }
+            fromStart = false;
+            if (value.charAt(0) == '+' && plusAllowed) {
+                fromStart = true;
+                value = value.substring(1);
+            }
+            if (value.isEmpty() || !value.chars().allMatch(Character::isDigit)) {
+                return false; // negative counts, suffixes: the real program
+            }
+            try {
+                count = Long.parseLong(value);
+            } catch (NumberFormatException e) {
+                return false;
+            }
+            return true;
+        }
+
+        boolean headers(int inputs) {
+            return verbose || inputs > 1 && !quiet;
+        }
+    }
+
+    private static void header(PrintStream out, String name, boolean first) {
+        out.print((first ? "" : "\n") + "==> " + (name.equals("-") ? "standard input" : name) + " <==\n");
+    }
+
+    private static final class Head extends Tool<Slice> {
+        Head(Supplier<Path> cwd) {
+            super("head", cwd);
+        }
+
+        @Override
+        Slice parse(String[] args) {
+            var options = new Slice(false);
+            return options.parse(args) ? options : null;
+        }
+
+        @Override
+        int run(Slice options, Stdio io) throws IOException {
+            PrintStream out = io.out();
+            List<String> inputs = inputs(options);
+            boolean headers = options.headers(inputs.size());
+            boolean[] first = {true};
+            boolean ok = each(this, inputs, io, "%s: cannot open '%s' for reading: %s", (name, in, file) -> {
+                if (headers) {
+                    header(out, name, first[0]);
+                }
+                first[0] = false;
+                if (file != null) {
+                    long end = options.bytes
+                            ? Math.min(options.count, file.byteSize())
+                            : afterLines(file, options.count);
+                    write(file, 0, end, out);
+                } else if (options.bytes) {
+                    out.write(in.readNBytes((int) Math.min(options.count, Integer.MAX_VALUE - 8)));
+                } else if (options.count > 0) {
+                    long[] left = {options.count};
+                    lines(in, out, (buf, from, to, newline) -> {
+                        out.write(buf, from, to - from + (newline ? 1 : 0));
+                        return --left[0] > 0;
+                    });
+                }
+            });
+            return ok ? 0 : 1;
+        }
+
+        // Offset just past the first `lines` lines of `file`.
+        private static long afterLines(MemorySegment file, long lines) {
+            long size = file.byteSize();
+            if (lines == 0) {
+                return 0;
+            }
+            byte[] chunk = new byte[(int) Math.min(CHUNK, size)];
+            long seen = 0;
+            for (long base = 0; base < size; base += chunk.length) {
+                int n = (int) Math.min(chunk.length, size - base);
+                MemorySegment.copy(file, ValueLayout.JAVA_BYTE, base, chunk, 0, n);
+                for (int i = 0; i < n; i++) {
+                    if (chunk[i] == '\n' && ++seen == lines) {
+                        return base + i + 1;
+                    }
+                }
+            }
+            return size;
+        }
+    }
+
+    private static final class Tail extends Tool<Slice> {
+        Tail(Supplier<Path> cwd) {
+            super("tail", cwd);
+        }
+
+        @Override
+        Slice parse(String[] args) {
+            var options = new Slice(true);
+            return options.parse(args) ? options : null;
+        }
+
+        @Override
+        int run(Slice options, Stdio io) throws IOException {
+            PrintStream out = io.out();
+            List<String> inputs = inputs(options);
+            boolean headers = options.headers(inputs.size());
+            boolean[] first = {true};
+            boolean ok = each(this, inputs, io, "%s: cannot open '%s' for reading: %s", (name, in, file) -> {
+                if (headers) {
+                    header(out, name, first[0]);
+                }
+                first[0] = false;
+                // A pipe has to be read to its end anyway; keep it whole and slice it like a file.
+                MemorySegment data = file != null ? file : MemorySegment.ofArray(in.readAllBytes());
+                long size = data.byteSize();
+                long start;
+                if (options.bytes) {
+                    start = options.fromStart ? Math.min(size, Math.max(0, options.count - 1)) :
+                            Math.max(0, size - options.count);
+                } else if (options.fromStart) {
+                    start = Head.afterLines(data, Math.max(0, options.count - 1));
+                } else {
+                    start = lastLines(data, options.count);
+                }
+                write(data, start, size, out);
+            });
+            return ok ? 0 : 1;
+        }
+
+        // Offset of the first of the last `lines` lines of `data`: scans backwards, so a big mapped file is only
+        // paged in at its end. A final line without '\n' counts as a line.
+        private static long lastLines(MemorySegment data, long lines) {
+            long end = data.byteSize();
+            if (lines == 0) {
+                return end;
+            }
+            if (end > 0 && data.get(ValueLayout.JAVA_BYTE, end - 1) == '\n') {
+                end--;
+            }
+            byte[] chunk = new byte[(int) Math.min(CHUNK, end)];
+            long seen = 0;
+            while (end > 0) {
+                int n = (int) Math.min(chunk.length, end);
+                long base = end - n;
+                MemorySegment.copy(data, ValueLayout.JAVA_BYTE, base, chunk, 0, n);
+                for (int i = n - 1; i >= 0; i--) {
+                    if (chunk[i] == '\n' && ++seen == lines) {
+                        return base + i + 1;
+                    }
+                }
+                end = base;
+            }
+            return 0;
+        }
+    }
+
+    private static final class Wc extends Tool<Wc.Opts> {
+        static final class Opts extends Options {
+            boolean lines;
+            boolean words;
+            boolean chars;
+            boolean bytes;
+
+            @Override
+            boolean option(char c) {
+                switch (c) {
+                    case 'l' -> lines = true;
+                    case 'w' -> words = true;
+                    case 'm' -> chars = true;
+                    case 'c' -> bytes = true;
+                    default -> {
+                        return false;
+                    }
+                }
+                return true;
+            }
+
+            @Override
+            boolean finish() {
+                if (!lines && !words && !chars && !bytes) {
+                    lines = true;
+                    words = true;
+                    bytes = true;
+                }
+                return true;
+            }
+
+            int columns() {
+                return (lines ? 1 : 0) + (words ? 1 : 0) + (chars ? 1 : 0) + (bytes ? 1 : 0);
+            }
+        }
+
+        // Lines, words, characters (UTF-8 sequences) and bytes of one input.
+        private record Counts(long lines, long words, long chars, long bytes) {}
+
+        Wc(Supplier<Path> cwd) {
+            super("wc", cwd);
+        }
+
+        @Override
+        Opts parse(String[] args) {
+            var options = new Opts();
+            return options.parse(args) ? options : null;
+        }
+
+        @Override
+        int run(Opts options, Stdio io) throws IOException {
+            List<String> inputs = inputs(options);
+            int width = width(options, inputs);
+            int status = 0;
+            // Implicit stdin has no name on its line; an explicit "-" has.
+            boolean named = !options.files.isEmpty();
+            long[] total = new long[4];
+            for (String name : inputs) {
+                Counts counts;
+                if (!name.equals("-") && Files.isDirectory(path(name))) {
+                    io.out().flush();
+                    io.err().println("wc: " + name + ": Is a directory");
+                    counts = new Counts(0, 0, 0, 0);
+                    status = 1;
+                } else {
+                    Counts[] read = {null};
+                    each(this, List.of(name), io, "%s: %s: %s", (n, in, file) -> read[0] = count(in));
+                    if (read[0] == null) {
+                        status = 1;
+                        continue;
+                    }
+                    counts = read[0];
+                }
+                print(io.out(), options, width, counts, named ? name : null);
+                total[0] += counts.lines();
+                total[1] += counts.words();
+                total[2] += counts.chars();
+                total[3] += counts.bytes();
+            }
+            if (inputs.size() > 1) {
+                print(io.out(), options, width, new Counts(total[0], total[1], total[2], total[3]), "total");
+            }
+            return status;
+        }
+
+        // GNU's column width, from before anything is read: 1 for a single count of a single input, otherwise the
+        // digits of the regular files' total size, and at least 7 when an input is not a regular file (a pipe, a
+        // directory). Inputs that do not exist do not count.
+        private int width(Opts options, List<String> inputs) {
+            if (inputs.size() == 1 && options.columns() == 1) {
+                return 1;
+            }
+            long regularTotal = 0;
+            int minimum = 1;
+            for (String name : inputs) {
+                if (name.equals("-")) {
+                    minimum = 7;
+                    continue;
+                }
+                Path path = path(name);
+                try {
+                    if (Files.isRegularFile(path)) {
+                        regularTotal += Files.size(path);
+                    } else if (Files.exists(path)) {
+                        minimum = 7;
+                    }
+                } catch (IOException e) {
+                    // reported when it is read
+                }
+            }
+            return Math.max(minimum, Long.toString(regularTotal).length());
+        }
+
+        private static Counts count(InputStream in) throws IOException {
+            byte[] chunk = new byte[CHUNK];
+            long lines = 0;
+            long words = 0;
+            long chars = 0;
+            long bytes = 0;
+            boolean inWord = false;
+            int n;
+            while ((n = in.read(chunk)) >= 0) {
+                bytes += n;
+                for (int i = 0; i < n; i++) {
+                    byte b = chunk[i];
+                    if (b == '\n') {
+                        lines++;
+                    }
+                    if ((b & 0xc0) != 0x80) {
+                        chars++;
+                    }
+                    boolean space = b == ' ' || b == '\n' || b == '\t' || b == '\r' || b == 0x0b || b == '\f';
+                    if (!space && !inWord) {
+                        words++;
+                    }
+                    inWord = !space;
+                }
+            }
+            return new Counts(lines, words, chars, bytes);
+        }
+
+        private static void print(PrintStream out, Opts options, int width, Counts c, String name) {
+            var line = new StringBuilder();
+            String format = "%" + width + "d";
+            if (options.lines) {
+                line.append(String.format(format, c.lines()));
+            }
+            if (options.words) {
+                line.append(line.isEmpty() ? "" : " ").append(String.format(format, c.words()));
+            }
+            if (options.chars) {
+                line.append(line.isEmpty() ? "" : " ").append(String.format(format, c.chars()));
+            }
+            if (options.bytes) {
+                line.append(line.isEmpty() ? "" : " ").append(String.format(format, c.bytes()));
+            }
+            if (name != null) {
+                line.append(' ').append(name);
+            }
+            out.println(line);
+        }
+    }
+
+    private static final class Grep extends Tool<Grep.Opts> {
+        static final class Opts extends Options {
+            final List<String> patterns = new ArrayList<>();
+            boolean ignoreCase;
+            boolean invert;
+            boolean count;
+            boolean lineNumbers;
+            boolean filesWithMatches;
+            boolean quiet;
+            boolean fixed;
+            boolean extended;
+            boolean withNames;
+            boolean withoutNames;
+            Pattern pattern;
+
+            @Override
+            boolean option(char c) {
+                switch (c) {
+                    case 'i' -> ignoreCase = true;
+                    case 'v' -> invert = true;
+                    case 'c' -> count = true;
+                    case 'n' -> lineNumbers = true;
+                    case 'l' -> filesWithMatches = true;
+                    case 'q' -> quiet = true;
+                    case 'F' -> fixed = true;
+                    case 'E' -> extended = true;
+                    case 'G' -> extended = false;
+                    case 'H' -> withNames = true;
+                    case 'h' -> withoutNames = true;
+                    case 'e' -> {
+                        String pattern = value();
+                        if (pattern == null) {
+                            return false;
+                        }
+                        patterns.add(pattern);
+                    }
+                    default -> {
+                        return false;
+                    }
+                }
+                return true;
+            }
+
+            @Override
+            boolean finish() {
+                // Without -e, the first operand is the pattern.
+                if (patterns.isEmpty()) {
+                    if (files.isEmpty()) {
+                        return false;
+                    }
+                    patterns.add(files.remove(0));
+                }
+                var regex = new StringBuilder();
+                for (String p : patterns) {
+                    if (p.contains("\n")) {
+                        return false;
+                    }
+                    String translated = fixed ? Pattern.quote(p) : translate(p, extended);
+                    if (translated == null) {
+                        return false;
+                    }
+                    regex.append(regex.isEmpty() ? "" : "|").append("(?:").append(translated).append(')');
+                }
+                try {
+                    int flags = Pattern.UNIX_LINES | (ignoreCase ? Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE : 0);
+                    pattern = Pattern.compile(regex.toString(), flags);
+                } catch (PatternSyntaxException e) {
+                    return false; // let grep report it
+                }
+                return true;
+            }
+        }
+
+        Grep(Supplier<Path> cwd) {
+            super("grep", cwd);
+        }
+
+        @Override
+        Opts parse(String[] args) {
+            var options = new Opts();
+            return options.parse(args) ? options : null;
+        }
+
+        // 0 when a line was selected, 1 when none was, 2 when an input could not be read (unless -q found a line).
+        @Override
+        int run(Opts options, Stdio io) throws IOException {
+            PrintStream out = io.out();
+            List<String> inputs = inputs(options);
+            boolean names = options.withNames || inputs.size() > 1 && !options.withoutNames;
+            Matcher matcher = options.pattern.matcher("");
+            boolean[] selected = {false};
+            boolean ok = each(this, inputs, io, "%s: %s: %s", (name, in, file) -> {
+                String shown = name.equals("-") ? "(standard input)" : name;
+                long[] matches = {0};
+                long[] number = {0};
+                var input = new NulWatch(in);
+                lines(input, out, (buf, from, to, newline) -> {
+                    number[0]++;
+                    String line = new String(buf, from, to - from, StandardCharsets.UTF_8);
+                    if (matcher.reset(line).find() == options.invert) {
+                        return true;
+                    }
+                    matches[0]++;
+                    selected[0] = true;
+                    if (options.quiet || options.filesWithMatches) {
+                        return false;
+                    }
+                    if (!options.count) {
+                        if (input.seen) {
+                            out.flush();
+                            io.err().println(String.format("grep: %s: binary file matches", shown));
+                            return false;
+                        }
+                        if (names) {
+                            out.print(shown + ":");
+                        }
+                        if (options.lineNumbers) {
+                            out.print(number[0] + ":");
+                        }
+                        out.write(buf, from, to - from);
+                        out.write('\n');
+                    }
+                    return true;
+                });
+                if (options.quiet) {
+                    return;
+                }
+                if (options.filesWithMatches) {
+                    if (matches[0] > 0) {
+                        out.println(shown);
+                    }
+                } else if (options.count) {
+                    out.println(names ? shown + ":" + matches[0] : Long.toString(matches[0]));
+                }
+            });
+            if (selected[0] && (ok || options.quiet)) {
+                return 0;
+            }
+            return ok ? 1 : 2;
+        }
+
+        // Like GNU grep, an input is binary once a buffer read from it has a NUL: from then on, instead of its lines,
+        // the first selected one is reported as "binary file matches". -c, -l and -q are unaffected.
+        private static final class NulWatch extends FilterInputStream {
+            boolean seen;
+
+            NulWatch(InputStream in) {
+                super(in);
+            }
+
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                seen |= b == 0;
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = super.read(b, off, len);
+                for (int i = off; i < off + n && !seen; i++) {
+                    seen = b[i] == 0;
+                }
+                return n;
+            }
+        }
+
+        // POSIX basic or extended regular expression to java.util.regex, or null for what does not translate.
+        // In a BRE, ( ) { } | + ? are literal unless escaped; in an ERE it is the other way round. Inside
+        // brackets a backslash is literal, and [:class:] names a class.
+        static String translate(String regex, boolean extended) {
+            var out = new StringBuilder();
+            int n = regex.length();
+            for (int i = 0; i < n; i++) {
+                char c = regex.charAt(i);
+                if (c == '[') {
+                    int end = bracketEnd(regex, i);
+                    if (end < 0) {
+                        return null;
+                    }
+                    String bracket = bracket(regex.substring(i + 1, end));
+                    if (bracket == null) {
+                        return null;
+                    }
+                    out.append(bracket);
+                    i = end;
+                } else if (c == '\\' && i + 1 < n) {
+                    char next = regex.charAt(++i);
+                    if ("(){}|+?".indexOf(next) >= 0) {
+                        out.append(extended ? "\\" + next : String.valueOf(next));
+                    } else if (Character.isDigit(next) || "wWsSbB<>".indexOf(next) >= 0) {
+                        out.append(switch (next) {
+                            case '<', '>' -> "\\b";
+                            default -> "\\" + next;
+                        });
+                    } else {
+                        out.append(Pattern.quote(String.valueOf(next)));
+                    }
+                } else if ("(){}|+?".indexOf(c) >= 0) {
+                    out.append(extended ? String.valueOf(c) : "\\" + c);
+                } else if (c == '*' && (out.isEmpty() || i > 0 && regex.charAt(i - 1) == '^')) {
+                    out.append("\\*");
+                } else if (c == '^' && i > 0 && !extended) {
+                    out.append("\\^"); // only an anchor at the start of a BRE
+                } else if (c == '$' && i < n - 1 && !extended) {
+                    out.append("\\$"); // only an anchor at the end of a BRE
+                } else {
+                    out.append(c);
+                }
+            }
+            return out.toString();
+        }
+
+        // Index of the ']' closing the bracket expression at `open`, or -1. A ']' right after '[' or '[^' is literal.
+        private static int bracketEnd(String regex, int open) {
+            int i = open + 1;
+            if (i < regex.length() && regex.charAt(i) == '^') {
+                i++;
+            }
+            if (i < regex.length() && regex.charAt(i) == ']') {
+                i++;
+            }
+            for (; i < regex.length(); i++) {
+                char c = regex.charAt(i);
+                if (c == '[' && i + 1 < regex.length() && ":.=".indexOf(regex.charAt(i + 1)) >= 0) {
+                    int close = regex.indexOf(regex.charAt(i + 1) + "]", i + 2);
+                    if (close < 0) {
+                        return -1;
+                    }
+                    i = close + 1;
+                } else if (c == ']') {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private static String bracket(String body) {
+            var out = new StringBuilder("[");
+            int i = 0;
+            if (body.startsWith("^")) {
+                out.append('^');
+                i = 1;
+            }
+            for (; i < body.length(); i++) {
+                char c = body.charAt(i);
+                if (c == '[' && body.startsWith("[:", i)) {
+                    int close = body.indexOf(":]", i + 2);
+                    String name = body.substring(i + 2, close);
+                    String java = switch (name) {
+                        case "alpha" -> "\\p{Alpha}";
+                        case "digit" -> "\\p{Digit}";
+                        case "alnum" -> "\\p{Alnum}";
+                        case "upper" -> "\\p{Upper}";
+                        case "lower" -> "\\p{Lower}";
+                        case "space" -> "\\s\\x0B";
+                        case "blank" -> "\\p{Blank}";
+                        case "punct" -> "\\p{Punct}";
+                        case "xdigit" -> "\\p{XDigit}";
+                        case "cntrl" -> "\\p{Cntrl}";
+                        case "print" -> "\\p{Print}";
+                        case "graph" -> "\\p{Graph}";
+                        default -> null; // [.x.], [=x=], unknown classes
+                    };
+                    if (java == null) {
+                        return null;
+                    }
+                    out.append(java);
+                    i = close + 1;
+                } else if (c == '[' && i + 1 < body.length() && ".=".indexOf(body.charAt(i + 1)) >= 0) {
+                    return null;
+                } else if (c == '\\' || c == '[' || c == '&' || c == '^') {
+                    out.append('\\').append(c);
+                } else {
+                    out.append(c);
+                }
+            }
+            return out.append(']').toString();
+        }
+    }
+}
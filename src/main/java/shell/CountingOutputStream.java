@@ -0,0 +1,44 @@
+package shell;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Counts the bytes a builtin writes, for {@link CommandStats#stageBytes()}. With {@code keepOpen}, closing it only
+ * flushes, so a stage writing to {@code System.out} can close its streams like every other stage.
+ */
+public final class CountingOutputStream extends FilterOutputStream {
+    private final boolean keepOpen;
+    private long count;
+
+    public CountingOutputStream(OutputStream out, boolean keepOpen) {
+        super(out);
+        this.keepOpen = keepOpen;
+    }
+
+    public long count() {
+        return count;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+        count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        count += len;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (keepOpen) {
+            out.flush();
+        } else {
+            super.close();
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package shell;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Sorted listings of the directories TAB completion visits, so completing in a directory of 100k entries lists it
+ * once and afterwards costs a {@code stat} and two binary searches.
+ *
+ * <p>A listing is keyed by the directory's path and valid while the directory's mtime is the one it was read with
+ * (adding, removing or renaming an entry changes it). Each listed directory is also registered with a
+ * {@link WatchService}: a daemon thread re-reads a directory shortly after its entries change, so the next TAB
+ * there finds a fresh listing instead of paying for the re-read. The least recently used listings beyond
+ * {@code capacity} are dropped (and unwatched).
+ */
+public final class DirectoryCache {
+    // Events that arrive within this long of each other cause one re-read.
+    private static final long SETTLE_MILLIS = 100;
+
+    /** Entry names, sorted; {@code visible} leaves out the dot files, which only a "." prefix completes. */
+    public record Listing(String[] names, String[] visible) {}
+
+    private record Entry(FileTime mtime, Listing listing, WatchKey key) {}
+
+    private final int capacity;
+    private final Map<Path, Entry> entries;
+    private WatchService watcher;
+    private boolean watchUnavailable;
+
+    public DirectoryCache(int capacity) {
+        this.capacity = capacity;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /** The listing of {@code dir} (absolute), or null if it is not a readable directory. */
+    public Listing list(Path dir) {
+        FileTime mtime = mtime(dir);
+        if (mtime == null) {
+            forget(dir);
+            return null;
+        }
+        synchronized (this) {
+            Entry entry = entries.get(dir);
+            if (entry != null && entry.mtime().equals(mtime)) {
+                Metrics.add("completion.dir.hit", 1);
+                return entry.listing();
+            }
+        }
+        return load(dir, mtime);
+    }
+
+    // Reads `dir` (outside the lock: a large directory takes a while) and caches it.
+    private Listing load(Path dir, FileTime mtime) {
+        long start = System.nanoTime();
+        Listing listing = read(dir);
+        if (listing == null) {
+            forget(dir);
+            return null;
+        }
+        Metrics.since("completion.dir.read", start);
+        Trace.end("completion.dir.read", start, dir.toString(), listing.names().length);
+        synchronized (this) {
+            Entry old = entries.get(dir);
+            WatchKey key = old != null ? old.key() : watch(dir);
+            entries.put(dir, new Entry(mtime, listing, key));
+            if (entries.size() > capacity) {
+                var eldest = entries.entrySet().iterator();
+                Entry dropped = eldest.next().getValue();
+                eldest.remove();
+                if (dropped.key() != null) {
+                    dropped.key().cancel();
+                }
+            }
+        }
+        return listing;
+    }
+
+    private synchronized void forget(Path dir) {
+        Entry entry = entries.remove(dir);
+        if (entry != null && entry.key() != null) {
+            entry.key().cancel();
+        }
+    }
+
+    private static FileTime mtime(Path dir) {
+        try {
+            return Files.isDirectory(dir) ? Files.getLastModifiedTime(dir) : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static Listing read(Path dir) {
+        var names = new ArrayList<String>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path entry : stream) {
+                names.add(entry.getFileName().toString());
+            }
+        } catch (IOException e) {
+            return null;
+        }
+        String[] all = names.toArray(new String[0]);
+        Arrays.sort(all);
+        String[] visible = Arrays.stream(all).filter(name -> !name.startsWith(".")).toArray(String[]::new);
+        return new Listing(all, visible.length == all.length ? all : visible);
+    }
+
+    // Registers `dir` with the watcher, starting it on first use; null when watching is not possible (then the
+    // mtime check alone keeps listings correct).
+    private WatchKey watch(Path dir) {
+        if (watchUnavailable) {
+            return null;
+        }
+        try {
+            if (watcher == null) {
+                watcher = FileSystems.getDefault().newWatchService();
+                Thread.ofPlatform().daemon().name("completion-watch").start(this::refreshLoop);
+            }
+            return dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE);
+        } catch (IOException | UnsupportedOperationException e) {
+            // E.g. out of inotify watches.
+            watchUnavailable = watcher == null;
+            return null;
+        }
+    }
+
+    // Re-reads each watched directory whose entries changed, once the changes settle.
+    private void refreshLoop() {
+        try {
+            while (true) {
+                WatchKey key = watcher.take();
+                Thread.sleep(SETTLE_MILLIS);
+                key.pollEvents();
+                boolean valid = key.reset();
+                Path dir = (Path) key.watchable();
+                boolean cached;
+                synchronized (this) {
+                    Entry entry = entries.get(dir);
+                    cached = valid && entry != null && entry.key() == key;
+                }
+                FileTime mtime = cached ? mtime(dir) : null;
+                if (mtime != null) {
+                    load(dir, mtime);
+                    Metrics.add("completion.dir.refresh", 1);
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // The shell is exiting.
+        }
+    }
+}
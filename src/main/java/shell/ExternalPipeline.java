@@ -0,0 +1,74 @@
+package shell;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Starts a run of consecutive external pipeline stages.
+ *
+ * <p>By default the stages are connected with real OS pipes ({@link ProcessBuilder#startPipeline}), so data flows
+ * from one child to the next without touching the JVM. {@code SHELL_PIPES=pump} selects the old behaviour of one
+ * Java thread per connection copying 8 KB chunks, kept for comparison.
+ */
+public final class ExternalPipeline {
+    public enum Mode {
+        KERNEL,
+        PUMP
+    }
+
+    private ExternalPipeline() {}
+
+    public static Mode defaultMode() {
+        return "pump".equals(System.getenv("SHELL_PIPES")) ? Mode.PUMP : Mode.KERNEL;
+    }
+
+    /**
+     * Starts {@code stages} with each stdout connected to the next stdin. The caller configures the first stage's
+     * input, the last stage's output and everyone's stderr; intermediate stdin/stdout must be left as PIPE.
+     */
+    public static List<Process> start(List<ProcessBuilder> stages, Mode mode) throws IOException {
+        if (stages.size() == 1) {
+            return List.of(stages.get(0).start());
+        }
+        if (mode == Mode.KERNEL) {
+            return ProcessBuilder.startPipeline(stages);
+        }
+
+        var procs = new ArrayList<Process>(stages.size());
+        try {
+            for (ProcessBuilder stage : stages) {
+                procs.add(stage.start());
+            }
+        } catch (IOException e) {
+            procs.forEach(Process::destroy);
+            throw e;
+        }
+        for (int i = 0; i < procs.size() - 1; i++) {
+            Thread pump = new Thread(pumpTask(procs.get(i).getInputStream(), procs.get(i + 1).getOutputStream()));
+            pump.setDaemon(true);
+            pump.start();
+        }
+        return procs;
+    }
+
+    private static Runnable pumpTask(InputStream in, OutputStream out) {
+        return () -> {
+            try (in; out) {
+                byte[] buf = new byte[8192];
+                int len;
+                while ((len = in.read(buf)) != -1) {
+                    try {
+                        out.write(buf, 0, len);
+                        out.flush();
+                    } catch (IOException brokenPipe) {
+                        break;
+                    }
+                }
+            } catch (IOException ignored) {
+            }
+        };
+    }
+}
@@ -0,0 +1,493 @@
+package shell;
+
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Pathname expansion. A word with an unquoted {@code *}, {@code ?} or {@code [...]} is replaced by the sorted names
+ * it matches, or kept as it is when nothing matches, as bash does by default. {@code **} as a whole segment matches
+ * any number of directories, as with bash's {@code globstar}. Names starting with '.' only match a segment that
+ * starts with '.'.
+ *
+ * <p>A pattern is matched one '/'-separated segment at a time, so only directories that can still match are read:
+ * a literal segment costs a stat rather than a listing, a wildcard segment that is not the last descends only into
+ * the directories it matched, and the last segment stats nothing. Segments compile once, to regex
+ * {@link PathMatcher}s, and compiled patterns are cached by their text. A {@code **} walk runs as one fork-join
+ * task per directory on a shared pool, which is wider than the CPU count because the tasks mostly wait on the
+ * file system; like bash, it does not descend into hidden directories or through symlinks. Telling subdirectories
+ * from files takes a stat per entry, except where a directory's link count says how many subdirectories it has
+ * (ext4, xfs, tmpfs, ...): there the walk stops stat'ing once it has seen them all, at once in a leaf directory.
+ */
+public final class Glob {
+    private static final int CACHED_PATTERNS = 256;
+    private static final Map<String, Compiled> compiled = new ConcurrentHashMap<>();
+    private static ForkJoinPool pool;
+
+    // One segment: a literal name (after unescaping), a compiled wildcard, or `**`.
+    private record Segment(String literal, PathMatcher matcher, boolean dotted) {
+        static final Segment GLOBSTAR = new Segment(null, null, false);
+    }
+
+    // `absolute` patterns start at "/"; `dirsOnly` ones end in '/', which their matches keep.
+    private record Compiled(Segment[] segments, boolean absolute, boolean dirsOnly, boolean globstar) {}
+
+    // One expansion of a compiled pattern: the directories it read, and the device (or -1) whose directory link
+    // counts tell how many subdirectories a directory has.
+    private record Expansion(Compiled glob, LongAdder dirs, long leafDevice) {}
+
+    // File systems where a directory's link count is 2 plus its subdirectories (each one's ".." links back).
+    private static final Set<String> COUNTED_LINKS = Set.of("ext2", "ext3", "ext4", "xfs", "tmpfs", "f2fs");
+
+    private Glob() {}
+
+    /** Expands the glob patterns in every command of {@code pipeline}, relative to {@code cwd}. */
+    public static Pipeline expand(Pipeline pipeline, Path cwd) {
+        List<Command> stages = pipeline.stages();
+        List<Command> expanded = null;
+        for (int i = 0; i < stages.size(); i++) {
+            Command stage = stages.get(i);
+            if (stage.patterns() != null) {
+                if (expanded == null) {
+                    expanded = new ArrayList<>(stages);
+                }
+                expanded.set(i, expand(stage, cwd));
+            }
+        }
+        return expanded == null ? pipeline : new Pipeline(expanded, pipeline.background());
+    }
+
+    /** Replaces each pattern word of {@code command} by its matches, keeping a word that matches nothing. */
+    public static Command expand(Command command, Path cwd) {
+        String[] patterns = command.patterns();
+        if (patterns == null) {
+            return command;
+        }
+        String[] words = command.commandWithArgs();
+        var out = new ArrayList<String>(words.length);
+        for (int i = 0; i < words.length; i++) {
+            List<String> matches = patterns[i] != null ? expand(patterns[i], cwd) : List.of();
+            if (matches.isEmpty()) {
+                out.add(words[i]);
+            } else {
+                out.addAll(matches);
+            }
+        }
+        String[] all = out.toArray(String[]::new);
+        return new Command(all[0], Arrays.copyOfRange(all, 1, all.length), all, command.redirects());
+    }
+
+    /**
+     * The names matching {@code pattern} (in {@link Lexer.Token#pattern} form: a backslash makes the next character
+     * literal), sorted, relative to {@code cwd} unless the pattern is absolute. Empty when nothing matches.
+     */
+    public static List<String> expand(String pattern, Path cwd) {
+        long start = System.nanoTime();
+        Compiled glob = compiled(pattern);
+        if (glob.segments().length == 0) {
+            // "/" or "//": no wildcard left.
+            return List.of();
+        }
+        Path root = glob.absolute() ? cwd.getRoot() : cwd;
+        var run = new Expansion(glob, new LongAdder(), glob.globstar() ? leafDevice(root) : -1);
+        var walk = new Walk(run, root, glob.absolute() ? "/" : "", 0);
+        List<String> found = glob.globstar() ? pool().invoke(walk) : walk.compute();
+        String[] sorted = found.toArray(String[]::new);
+        Arrays.parallelSort(sorted);
+        Metrics.since("glob", start);
+        Metrics.add("glob.dirs", run.dirs().sum());
+        Trace.end("glob", start, pattern, sorted.length);
+        return Arrays.asList(sorted);
+    }
+
+    // The device of `dir` if its file system keeps directory link counts, else -1.
+    private static long leafDevice(Path dir) {
+        try {
+            if (COUNTED_LINKS.contains(Files.getFileStore(dir).type())) {
+                return ((Number) Files.getAttribute(dir, "unix:dev")).longValue();
+            }
+        } catch (IOException | UnsupportedOperationException | IllegalArgumentException e) {
+            // Not a Unix file system, or `dir` is gone: stat every entry.
+        }
+        return -1;
+    }
+
+    private static synchronized ForkJoinPool pool() {
+        if (pool == null) {
+            pool = new ForkJoinPool(Math.max(4, 2 * Runtime.getRuntime().availableProcessors()));
+        }
+        return pool;
+    }
+
+    private static Compiled compiled(String pattern) {
+        Compiled glob = compiled.get(pattern);
+        if (glob == null) {
+            if (compiled.size() >= CACHED_PATTERNS) {
+                compiled.clear();
+            }
+            glob = compile(pattern);
+            compiled.put(pattern, glob);
+        }
+        return glob;
+    }
+
+    private static Compiled compile(String pattern) {
+        var segments = new ArrayList<Segment>();
+        boolean globstar = false;
+        for (String text : split(pattern)) {
+            if (text.isEmpty()) {
+                continue;
+            }
+            if (text.equals("**")) {
+                // `**/**` is the same as `**`.
+                if (segments.isEmpty() || segments.get(segments.size() - 1) != Segment.GLOBSTAR) {
+                    segments.add(Segment.GLOBSTAR);
+                }
+                globstar = true;
+            } else {
+                segments.add(segment(text));
+            }
+        }
+        return new Compiled(segments.toArray(new Segment[0]), pattern.startsWith("/"), pattern.endsWith("/"),
+                globstar);
+    }
+
+    private static Segment segment(String text) {
+        if (hasWildcard(text)) {
+            boolean dotted = text.startsWith(".") || text.startsWith("\\.");
+            try {
+                return new Segment(null, FileSystems.getDefault().getPathMatcher("regex:" + toRegex(text)), dotted);
+            } catch (PatternSyntaxException e) {
+                // E.g. a reversed range, [z-a]: bash matches nothing with it, and the word stays as typed.
+            }
+        }
+        return new Segment(unescape(text), null, false);
+    }
+
+    // Splits at each '/' (an escaped one too: a name cannot contain it).
+    private static List<String> split(String pattern) {
+        var parts = new ArrayList<String>();
+        var part = new StringBuilder();
+        for (int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            if (c == '\\' && i + 1 < pattern.length()) {
+                if (pattern.charAt(i + 1) != '/') {
+                    part.append(c).append(pattern.charAt(++i));
+                }
+            } else if (c == '/') {
+                parts.add(part.toString());
+                part.setLength(0);
+            } else {
+                part.append(c);
+            }
+        }
+        parts.add(part.toString());
+        return parts;
+    }
+
+    private static boolean hasWildcard(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == '*' || c == '?' || c == '[' && classEnd(text, i) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String unescape(String text) {
+        if (text.indexOf('\\') < 0) {
+            return text;
+        }
+        var out = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\\' && i + 1 < text.length()) {
+                c = text.charAt(++i);
+            }
+            out.append(c);
+        }
+        return out.toString();
+    }
+
+    // The java.util.regex form of one segment: * and ? never match '/' (names have none), [...] is a bracket
+    // expression with ! or ^ negating and POSIX classes like [:alpha:], and an unclosed [ is literal.
+    private static String toRegex(String text) {
+        var out = new StringBuilder("(?s)");
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '\\' -> literal(out, i + 1 < text.length() ? text.charAt(++i) : '\\');
+                case '*' -> out.append(".*");
+                case '?' -> out.append('.');
+                case '[' -> {
+                    int end = classEnd(text, i);
+                    if (end < 0) {
+                        literal(out, c);
+                    } else {
+                        bracket(out, text, i + 1, end);
+                        i = end;
+                    }
+                }
+                default -> literal(out, c);
+            }
+        }
+        return out.toString();
+    }
+
+    private static void literal(StringBuilder out, char c) {
+        if ("\\^$.|?*+()[]{}".indexOf(c) >= 0) {
+            out.append('\\');
+        }
+        out.append(c);
+    }
+
+    // The index of the ']' closing the bracket expression that opens at `open`, or -1. A ']' right after the
+    // opening "[", "[!" or "[^" is a member, not the end.
+    private static int classEnd(String text, int open) {
+        int i = open + 1;
+        if (i < text.length() && (text.charAt(i) == '!' || text.charAt(i) == '^')) {
+            i++;
+        }
+        if (i < text.length() && text.charAt(i) == ']') {
+            i++;
+        }
+        for (; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == '[' && i + 1 < text.length() && text.charAt(i + 1) == ':') {
+                int close = text.indexOf(":]", i + 2);
+                if (close >= 0) {
+                    i = close + 1;
+                }
+            } else if (c == ']') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Appends the bracket expression text[from, end) as a regex character class.
+    private static void bracket(StringBuilder out, String text, int from, int end) {
+        out.append('[');
+        int i = from;
+        if (text.charAt(i) == '!' || text.charAt(i) == '^') {
+            out.append('^');
+            i++;
+        }
+        for (; i < end; i++) {
+            char c = text.charAt(i);
+            if (c == '[' && i + 1 < end && text.charAt(i + 1) == ':') {
+                int close = text.indexOf(":]", i + 2);
+                if (close >= 0 && close < end) {
+                    out.append(posixClass(text.substring(i + 2, close)));
+                    i = close + 1;
+                    continue;
+                }
+            }
+            if (c == '\\' && i + 1 < end) {
+                c = text.charAt(++i);
+            } else if (c == '-' && i > from && i + 1 < end) {
+                out.append('-');
+                continue;
+            }
+            if (Character.isLetterOrDigit(c)) {
+                out.append(c);
+            } else {
+                out.append('\\').append(c);
+            }
+        }
+        out.append(']');
+    }
+
+    private static String posixClass(String name) {
+        return switch (name) {
+            case "alpha" -> "\\p{Alpha}";
+            case "digit" -> "\\p{Digit}";
+            case "alnum" -> "\\p{Alnum}";
+            case "upper" -> "\\p{Upper}";
+            case "lower" -> "\\p{Lower}";
+            case "space" -> "\\p{Space}";
+            case "blank" -> "\\p{Blank}";
+            case "punct" -> "\\p{Punct}";
+            case "xdigit" -> "\\p{XDigit}";
+            case "cntrl" -> "\\p{Cntrl}";
+            case "print" -> "\\p{Print}";
+            case "graph" -> "\\p{Graph}";
+            default -> "";
+        };
+    }
+
+    // Matches segments[index..] in `dir`, whose matches are shown as `shown` + name. Descents for `**` are forked;
+    // others run inline (a pattern without `**` is never run on the pool). ForkJoinTask is Serializable, but a walk
+    // is never serialized.
+    @SuppressWarnings("serial")
+    private static final class Walk extends RecursiveTask<List<String>> {
+        private final Expansion run;
+        private final Compiled glob;
+        private final Path dir;
+        private final String shown;
+        private final int index;
+        private final List<String> out = new ArrayList<>();
+        private List<Walk> forks;
+
+        Walk(Expansion run, Path dir, String shown, int index) {
+            this.run = run;
+            this.glob = run.glob();
+            this.dir = dir;
+            this.shown = shown;
+            this.index = index;
+        }
+
+        @Override
+        protected List<String> compute() {
+            match(dir, shown, index);
+            if (forks != null) {
+                for (Walk fork : forks) {
+                    out.addAll(fork.join());
+                }
+            }
+            return out;
+        }
+
+        private void match(Path dir, String shown, int index) {
+            Segment segment = glob.segments()[index];
+            if (segment == Segment.GLOBSTAR) {
+                walk(dir, shown, index);
+            } else if (segment.literal() != null) {
+                matched(dir.resolve(segment.literal()), shown + segment.literal(), index, false);
+            } else {
+                try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+                    run.dirs().increment();
+                    for (Path entry : entries) {
+                        Path name = entry.getFileName();
+                        if (matches(segment, name)) {
+                            matched(entry, shown + name, index, true);
+                        }
+                    }
+                } catch (IOException | DirectoryIteratorException e) {
+                    // Unreadable or not a directory: no matches, as in bash.
+                }
+            }
+        }
+
+        // `path` matched segments[index]: it is a result, or the directory the next segment is matched in. A
+        // literal match is only known to exist once it has been stat'ed.
+        private void matched(Path path, String name, int index, boolean exists) {
+            if (index + 1 < glob.segments().length) {
+                if (Files.isDirectory(path)) {
+                    if (index + 2 == glob.segments().length && glob.segments()[index + 1] == Segment.GLOBSTAR) {
+                        // A trailing `**` matches zero directories too: `dir/**` starts with dir itself (spelled "dir/",
+                        // as bash does, when the pattern up to it has no wildcard).
+                        out.add(glob.dirsOnly() || literalUpTo(index) ? name + "/" : name);
+                    }
+                    match(path, name + "/", index + 1);
+                }
+            } else if (glob.dirsOnly()) {
+                if (Files.isDirectory(path)) {
+                    out.add(name + "/");
+                }
+            } else if (exists || Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+                out.add(name);
+            }
+        }
+
+        // segments[index] is `**`: the rest of the pattern is matched in `dir` and in every directory below it.
+        private void walk(Path dir, String shown, int index) {
+            boolean last = index + 1 == glob.segments().length;
+            Segment next = last ? null : glob.segments()[index + 1];
+            if (next != null && next.literal() != null) {
+                match(dir, shown, index + 1);
+            }
+            // `**/` also lists symlinks to directories, so it checks every entry.
+            int subdirs = last && glob.dirsOnly() ? -1 : subdirectories(dir);
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+                run.dirs().increment();
+                for (Path entry : entries) {
+                    Path name = entry.getFileName();
+                    boolean hidden = name.toString().startsWith(".");
+                    if (last && !hidden && !glob.dirsOnly()) {
+                        out.add(shown + name);
+                    } else if (next != null && next.matcher() != null && matches(next, name)) {
+                        // The next segment is matched against this listing rather than a second one.
+                        matched(entry, shown + name, index + 1, true);
+                    }
+                    if (subdirs == 0 || hidden && subdirs < 0) {
+                        // All the subdirectories (if any) have been seen: the rest are files.
+                        continue;
+                    }
+                    boolean directory = Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS);
+                    if (directory && subdirs > 0) {
+                        subdirs--;
+                    }
+                    if (hidden) {
+                        continue;
+                    }
+                    // `**/` lists a symlink to a directory too, but no walk goes through one.
+                    if (last && glob.dirsOnly() && (directory || Files.isDirectory(entry))) {
+                        out.add(shown + name + "/");
+                    }
+                    if (directory) {
+                        fork(new Walk(run, entry, shown + name + "/", index));
+                    }
+                }
+            } catch (IOException | DirectoryIteratorException e) {
+                // Unreadable: nothing below it matches.
+            }
+        }
+
+        private boolean literalUpTo(int index) {
+            for (int i = 0; i <= index; i++) {
+                if (glob.segments()[i].literal() == null) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // How many subdirectories `dir` has, from its link count, when that is known to be one; else -1.
+        private int subdirectories(Path dir) {
+            if (run.leafDevice() < 0) {
+                return -1;
+            }
+            try {
+                Map<String, Object> attributes = Files.readAttributes(dir, "unix:dev,nlink");
+                int links = ((Number) attributes.get("nlink")).intValue();
+                boolean counted = ((Number) attributes.get("dev")).longValue() == run.leafDevice() && links >= 2;
+                return counted ? links - 2 : -1;
+            } catch (IOException e) {
+                return -1;
+            }
+        }
+
+        private void fork(Walk walk) {
+            if (forks == null) {
+                forks = new ArrayList<>();
+            }
+            forks.add(walk);
+            walk.fork();
+        }
+
+        private static boolean matches(Segment segment, Path name) {
+            return (segment.dotted() || !name.toString().startsWith(".")) && segment.matcher().matches(name);
+        }
+    }
+}
@@ -0,0 +1,917 @@
+package shell;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * The session's command history and its HISTFILE persistence ({@code history -r/-w/-a/-n}).
+ *
+ * <p>Entries are a ring of {@code long} references, bounded by {@code HISTSIZE} (unset or negative: no limit). A
+ * reference points either at a line of a memory-mapped HISTFILE ({@link HistoryFile}), which is only decoded when
+ * shown or recalled, or at UTF-8 bytes in a byte arena for lines added in this session; no entry is kept as a
+ * String. The arena is compacted once evicted or erased lines make up half of it.
+ *
+ * <p>{@code HISTCONTROL} is a colon-separated list of {@code ignorespace}, {@code ignoredups}, {@code ignoreboth} and
+ * {@code erasedups}. For {@code erasedups} every entry's hash is kept next to it, with a counting table of hashes so
+ * that adding a line that is not a duplicate does not scan the history. {@code HISTFILESIZE} caps the number of
+ * lines {@code -w} and {@code -a} leave in the file.
+ *
+ * <p>Every entry also gets a sequence number that never changes, so the search index can refer to entries while
+ * older ones are evicted or erased.
+ *
+ * <p>Sessions sharing a HISTFILE serialize their writes with a {@link FileLock} on a {@code .lock} file next to it;
+ * reads take a shared lock on it if it exists, and read unlocked otherwise.
+ * Each session remembers how far it has read the file, and which appends past that were its own, so
+ * {@code history -n} ({@link #readNew}) reads only the bytes other sessions appended since.
+ *
+ * <p>Methods are synchronized: builtins in a pipeline and the search index read it from other threads.
+ */
+public final class History {
+    // A negative ref is a line of a mapped file: MAPPED | slot << SLOT_SHIFT | HistoryFile packed line.
+    // Any other ref is a line in the arena: offset << 32 | length.
+    private static final long MAPPED = Long.MIN_VALUE;
+    private static final int SLOT_SHIFT = HistoryFile.START_BITS + HistoryFile.LENGTH_BITS;
+    private static final long LINE_MASK = (1L << SLOT_SHIFT) - 1;
+    private static final int SLOTS = 256;
+    private static final int MAX_CAPACITY = Integer.MAX_VALUE - 8;
+
+    private final int maxSize;
+    private final int maxFileSize;
+    private final boolean ignoreSpace;
+    private final boolean ignoreDups;
+    private final boolean eraseDups;
+
+    // Ring, oldest entry at `head`.
+    private long[] refs = new long[16];
+    private int[] seqs = new int[16];
+    private int head;
+    private int size;
+    private int nextSeq;
+    // Entries dropped off the front, so numbers shown by `history` keep counting like bash's.
+    private int evicted;
+
+    private final HistoryFile[] files = new HistoryFile[SLOTS];
+    private final int[] fileLive = new int[SLOTS];
+
+    private byte[] arena = new byte[4096];
+    private int arenaUsed;
+    private long arenaLive;
+
+    // erasedups only: hash per ring slot, and live entries per hash bucket.
+    private int[] hashes;
+    private int[] hashCounts;
+
+    // Entries with a smaller sequence number have already been flushed to disk via history -a/-w/-r
+    private int persistedSeq = 0;
+
+    // File writes and tail reads; held around (never inside) this object's monitor, so that adding a command never
+    // waits for the disk or for another session's lock.
+    private final Object io = new Object();
+
+    // The HISTFILE this session follows for `history -n`: bytes before tailOffset were read or written by us, as were
+    // the [start, end) pairs in ownRanges (appends made after another session had appended).
+    private Path tailPath;
+    private Object tailKey;
+    private long tailOffset;
+    private long[] ownRanges = new long[8];
+    private int ownCount;
+
+    /** Configured from {@code HISTSIZE}, {@code HISTFILESIZE} and {@code HISTCONTROL}. */
+    public History() {
+        this(limit(System.getenv("HISTSIZE")), limit(System.getenv("HISTFILESIZE")), System.getenv("HISTCONTROL"));
+    }
+
+    /** {@code maxSize} and {@code maxFileSize} are -1 for no limit; {@code control} is a HISTCONTROL value or null. */
+    public History(int maxSize, int maxFileSize, String control) {
+        this.maxSize = maxSize;
+        this.maxFileSize = maxFileSize;
+        boolean space = false;
+        boolean dups = false;
+        boolean erase = false;
+        if (control != null) {
+            for (String option : control.split(":")) {
+                switch (option.strip()) {
+                    case "ignorespace" -> space = true;
+                    case "ignoredups" -> dups = true;
+                    case "ignoreboth" -> {
+                        space = true;
+                        dups = true;
+                    }
+                    case "erasedups" -> erase = true;
+                    default -> {
+                        // unknown values are ignored, as in bash
+                    }
+                }
+            }
+        }
+        this.ignoreSpace = space;
+        this.ignoreDups = dups;
+        this.eraseDups = erase;
+    }
+
+    // A HISTSIZE-style value: unset, non-numeric or negative means no limit.
+    private static int limit(String value) {
+        if (value == null || value.isBlank()) {
+            return -1;
+        }
+        try {
+            return Math.max(Integer.parseInt(value.strip()), -1);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized boolean isEmpty() {
+        return size == 0;
+    }
+
+    public synchronized String get(int index) {
+        try {
+            return new String(bytes(refAt(index)).toArray(ValueLayout.JAVA_BYTE), StandardCharsets.UTF_8);
+        } catch (InternalError e) {
+            // HISTFILE truncated underneath its mapping.
+            return "";
+        }
+    }
+
+    /** Number of entries evicted from the front; `history` shows entry {@code i} as {@code base() + i + 1}. */
+    public synchronized int base() {
+        return evicted;
+    }
+
+    // Entry `index` as UTF-8, viewed in place (the mapping or the arena).
+    synchronized MemorySegment bytes(int index) {
+        return bytes(refAt(index));
+    }
+
+    /** Sequence number of entry {@code index}: assigned when it was added and never reused. */
+    synchronized int seqAt(int index) {
+        return seqs[slot(checkIndex(index))];
+    }
+
+    /** Sequence number the next entry will get. */
+    synchronized int nextSeq() {
+        return nextSeq;
+    }
+
+    /** Index of the entry with sequence number {@code seq}, or {@code -(insertion point) - 1} if it is gone. */
+    synchronized int indexOfSeq(int seq) {
+        int lo = 0;
+        int hi = size - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int s = seqs[slot(mid)];
+            if (s < seq) {
+                lo = mid + 1;
+            } else if (s > seq) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(lo + 1);
+    }
+
+    public synchronized void add(String line) {
+        if (maxSize == 0 || (ignoreSpace && line.startsWith(" "))) {
+            return;
+        }
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        var segment = MemorySegment.ofArray(bytes);
+        if (ignoreDups && size > 0 && same(refAt(size - 1), segment)) {
+            return;
+        }
+        if (eraseDups) {
+            erase(segment);
+        }
+        push(store(bytes));
+    }
+
+    public synchronized int persistedIndex() {
+        int i = indexOfSeq(persistedSeq);
+        return i >= 0 ? i : -i - 1;
+    }
+
+    /**
+     * Appends the non-blank lines of {@code path} to the history (only the last HISTSIZE of them are kept), and
+     * follows {@code path} from its current end for {@link #readNew}.
+     */
+    public void read(Path path) {
+        synchronized (io) {
+            try {
+                if (!Files.exists(path)) {
+                    synchronized (this) {
+                        maybeFollow(path, 0);
+                    }
+                    return;
+                }
+                readLocked(path, () -> {
+                    readAll(path);
+                    return null;
+                });
+            } catch (IOException | InternalError ignored) {
+                // If file can't be read, do nothing for this stage
+            }
+        }
+    }
+
+    private synchronized void readAll(Path path) throws IOException {
+        HistoryFile file = HistoryFile.open(path);
+        maybeFollow(path, file.data.byteSize());
+        int n = file.size();
+        int keep = maxSize >= 0 ? Math.min(n, maxSize) : n;
+        int slot = freeSlot();
+        reserve(keep);
+        for (int i = n - keep; i < n; i++) {
+            if (slot >= 0) {
+                files[slot] = file;
+                fileLive[slot]++;
+                push(MAPPED | (long) slot << SLOT_SHIFT | file.line(i));
+            } else {
+                // Every slot holds a live file (256 reads): copy the lines instead.
+                push(store(file.bytes(file.line(i)).toArray(ValueLayout.JAVA_BYTE)));
+            }
+        }
+        file.dropIndex();
+        // Everything we just loaded is already persisted.
+        persistedSeq = nextSeq;
+    }
+
+    /**
+     * Replaces the contents of {@code path} with the history (its last HISTFILESIZE entries). The new file is
+     * written next to it and renamed over it, so a mapping of the old file (possibly our own) stays readable.
+     */
+    public void write(Path path) {
+        synchronized (io) {
+            try {
+                locked(path, () -> {
+                    synchronized (this) {
+                        int from = maxFileSize >= 0 ? Math.max(size - maxFileSize, 0) : 0;
+                        replace(path, out -> writeEntries(out, from));
+                        // All history entries are now persisted.
+                        persistedSeq = nextSeq;
+                        maybeFollow(path, Files.size(path));
+                    }
+                    return null;
+                });
+            } catch (IOException ignored) {
+                // If file can't be written, do nothing for this stage
+            }
+        }
+    }
+
+    /**
+     * Appends the entries added since the last read/write/append to {@code path}, then applies HISTFILESIZE.
+     *
+     * <p>The entries are copied out first and written without holding this object's monitor, so the shell can keep
+     * adding commands while a (possibly lock-contended) append is in progress.
+     */
+    public void append(Path path) {
+        synchronized (io) {
+            byte[] pending;
+            int upTo;
+            synchronized (this) {
+                // Append only commands that have not yet been written out.
+                if (persistedSeq >= nextSeq) {
+                    return; // nothing new to append
+                }
+                pending = unpersisted();
+                upTo = nextSeq;
+            }
+            try {
+                locked(path, () -> {
+                    long before;
+                    long after;
+                    try (var channel = FileChannel.open(path,
+                            StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                        before = channel.size();
+                        var buffer = ByteBuffer.wrap(pending);
+                        while (buffer.hasRemaining()) {
+                            channel.write(buffer);
+                        }
+                        after = channel.size();
+                    }
+                    synchronized (this) {
+                        // Update persisted entries to reflect appended ones.
+                        persistedSeq = Math.max(persistedSeq, upTo);
+                        if (tailPath == null) {
+                            follow(path, 0);
+                        }
+                        if (isTail(path)) {
+                            own(before, after);
+                        }
+                    }
+                    if (maxFileSize >= 0) {
+                        try {
+                            if (truncateFile(path, maxFileSize)) {
+                                synchronized (this) {
+                                    // A new file: `-n` continues from its end.
+                                    follow(path, Files.size(path));
+                                }
+                            }
+                        } catch (IOException | InternalError ignored) {
+                            // Keeping a longer file is harmless.
+                        }
+                    }
+                    return null;
+                });
+            } catch (IOException ignored) {
+                // If file can't be appended, do nothing for this stage
+            }
+        }
+    }
+
+    /**
+     * Appends the lines other sessions added to {@code path} since this session last read or wrote it ({@code history
+     * -n}), reading only those bytes. A file that was not followed yet is read whole, as by {@link #read}; one that
+     * was rewritten or truncated since is followed from its new end, since what is new in it cannot be told.
+     */
+    public void readNew(Path path) {
+        synchronized (io) {
+            try {
+                synchronized (this) {
+                    // The common case, checked without taking the lock: nothing was appended.
+                    if (isTail(path) && Files.size(path) == tailOffset) {
+                        return;
+                    }
+                }
+                readLocked(path, () -> {
+                    readTail(path);
+                    return null;
+                });
+            } catch (IOException | InternalError ignored) {
+                // Missing or unreadable file: nothing new
+            }
+        }
+    }
+
+    private void readTail(Path path) throws IOException {
+        long from;
+        long[] skip;
+        synchronized (this) {
+            if (!isTail(path)) {
+                if (!follows(path)) {
+                    tailPath = null;
+                    readAll(path);
+                    return;
+                }
+                follow(path, Files.size(path));
+                return;
+            }
+            from = tailOffset;
+            skip = Arrays.copyOf(ownRanges, ownCount);
+        }
+        byte[] tail;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long length = channel.size();
+            if (length < from) {
+                synchronized (this) {
+                    follow(path, length);
+                }
+                return;
+            }
+            tail = new byte[(int) Math.min(length - from, MAX_CAPACITY)];
+            var buffer = ByteBuffer.wrap(tail);
+            while (buffer.hasRemaining() && channel.read(buffer, from + buffer.position()) > 0) {
+                // keep reading
+            }
+        }
+        var data = MemorySegment.ofArray(tail);
+        // Only complete lines: the last one may still be in the middle of being written by a session that does
+        // not lock the file.
+        long end = tail.length;
+        while (end > 0 && tail[(int) end - 1] != '\n') {
+            end--;
+        }
+        synchronized (this) {
+            boolean allPersisted = persistedSeq >= nextSeq;
+            int own = 0;
+            long start = 0;
+            while (start < end) {
+                long lineEnd = HistoryFile.lineEnd(data, start, end);
+                long trimmed = HistoryFile.trimmedEnd(data, start, lineEnd);
+                while (own < skip.length && skip[own + 1] <= from + start) {
+                    own += 2;
+                }
+                boolean ours = own < skip.length && skip[own] <= from + start;
+                if (trimmed > start && !ours) {
+                    push(store(Arrays.copyOfRange(tail, (int) start, (int) trimmed)));
+                }
+                start = lineEnd + 1;
+            }
+            if (allPersisted) {
+                // Lines other sessions wrote are already in the file; our own unsaved ones still need -a.
+                persistedSeq = nextSeq;
+            }
+            tailOffset = from + end;
+            // Ranges beyond what was read stay ours.
+            int kept = 0;
+            for (int i = 0; i < ownCount; i += 2) {
+                if (ownRanges[i] >= tailOffset) {
+                    ownRanges[kept++] = ownRanges[i];
+                    ownRanges[kept++] = ownRanges[i + 1];
+                }
+            }
+            ownCount = kept;
+        }
+    }
+
+    // --- following HISTFILE ---
+
+    private static Path absolute(Path path) {
+        return path.toAbsolutePath().normalize();
+    }
+
+    // Identity of the file at `path` (inode), to notice it being replaced by another session's -w.
+    private static Object fileKey(Path path) throws IOException {
+        return Files.readAttributes(path, BasicFileAttributes.class).fileKey();
+    }
+
+    // Follows `path` from `offset`.
+    private void follow(Path path, long offset) throws IOException {
+        tailPath = absolute(path);
+        tailKey = Files.exists(path) ? fileKey(path) : null;
+        tailOffset = offset;
+        ownCount = 0;
+    }
+
+    // Follows `path` from `offset`, unless another file is followed already.
+    private void maybeFollow(Path path, long offset) throws IOException {
+        if (tailPath == null || follows(path)) {
+            follow(path, offset);
+        }
+    }
+
+    private boolean follows(Path path) {
+        return tailPath != null && tailPath.equals(absolute(path));
+    }
+
+    // Whether `path` is the followed file and still the same file.
+    private boolean isTail(Path path) throws IOException {
+        if (!follows(path)) {
+            return false;
+        }
+        Object key = fileKey(path);
+        if (tailKey == null && tailOffset == 0) {
+            tailKey = key; // did not exist yet when we started following it
+        }
+        return Objects.equals(tailKey, key);
+    }
+
+    // Records [start, end) of the followed file as written by us.
+    private void own(long start, long end) {
+        if (ownCount == 0 && start == tailOffset) {
+            tailOffset = end;
+        } else if (ownCount > 0 && ownRanges[ownCount - 1] == start) {
+            ownRanges[ownCount - 1] = end;
+        } else {
+            if (ownCount == ownRanges.length) {
+                ownRanges = Arrays.copyOf(ownRanges, ownCount * 2);
+            }
+            ownRanges[ownCount++] = start;
+            ownRanges[ownCount++] = end;
+        }
+    }
+
+    // --- ring ---
+
+    private int slot(int index) {
+        int p = head + index;
+        return p >= refs.length ? p - refs.length : p;
+    }
+
+    private int checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException(index);
+        }
+        return index;
+    }
+
+    private long refAt(int index) {
+        return refs[slot(checkIndex(index))];
+    }
+
+    private void push(long ref) {
+        if (maxSize == 0) {
+            release(ref);
+            return;
+        }
+        if (size == maxSize) {
+            evictOldest();
+        }
+        if (size == refs.length) {
+            resize(grownCapacity(size + 1));
+        }
+        int p = slot(size);
+        refs[p] = ref;
+        seqs[p] = nextSeq++;
+        size++;
+        if (hashes != null) {
+            int h = hash(bytes(ref));
+            hashes[p] = h;
+            countHash(h, 1);
+        }
+    }
+
+    private void evictOldest() {
+        release(refs[head]);
+        if (hashes != null) {
+            countHash(hashes[head], -1);
+        }
+        head = slot(1);
+        size--;
+        evicted++;
+    }
+
+    // Makes room for `more` entries at once (bounded by HISTSIZE).
+    private void reserve(int more) {
+        long wanted = (long) size + more;
+        if (maxSize >= 0) {
+            wanted = Math.min(wanted, maxSize);
+        }
+        if (wanted > refs.length) {
+            resize((int) Math.min(wanted, MAX_CAPACITY));
+        }
+    }
+
+    private int grownCapacity(int minimum) {
+        long grown = Math.max((long) refs.length * 2, minimum);
+        if (maxSize >= 0) {
+            grown = Math.min(grown, maxSize);
+        }
+        return (int) Math.min(grown, MAX_CAPACITY);
+    }
+
+    // Copies the ring into arrays of `capacity`, oldest entry first.
+    private void resize(int capacity) {
+        long[] newRefs = new long[capacity];
+        int[] newSeqs = new int[capacity];
+        int[] newHashes = hashes != null ? new int[capacity] : null;
+        for (int i = 0; i < size; i++) {
+            int p = slot(i);
+            newRefs[i] = refs[p];
+            newSeqs[i] = seqs[p];
+            if (newHashes != null) {
+                newHashes[i] = hashes[p];
+            }
+        }
+        refs = newRefs;
+        seqs = newSeqs;
+        hashes = newHashes;
+        head = 0;
+        if (hashes != null && capacity > hashCounts.length / 2) {
+            rebuildHashCounts();
+        }
+    }
+
+    // --- storage ---
+
+    private MemorySegment bytes(long ref) {
+        if (ref < 0) {
+            return files[(int) (ref >>> SLOT_SHIFT) & (SLOTS - 1)].bytes(ref & LINE_MASK);
+        }
+        return MemorySegment.ofArray(arena).asSlice(ref >>> 32, (int) ref);
+    }
+
+    private void release(long ref) {
+        if (ref < 0) {
+            int slot = (int) (ref >>> SLOT_SHIFT) & (SLOTS - 1);
+            if (--fileLive[slot] == 0) {
+                files[slot] = null; // last entry of that file gone: let the mapping go
+            }
+        } else {
+            arenaLive -= (int) ref;
+        }
+    }
+
+    private int freeSlot() {
+        for (int s = 0; s < SLOTS; s++) {
+            if (files[s] == null) {
+                return s;
+            }
+        }
+        return -1;
+    }
+
+    // Copies `bytes` into the arena and returns its ref.
+    private long store(byte[] bytes) {
+        if (arenaUsed + bytes.length > arena.length) {
+            if (arenaLive * 2 < arenaUsed) {
+                compactArena(bytes.length);
+            }
+            if (arenaUsed + bytes.length > arena.length) {
+                long grown = Math.max((long) arena.length * 2, (long) arenaUsed + bytes.length);
+                arena = Arrays.copyOf(arena, (int) Math.min(grown, MAX_CAPACITY));
+            }
+        }
+        long ref = (long) arenaUsed << 32 | bytes.length;
+        System.arraycopy(bytes, 0, arena, arenaUsed, bytes.length);
+        arenaUsed += bytes.length;
+        arenaLive += bytes.length;
+        return ref;
+    }
+
+    // Moves the live arena lines to the front of a right-sized arena, rewriting their refs.
+    private void compactArena(int room) {
+        long capacity = Math.max(4096, (arenaLive + room) * 2);
+        byte[] compacted = new byte[(int) Math.min(capacity, MAX_CAPACITY)];
+        int used = 0;
+        for (int i = 0; i < size; i++) {
+            int p = slot(i);
+            long ref = refs[p];
+            if (ref >= 0) {
+                int length = (int) ref;
+                System.arraycopy(arena, (int) (ref >>> 32), compacted, used, length);
+                refs[p] = (long) used << 32 | length;
+                used += length;
+            }
+        }
+        arena = compacted;
+        arenaUsed = used;
+        arenaLive = used;
+    }
+
+    // --- duplicates ---
+
+    private static boolean same(MemorySegment a, MemorySegment b) {
+        try {
+            return a.mismatch(b) == -1;
+        } catch (InternalError e) {
+            return false;
+        }
+    }
+
+    private boolean same(long ref, MemorySegment bytes) {
+        return same(bytes(ref), bytes);
+    }
+
+    // Removes every entry equal to `line`.
+    private void erase(MemorySegment line) {
+        if (hashes == null) {
+            hashes = new int[refs.length];
+            for (int i = 0; i < size; i++) {
+                int p = slot(i);
+                hashes[p] = hash(bytes(refs[p]));
+            }
+            rebuildHashCounts();
+        }
+        int h = hash(line);
+        if (hashCounts[h & (hashCounts.length - 1)] == 0) {
+            return; // no entry with that hash: not a duplicate
+        }
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            int p = slot(i);
+            if (hashes[p] == h && same(refs[p], line)) {
+                release(refs[p]);
+                countHash(h, -1);
+                continue;
+            }
+            if (kept != i) {
+                int q = slot(kept);
+                refs[q] = refs[p];
+                seqs[q] = seqs[p];
+                hashes[q] = hashes[p];
+            }
+            kept++;
+        }
+        size = kept;
+    }
+
+    private void rebuildHashCounts() {
+        hashCounts = new int[Math.max(1024, Integer.highestOneBit(Math.max(refs.length, 1)) * 2)];
+        for (int i = 0; i < size; i++) {
+            countHash(hashes[slot(i)], 1);
+        }
+    }
+
+    private void countHash(int h, int delta) {
+        hashCounts[h & (hashCounts.length - 1)] += delta;
+    }
+
+    private static int hash(MemorySegment bytes) {
+        int h = 0x811C9DC5;
+        try {
+            for (long i = 0, n = bytes.byteSize(); i < n; i++) {
+                h = (h ^ bytes.get(ValueLayout.JAVA_BYTE, i)) * 0x01000193;
+            }
+        } catch (InternalError e) {
+            // truncated mapping: hash what was readable
+        }
+        return h ^ (h >>> 16);
+    }
+
+    // --- files ---
+
+    private interface Body {
+        void writeTo(Sink out) throws IOException;
+    }
+
+    // Writes a new file next to `path` and renames it over `path`.
+    private static void replace(Path path, Body body) throws IOException {
+        createParent(path);
+        Path dir = path.toAbsolutePath().getParent();
+        Path tmp = Files.createTempFile(dir, path.getFileName().toString(), ".tmp");
+        try {
+            try (var out = new Sink(FileChannel.open(tmp, StandardOpenOption.WRITE), 1 << 16)) {
+                body.writeTo(out);
+            }
+            try {
+                Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    // Writes entries [from, size) one per line, copying their bytes as they are.
+    private void writeEntries(Sink out, int from) throws IOException {
+        for (int i = from; i < size; i++) {
+            out.write(bytes(refs[slot(i)]));
+            out.newline();
+        }
+    }
+
+    // Copies of the entries not persisted yet, one per line.
+    private byte[] unpersisted() {
+        int from = persistedIndex();
+        long length = 0;
+        for (int i = from; i < size; i++) {
+            length += bytes(refs[slot(i)]).byteSize() + 1;
+        }
+        byte[] out = new byte[(int) Math.min(length, MAX_CAPACITY)];
+        int n = 0;
+        for (int i = from; i < size && n < out.length; i++) {
+            var line = bytes(refs[slot(i)]);
+            int written = (int) Math.min(line.byteSize(), out.length - n - 1);
+            try {
+                MemorySegment.copy(line, ValueLayout.JAVA_BYTE, 0, out, n, written);
+            } catch (InternalError e) {
+                // Source file truncated underneath its mapping: the entry is written empty.
+                written = 0;
+            }
+            n += written;
+            out[n++] = '\n';
+        }
+        return n == out.length ? out : Arrays.copyOf(out, n);
+    }
+
+    // Runs `body` holding an exclusive lock shared by every session that uses `path`. The lock is taken on a file
+    // next to it rather than on `path` itself, which `-w` and HISTFILESIZE replace with a new file.
+    private static <T> T locked(Path path, Locked<T> body) throws IOException {
+        createParent(path);
+        try (FileChannel channel = FileChannel.open(lockFile(path), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            FileLock lock = channel.lock();
+            try {
+                return body.run();
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    // Runs a read of `path` holding a shared lock, which waits for a writer. Only a writer creates the lock file:
+    // when there is none, or it cannot be locked (read-only, not a file), the file is read without the lock rather
+    // than not at all.
+    private static <T> T readLocked(Path path, Locked<T> body) throws IOException {
+        FileChannel channel = null;
+        FileLock lock = null;
+        try {
+            channel = FileChannel.open(lockFile(path), StandardOpenOption.READ);
+            lock = channel.lock(0, Long.MAX_VALUE, true);
+        } catch (IOException e) {
+            // read unlocked
+        }
+        try {
+            return body.run();
+        } finally {
+            if (lock != null) {
+                lock.release();
+            }
+            if (channel != null) {
+                channel.close();
+            }
+        }
+    }
+
+    private static Path lockFile(Path path) {
+        return path.resolveSibling(path.getFileName() + ".lock");
+    }
+
+    private interface Locked<T> {
+        T run() throws IOException;
+    }
+
+    // Keeps only the last `lines` lines of `path`; false if it had no more than that.
+    private static boolean truncateFile(Path path, int lines) throws IOException {
+        MemorySegment data;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() == 0) {
+                return false;
+            }
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size(), Arena.ofAuto());
+        }
+        long end = data.byteSize();
+        long cut = lines == 0 ? end : -1;
+        long i = data.get(ValueLayout.JAVA_BYTE, end - 1) == '\n' ? end - 1 : end;
+        int seen = 0;
+        while (cut < 0 && i > 0) {
+            i--;
+            if (data.get(ValueLayout.JAVA_BYTE, i) == '\n' && ++seen == lines) {
+                cut = i + 1;
+            }
+        }
+        if (cut <= 0) {
+            return false;
+        }
+        long from = cut;
+        replace(path, out -> out.write(data.asSlice(from)));
+        return true;
+    }
+
+    private static void createParent(Path path) {
+        try {
+            if (path.getParent() != null) {
+                Files.createDirectories(path.getParent());
+            }
+        } catch (IOException ignored) {
+        }
+    }
+
+    // Buffered writes of mapped or arena bytes to a channel.
+    private static final class Sink implements AutoCloseable {
+        private final FileChannel channel;
+        private final ByteBuffer buffer;
+        private final MemorySegment bufferSegment;
+
+        Sink(FileChannel channel, int bufferSize) {
+            this.channel = channel;
+            this.buffer = ByteBuffer.allocate(bufferSize);
+            this.bufferSegment = MemorySegment.ofBuffer(buffer);
+        }
+
+        void write(MemorySegment bytes) throws IOException {
+            long offset = 0;
+            long length = bytes.byteSize();
+            while (offset < length) {
+                if (!buffer.hasRemaining()) {
+                    drain();
+                }
+                int n = (int) Math.min(buffer.remaining(), length - offset);
+                try {
+                    MemorySegment.copy(bytes, ValueLayout.JAVA_BYTE, offset, bufferSegment, ValueLayout.JAVA_BYTE,
+                            buffer.position(), n);
+                } catch (InternalError e) {
+                    // Source file truncated underneath its mapping: the entry is written empty.
+                    return;
+                }
+                buffer.position(buffer.position() + n);
+                offset += n;
+            }
+        }
+
+        void newline() throws IOException {
+            if (!buffer.hasRemaining()) {
+                drain();
+            }
+            buffer.put((byte) '\n');
+        }
+
+        private void drain() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                drain();
+            } finally {
+                channel.close();
+            }
+        }
+    }
+}
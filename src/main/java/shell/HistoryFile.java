@@ -0,0 +1,152 @@
+package shell;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * A HISTFILE mapped into memory, and the line index {@link History} keeps entries of it by.
+ *
+ * <p>Opening the file only finds the line breaks (eight bytes at a time) and records where each non-blank line starts
+ * and how long it is once trailing whitespace is dropped, packed into one {@code long} ({@link #pack}). Entries are
+ * read from the mapping when they are asked for, so loading millions of lines costs a few bytes of heap each.
+ *
+ * <p>The mapping is released by the GC once no history entry refers to it. {@link History#write} replaces files by
+ * renaming a new one over them, which keeps the old mapping valid; if another program truncates the file in place,
+ * reading the lost range throws {@link InternalError}, which callers treat as an empty entry.
+ */
+final class HistoryFile {
+    private static final ValueLayout.OfLong WORD = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+    private static final long ONES = 0x0101010101010101L;
+    private static final long HIGHS = 0x8080808080808080L;
+    private static final long NEWLINES = 0x0A0A0A0A0A0A0A0AL;
+
+    // Packed line: start << LENGTH_BITS | length, START_BITS + LENGTH_BITS bits in all. Lines of MAX_LENGTH bytes
+    // or more store MAX_LENGTH and are measured again when read.
+    static final int LENGTH_BITS = 20;
+    static final int START_BITS = 35;
+    private static final long MAX_LENGTH = (1L << LENGTH_BITS) - 1;
+
+    final MemorySegment data;
+    // Packed lines, [0, size); dropped by History once it has taken the ones it keeps.
+    private long[] index;
+    private final int size;
+
+    private HistoryFile(MemorySegment data, long[] index, int size) {
+        this.data = data;
+        this.index = index;
+        this.size = size;
+    }
+
+    /** Maps {@code path} and indexes its non-blank lines. */
+    static HistoryFile open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long length = channel.size();
+            if (length == 0) {
+                return new HistoryFile(MemorySegment.NULL, new long[0], 0);
+            }
+            if (length >= 1L << START_BITS) {
+                throw new IOException("history file too large: " + path);
+            }
+            MemorySegment data = channel.map(FileChannel.MapMode.READ_ONLY, 0, length, Arena.ofAuto());
+            var indexer = new Indexer(data, length);
+            indexer.run();
+            return new HistoryFile(data, indexer.index, indexer.size);
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    /** The packed line {@code i}; only valid until {@link #dropIndex()}. */
+    long line(int i) {
+        return index[i];
+    }
+
+    void dropIndex() {
+        index = null;
+    }
+
+    /** The bytes of a packed line, as a view of the mapping. */
+    MemorySegment bytes(long packed) {
+        long start = packed >>> LENGTH_BITS;
+        long length = packed & MAX_LENGTH;
+        if (length == MAX_LENGTH) {
+            length = trimmedEnd(data, start, lineEnd(data, start, data.byteSize())) - start;
+        }
+        return data.asSlice(start, length);
+    }
+
+    static long pack(long start, long length) {
+        return start << LENGTH_BITS | Math.min(length, MAX_LENGTH);
+    }
+
+    // Index of the first '\n' at or after `from`, or `limit`.
+    static long lineEnd(MemorySegment data, long from, long limit) {
+        long i = from;
+        while (i + Long.BYTES <= limit) {
+            long x = data.get(WORD, i) ^ NEWLINES;
+            long found = (x - ONES) & ~x & HIGHS;
+            if (found != 0) {
+                return i + (Long.numberOfTrailingZeros(found) >>> 3);
+            }
+            i += Long.BYTES;
+        }
+        while (i < limit && data.get(ValueLayout.JAVA_BYTE, i) != '\n') {
+            i++;
+        }
+        return i;
+    }
+
+    // End of [start, end) with trailing whitespace (as String.stripTrailing sees ASCII) removed.
+    static long trimmedEnd(MemorySegment data, long start, long end) {
+        while (end > start && isSpace(data.get(ValueLayout.JAVA_BYTE, end - 1))) {
+            end--;
+        }
+        return end;
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || (b >= '\t' && b <= '\r') || (b >= 0x1C && b <= 0x1F);
+    }
+
+    private static final class Indexer {
+        final MemorySegment data;
+        final long length;
+        long[] index;
+        int size;
+
+        Indexer(MemorySegment data, long length) {
+            this.data = data;
+            this.length = length;
+            // Guess from a typical 40-byte history line; grown as needed.
+            this.index = new long[(int) Math.min(Math.max(length / 40, 16), Integer.MAX_VALUE - 8)];
+        }
+
+        void run() {
+            long start = 0;
+            while (start < length) {
+                long end = lineEnd(data, start, length);
+                long trimmed = trimmedEnd(data, start, end);
+                if (trimmed > start) {
+                    add(start, trimmed - start);
+                }
+                start = end + 1;
+            }
+        }
+
+        void add(long start, long length) {
+            if (size == index.length) {
+                index = Arrays.copyOf(index, index.length + (index.length >> 1) + 16);
+            }
+            index[size++] = pack(start, length);
+        }
+    }
+}
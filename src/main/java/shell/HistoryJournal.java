@@ -0,0 +1,130 @@
+package shell;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+
+/**
+ * Write-behind persistence of the history to HISTFILE, so commands survive a crash and reach other sessions as soon
+ * as they run instead of at {@code exit}.
+ *
+ * <p>{@link #commit()} only wakes a background thread; running a command never waits for the disk. The thread appends
+ * everything added since its last pass with {@link History#append}, which holds the file's lock, so commands that
+ * finish while a write is in progress go out together in the next one (group commit) and sessions never interleave
+ * partial lines.
+ *
+ * <p>With {@link #watch()}, a {@link WatchService} on the file's directory notes when the file changes, and
+ * {@link #sync()} (called before each prompt) then reads what other sessions appended with {@link History#readNew}.
+ * Without a change it does nothing, so prompts never touch the file.
+ */
+public final class HistoryJournal implements AutoCloseable {
+    private final History history;
+    private final Path path;
+    private final Thread writer;
+
+    // Guarded by this.
+    private boolean pending;
+    private boolean closed;
+
+    private volatile boolean changed;
+    private WatchService watcher;
+
+    private HistoryJournal(History history, Path path) {
+        this.history = history;
+        this.path = path;
+        this.writer = Thread.ofPlatform().name("history-journal").daemon().unstarted(this::writeLoop);
+    }
+
+    /** Starts journaling {@code history} to {@code path}. */
+    public static HistoryJournal start(History history, Path path) {
+        var journal = new HistoryJournal(history, path);
+        journal.writer.start();
+        return journal;
+    }
+
+    /** Schedules the entries added so far to be appended. */
+    public synchronized void commit() {
+        pending = true;
+        notifyAll();
+    }
+
+    /** Starts watching the file for appends by other sessions; see {@link #sync()}. */
+    public void watch() {
+        Path dir = path.toAbsolutePath().getParent();
+        try {
+            watcher = dir.getFileSystem().newWatchService();
+            dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException | UnsupportedOperationException e) {
+            return; // no notifications: `history -n` still works
+        }
+        Path name = path.getFileName();
+        Thread.ofPlatform().name("history-watch").daemon().start(() -> {
+            try {
+                while (true) {
+                    WatchKey key = watcher.take();
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW || name.equals(event.context())) {
+                            changed = true;
+                        }
+                    }
+                    key.reset();
+                }
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                // closed
+            }
+        });
+    }
+
+    /** Reads the lines other sessions appended if the file changed since the last call. */
+    public void sync() {
+        if (changed) {
+            changed = false;
+            history.readNew(path);
+        }
+    }
+
+    /** Stops the background thread after it has appended everything committed. */
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        history.append(path);
+        if (watcher != null) {
+            try {
+                watcher.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void writeLoop() {
+        while (true) {
+            synchronized (this) {
+                while (!pending && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (!pending) {
+                    return;
+                }
+                pending = false;
+            }
+            // Everything added up to now, including commands committed while the previous append ran.
+            history.append(path);
+        }
+    }
+}
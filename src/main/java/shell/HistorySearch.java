@@ -0,0 +1,226 @@
+package shell;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Substring search over the history for incremental search (Ctrl-R / Ctrl-S).
+ *
+ * <p>History is cut into blocks of 64 entries, and every byte trigram of an entry's UTF-8 text is posted to the blocks
+ * it occurs in. A query of three or more bytes only looks at blocks that have all of its trigrams: walking the rarest
+ * trigram's block list from the start position and checking the others by binary search, then confirming candidates
+ * with {@link String#contains}. Trigrams are hashed into a fixed table, so collisions only add candidates. Queries of
+ * one or two bytes use exact single-byte and byte-pair postings over blocks of 1024 entries the same way. Blocks are
+ * ranges of {@link History#seqAt sequence numbers}, so entries evicted or erased from the history never shift them.
+ *
+ * <p>The index follows the history lazily: entries appended since the last search are indexed when the next search
+ * starts, so adding a command costs nothing until Ctrl-R is pressed. Loading a big HISTFILE can be indexed ahead of
+ * time with {@link #updateInBackground()}.
+ */
+public final class HistorySearch {
+    private static final int TABLE_BITS = 18;
+    private static final int TABLE_MASK = (1 << TABLE_BITS) - 1;
+    private static final int UNIGRAMS = 1 << 16;
+
+    private final History history;
+    // Trigrams, hashed, by blocks of 64 entries.
+    private final Postings trigrams = new Postings(1 << TABLE_BITS, 6);
+    // Single bytes and byte pairs, exactly, by blocks of 1024: short queries match almost everywhere, so coarse
+    // blocks cost little when they hit and still rule out a miss at once.
+    private final Postings shortGrams = new Postings(UNIGRAMS + 256, 10);
+    // Sequence number (see History#seqAt) of the first entry not indexed yet.
+    private int indexed;
+
+    public HistorySearch(History history) {
+        this.history = history;
+    }
+
+    /** Index of the newest entry at or before {@code from} containing {@code query}, or -1. */
+    public int findBackward(String query, int from) {
+        return find(query, from, true);
+    }
+
+    /** Index of the oldest entry at or after {@code from} containing {@code query}, or -1. */
+    public int findForward(String query, int from) {
+        return find(query, from, false);
+    }
+
+    /** Brings the index up to date with the history; done on every search, and cheap when nothing was added. */
+    public synchronized void update() {
+        while (true) {
+            // Index in chunks so the shell is never locked out of the history for long.
+            synchronized (history) {
+                int start = firstIndexFrom(indexed);
+                int end = Math.min(history.size(), start + 4096);
+                if (start == end) {
+                    indexed = history.nextSeq();
+                    return;
+                }
+                for (int i = start; i < end; i++) {
+                    try {
+                        index(history.seqAt(i), history.bytes(i));
+                    } catch (InternalError e) {
+                        // HISTFILE truncated underneath its mapping: the entry reads back empty anyway.
+                    }
+                }
+                indexed = history.seqAt(end - 1) + 1;
+            }
+        }
+    }
+
+    /**
+     * Starts {@link #update()} on a low-priority daemon thread, e.g. right after a large HISTFILE was loaded, so the
+     * first Ctrl-R does not have to wait for it.
+     */
+    public void updateInBackground() {
+        Thread.ofPlatform().name("history-index").daemon().priority(Thread.MIN_PRIORITY).start(this::update);
+    }
+
+    private synchronized int find(String query, int from, boolean backward) {
+        update();
+        synchronized (history) {
+            int size = history.size();
+            if (query.isEmpty() || size == 0) {
+                return -1;
+            }
+            from = Math.min(Math.max(from, 0), size - 1);
+
+            byte[] q = query.getBytes(StandardCharsets.UTF_8);
+            Postings table = q.length >= 3 ? trigrams : shortGrams;
+            int[] keys = q.length >= 3 ? trigramKeys(q)
+                    : new int[] {q.length == 2 ? (q[0] & 0xFF) << 8 | (q[1] & 0xFF) : UNIGRAMS + (q[0] & 0xFF)};
+
+            int rarest = 0;
+            for (int k = 0; k < keys.length; k++) {
+                if (table.counts[keys[k]] == 0) {
+                    return -1; // some n-gram occurs nowhere
+                }
+                if (table.counts[keys[k]] < table.counts[keys[rarest]]) {
+                    rarest = k;
+                }
+            }
+
+            int[] blocks = table.lists[keys[rarest]];
+            int n = table.counts[keys[rarest]];
+            int p = Arrays.binarySearch(blocks, 0, n, history.seqAt(from) >>> table.shift);
+            if (p < 0) {
+                p = backward ? -p - 2 : -p - 1;
+            }
+            for (; backward ? p >= 0 : p < n; p += backward ? -1 : 1) {
+                int block = blocks[p];
+                if (!table.inAll(keys, rarest, block)) {
+                    continue;
+                }
+                int first = firstIndexFrom(block << table.shift);
+                int last = firstIndexFrom((block + 1) << table.shift) - 1;
+                int found = backward
+                        ? scan(query, Math.min(last, from), first - 1, true)
+                        : scan(query, Math.max(first, from), last + 1, false);
+                if (found >= 0) {
+                    return found;
+                }
+            }
+            return -1;
+        }
+    }
+
+    // Index of the first entry whose sequence number is at least `seq`.
+    private int firstIndexFrom(int seq) {
+        int i = history.indexOfSeq(seq);
+        return i >= 0 ? i : -i - 1;
+    }
+
+    // Checks entries from `start` towards `end` (exclusive), one at a time.
+    private int scan(String query, int start, int end, boolean backward) {
+        for (int i = start; backward ? i > end : i < end; i += backward ? -1 : 1) {
+            if (history.get(i).contains(query)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Distinct hashed trigrams of the query.
+    private static int[] trigramKeys(byte[] q) {
+        int[] keys = new int[q.length - 2];
+        int n = 0;
+        for (int i = 0; i + 2 < q.length; i++) {
+            int h = trigram(q[i], q[i + 1], q[i + 2]);
+            boolean seen = false;
+            for (int k = 0; k < n && !seen; k++) {
+                seen = keys[k] == h;
+            }
+            if (!seen) {
+                keys[n++] = h;
+            }
+        }
+        return Arrays.copyOf(keys, n);
+    }
+
+    private void index(int seq, MemorySegment text) {
+        long length = text.byteSize();
+        int a = -1;
+        int b = -1;
+        for (long i = 0; i < length; i++) {
+            int c = text.get(ValueLayout.JAVA_BYTE, i) & 0xFF;
+            shortGrams.post(UNIGRAMS + c, seq);
+            if (b >= 0) {
+                shortGrams.post(b << 8 | c, seq);
+            }
+            if (a >= 0) {
+                trigrams.post(trigram((byte) a, (byte) b, (byte) c), seq);
+            }
+            a = b;
+            b = c;
+        }
+    }
+
+    private static int trigram(byte a, byte b, byte c) {
+        int t = (a & 0xFF) << 16 | (b & 0xFF) << 8 | (c & 0xFF);
+        return (t * 0x9E3779B1) >>> (32 - TABLE_BITS) & TABLE_MASK;
+    }
+
+    // For each key, the ascending numbers of the blocks of 2^shift entries it occurs in.
+    private static final class Postings {
+        final int shift;
+        final int[][] lists;
+        final int[] counts;
+        // Last block posted + 1, kept apart from the lists so the per-byte check stays in cache.
+        final int[] last;
+
+        Postings(int keys, int shift) {
+            this.shift = shift;
+            this.lists = new int[keys][];
+            this.counts = new int[keys];
+            this.last = new int[keys];
+        }
+
+        void post(int key, int seq) {
+            int block = seq >>> shift;
+            if (last[key] == block + 1) {
+                return; // already posted for this block
+            }
+            last[key] = block + 1;
+            int n = counts[key];
+            int[] list = lists[key];
+            if (list == null) {
+                list = lists[key] = new int[4];
+            } else if (n == list.length) {
+                list = lists[key] = Arrays.copyOf(list, n + (n >> 1) + 4);
+            }
+            list[n] = block;
+            counts[key] = n + 1;
+        }
+
+        boolean inAll(int[] keys, int skip, int block) {
+            for (int k = 0; k < keys.length; k++) {
+                if (k != skip && Arrays.binarySearch(lists[keys[k]], 0, counts[keys[k]], block) < 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package shell;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The job table: command lines started in the background with {@code &}, numbered {@code %1, %2, ...} as in bash.
+ *
+ * <p>Each job is supervised by one virtual thread that parks until its builtins finish and its processes exit
+ * ({@link Process#onExit()}), so the prompt never waits for a job and hundreds of them cost only parked virtual
+ * threads. Jobs that finish are queued and reported by {@link #reportDone} before the next prompt.
+ *
+ * <p>Java cannot put children in their own process group, so jobs cannot be stopped from the terminal (Ctrl-Z);
+ * {@link State#STOPPED} is only entered through {@code kill -STOP %n}.
+ */
+public final class Jobs {
+    public enum State {
+        RUNNING,
+        STOPPED,
+        DONE
+    }
+
+    public static final class Job {
+        private final int id;
+        private final String line;
+        private final List<Process> processes;
+        private final CompletableFuture<Integer> exit = new CompletableFuture<>();
+        private volatile State state = State.RUNNING;
+        // Brought to the foreground with `fg`: finishing is not reported.
+        private volatile boolean foreground;
+
+        private Job(int id, String line, List<Process> processes) {
+            this.id = id;
+            this.line = line;
+            this.processes = processes;
+        }
+
+        public int id() {
+            return id;
+        }
+
+        public String line() {
+            return line;
+        }
+
+        public List<Process> processes() {
+            return processes;
+        }
+
+        public State state() {
+            return state;
+        }
+
+        /** Process id of the last stage, or -1 for a job made only of builtins. */
+        public long pid() {
+            return processes.isEmpty() ? -1 : processes.get(processes.size() - 1).pid();
+        }
+
+        /** Blocks (parks) until the job is over; returns its exit status. */
+        public int await() {
+            return exit.join();
+        }
+
+        public void stopped(boolean stopped) {
+            if (state != State.DONE) {
+                state = stopped ? State.STOPPED : State.RUNNING;
+            }
+        }
+
+        // "Running", "Done", "Exit 2", "Killed"... as `jobs` shows them.
+        String status() {
+            return switch (state) {
+                case RUNNING -> "Running";
+                case STOPPED -> "Stopped";
+                case DONE -> {
+                    int status = exit.join();
+                    yield switch (status) {
+                        case 0 -> "Done";
+                        case 128 + 9 -> "Killed";
+                        case 128 + 15 -> "Terminated";
+                        case 128 + 2 -> "Interrupt";
+                        default -> "Exit " + status;
+                    };
+                }
+            };
+        }
+    }
+
+    private final TreeMap<Integer, Job> table = new TreeMap<>();
+    private final List<Job> finished = new ArrayList<>();
+
+    /**
+     * Adds a job for {@code line} (without its {@code &}) and starts supervising it: {@code await} blocks until every
+     * stage is over and returns the job's exit status; it runs on the job's virtual thread.
+     */
+    public synchronized Job start(String line, List<Process> processes, Callable<Integer> await) {
+        int id = table.isEmpty() ? 1 : table.lastKey() + 1;
+        var job = new Job(id, line, List.copyOf(processes));
+        table.put(id, job);
+        Thread.ofVirtual().name("job-" + id).start(() -> {
+            int status;
+            try {
+                status = await.call();
+            } catch (Exception e) {
+                status = 1;
+            }
+            finish(job, status);
+        });
+        return job;
+    }
+
+    private synchronized void finish(Job job, int status) {
+        job.state = State.DONE;
+        if (!job.foreground) {
+            finished.add(job);
+        }
+        job.exit.complete(status);
+    }
+
+    /** Brings {@code job} to the foreground: it is dropped from the table, and its end will not be reported. */
+    public synchronized void foreground(Job job) {
+        job.foreground = true;
+        table.remove(job.id);
+        finished.remove(job);
+    }
+
+    /** Prints and forgets the jobs that finished since the last call, in bash's {@code [1]+  Done  cmd} format. */
+    public void reportDone(PrintStream out) {
+        List<String> lines;
+        synchronized (this) {
+            if (finished.isEmpty()) {
+                return;
+            }
+            lines = new ArrayList<>(finished.size());
+            finished.sort((a, b) -> Integer.compare(a.id, b.id));
+            for (Job job : finished) {
+                if (table.containsKey(job.id)) {
+                    lines.add(format(job, false));
+                    table.remove(job.id);
+                }
+            }
+            finished.clear();
+        }
+        for (String line : lines) {
+            out.println(line);
+        }
+        out.flush();
+    }
+
+    /**
+     * The table as {@code jobs} lists it, oldest first; with {@code pids}, each line also shows the job's pid.
+     * Finished jobs are listed once and then forgotten, so they are not reported again.
+     */
+    public synchronized List<String> describe(boolean pids) {
+        var lines = new ArrayList<String>(table.size());
+        for (Job job : table.values()) {
+            lines.add(format(job, pids));
+        }
+        table.values().removeIf(job -> job.state == State.DONE);
+        finished.clear();
+        return lines;
+    }
+
+    /** Jobs still in the table, oldest first. */
+    public synchronized List<Job> all() {
+        return new ArrayList<>(table.values());
+    }
+
+    /**
+     * Looks up a job spec: {@code %n}, {@code %%}/{@code %+}/{@code %} (current job), {@code %-} (previous),
+     * {@code %name} (the newest job whose line starts with name) or {@code %?text} (contains text). Null if none.
+     */
+    public synchronized Job resolve(String spec) {
+        if (spec == null || !spec.startsWith("%") || table.isEmpty()) {
+            return null;
+        }
+        String rest = spec.substring(1);
+        if (rest.isEmpty() || rest.equals("%") || rest.equals("+")) {
+            return table.lastEntry().getValue();
+        }
+        if (rest.equals("-")) {
+            Map.Entry<Integer, Job> previous = table.lowerEntry(table.lastKey());
+            return previous != null ? previous.getValue() : table.lastEntry().getValue();
+        }
+        if (rest.chars().allMatch(Character::isDigit)) {
+            try {
+                return table.get(Integer.parseInt(rest));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        boolean contains = rest.startsWith("?");
+        String text = contains ? rest.substring(1) : rest;
+        for (Job job : table.descendingMap().values()) {
+            if (contains ? job.line.contains(text) : job.line.startsWith(text)) {
+                return job;
+            }
+        }
+        return null;
+    }
+
+    // `[1]+  Running                 sleep 10 &`: '+' marks the current job, '-' the previous one.
+    private String format(Job job, boolean pid) {
+        char mark = ' ';
+        if (job.id == table.lastKey()) {
+            mark = '+';
+        } else if (Objects.equals(table.lowerKey(table.lastKey()), job.id)) {
+            mark = '-';
+        }
+        String line = job.state == State.DONE ? job.line : job.line + " &";
+        String pidColumn = pid && job.pid() >= 0 ? job.pid() + " " : " ";
+        return String.format("[%d]%c %s%-24s%s", job.id, mark, pidColumn, job.status(), line);
+    }
+}
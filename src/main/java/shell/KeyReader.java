@@ -0,0 +1,296 @@
+package shell;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Turns raw terminal input into keys.
+ *
+ * <p>Input is read in bulk, so a burst of typed or pasted characters becomes one {@link Type#TEXT} key that the
+ * editor inserts with a single redraw. UTF-8 is decoded incrementally: a multibyte character split across two reads
+ * is completed on the next read instead of being cast byte-by-byte to {@code char}. Escape sequences are parsed as
+ * ECMA-48 CSI ({@code ESC [ params final}) and SS3 ({@code ESC O final}), including xterm modifier parameters
+ * ({@code ESC[1;5C} is Ctrl-Right). Bracketed paste ({@code ESC[200~ ... ESC[201~}) is returned as one
+ * {@link Type#PASTE} key, no matter how many reads it spans.
+ */
+public final class KeyReader {
+    public enum Type {
+        /** Printable text; {@code text} may hold many characters. */
+        TEXT,
+        /** Bracketed paste; {@code text} is the pasted text as-is, including line breaks. */
+        PASTE,
+        /** A C0 control character or DEL; {@code code} is the byte (e.g. 1 for Ctrl-A, 13 for Enter). */
+        CONTROL,
+        /** ESC followed by a character (Alt/Meta); {@code code} is the character. */
+        ALT,
+        UP,
+        DOWN,
+        RIGHT,
+        LEFT,
+        HOME,
+        END,
+        INSERT,
+        DELETE,
+        PAGE_UP,
+        PAGE_DOWN,
+        /** Shift-Tab. */
+        BACKTAB,
+        /** F1..F12; {@code code} is the number. */
+        FUNCTION,
+        /** A well-formed escape sequence we do not bind. */
+        UNKNOWN,
+        EOF
+    }
+
+    // xterm modifier bits (parameter value - 1).
+    public static final int SHIFT = 1;
+    public static final int ALT = 2;
+    public static final int CTRL = 4;
+
+    public record Key(Type type, int code, int modifiers, String text) {
+        static final Key EOF = new Key(Type.EOF, -1, 0, null);
+
+        static Key of(Type type, int modifiers) {
+            return new Key(type, 0, modifiers, null);
+        }
+
+        public boolean ctrlOrAlt() {
+            return (modifiers & (CTRL | ALT)) != 0;
+        }
+    }
+
+    private static final byte ESC = 0x1B;
+    private static final byte[] PASTE_END = {ESC, '[', '2', '0', '1', '~'};
+
+    private final InputStream in;
+    private final byte[] buf;
+    private int pos;
+    private int limit;
+
+    private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final CharBuffer chars;
+
+    public KeyReader(InputStream in) {
+        this(in, 8192);
+    }
+
+    public KeyReader(InputStream in, int bufferSize) {
+        this.in = in;
+        this.buf = new byte[bufferSize];
+        // UTF-8 never decodes to more chars than it has bytes.
+        this.chars = CharBuffer.allocate(bufferSize);
+    }
+
+    /** Blocks until a complete key is available. */
+    public Key next() throws IOException {
+        while (true) {
+            if (pos == limit && !fill()) {
+                return Key.EOF;
+            }
+            int b = buf[pos] & 0xFF;
+            if (b == ESC) {
+                return escape();
+            }
+            if (b < 0x20 || b == 0x7F) {
+                pos++;
+                return new Key(Type.CONTROL, b, 0, null);
+            }
+            Key text = text();
+            if (text != null) {
+                return text;
+            }
+        }
+    }
+
+    // A run of printable bytes, decoded in one step. Returns null if the run is only the start of a multibyte
+    // character (more input has been read by then).
+    private Key text() throws IOException {
+        int end = pos;
+        while (end < limit) {
+            int b = buf[end] & 0xFF;
+            if (b < 0x20 || b == 0x7F) {
+                break;
+            }
+            end++;
+        }
+        var bytes = ByteBuffer.wrap(buf, pos, end - pos);
+        chars.clear();
+        // A sequence cut off by a control byte is malformed; one cut off by the end of the buffer may be completed.
+        decoder.decode(bytes, chars, end < limit);
+        if (end < limit) {
+            decoder.flush(chars);
+            decoder.reset();
+        }
+        pos = bytes.position();
+        chars.flip();
+        if (chars.hasRemaining()) {
+            return new Key(Type.TEXT, 0, 0, chars.toString());
+        }
+        // Only an incomplete sequence at the end of the buffer: wait for the rest of it.
+        if (!fill()) {
+            pos = limit;
+            return new Key(Type.TEXT, 0, 0, "\uFFFD");
+        }
+        return null;
+    }
+
+    private Key escape() throws IOException {
+        pos++; // ESC
+        int b = nextByte();
+        if (b < 0) {
+            return new Key(Type.CONTROL, ESC, 0, null);
+        }
+        if (b == '[') {
+            return csi();
+        }
+        if (b == 'O') {
+            int f = nextByte();
+            return f < 0 ? Key.EOF : finalKey(f, 0);
+        }
+        return new Key(Type.ALT, b, ALT, null);
+    }
+
+    // ESC [ already consumed. Parameters are digits separated by ';', then intermediates, then the final byte.
+    private Key csi() throws IOException {
+        int[] params = new int[2];
+        int count = 0;
+        int current = -1;
+        int b;
+        while ((b = nextByte()) >= 0x30 && b <= 0x3F) {
+            if (b >= '0' && b <= '9') {
+                current = (current < 0 ? 0 : current) * 10 + (b - '0');
+                if (current > 100_000) {
+                    current = 100_000;
+                }
+            } else if (b == ';') {
+                if (count < params.length) {
+                    params[count] = current;
+                }
+                count++;
+                current = -1;
+            }
+            // '<', '=', '>', '?' private markers: nothing we bind uses them
+        }
+        if (count < params.length) {
+            params[count] = current;
+        }
+        while (b >= 0x20 && b <= 0x2F) {
+            b = nextByte();
+        }
+        if (b < 0) {
+            return Key.EOF;
+        }
+        int first = params[0] < 0 ? 1 : params[0];
+        int modifiers = params[1] > 1 ? params[1] - 1 : 0;
+        if (b == '~') {
+            return switch (first) {
+                case 1, 7 -> Key.of(Type.HOME, modifiers);
+                case 2 -> Key.of(Type.INSERT, modifiers);
+                case 3 -> Key.of(Type.DELETE, modifiers);
+                case 4, 8 -> Key.of(Type.END, modifiers);
+                case 5 -> Key.of(Type.PAGE_UP, modifiers);
+                case 6 -> Key.of(Type.PAGE_DOWN, modifiers);
+                case 11, 12, 13, 14, 15 -> new Key(Type.FUNCTION, first - 10, modifiers, null);
+                case 17, 18, 19, 20, 21 -> new Key(Type.FUNCTION, first - 11, modifiers, null);
+                case 23, 24 -> new Key(Type.FUNCTION, first - 12, modifiers, null);
+                case 200 -> paste();
+                default -> Key.of(Type.UNKNOWN, modifiers);
+            };
+        }
+        return finalKey(b, modifiers);
+    }
+
+    // Final byte of a CSI or SS3 cursor/function key.
+    private static Key finalKey(int b, int modifiers) {
+        return switch (b) {
+            case 'A' -> Key.of(Type.UP, modifiers);
+            case 'B' -> Key.of(Type.DOWN, modifiers);
+            case 'C' -> Key.of(Type.RIGHT, modifiers);
+            case 'D' -> Key.of(Type.LEFT, modifiers);
+            case 'H' -> Key.of(Type.HOME, modifiers);
+            case 'F' -> Key.of(Type.END, modifiers);
+            case 'Z' -> Key.of(Type.BACKTAB, modifiers);
+            case 'P', 'Q', 'R', 'S' -> new Key(Type.FUNCTION, b - 'P' + 1, modifiers, null);
+            default -> Key.of(Type.UNKNOWN, modifiers);
+        };
+    }
+
+    // ESC[200~ already consumed: collect everything up to ESC[201~ and decode it once.
+    private Key paste() throws IOException {
+        byte[] pasted = new byte[Math.max(limit - pos, 256)];
+        int size = 0;
+        while (true) {
+            if (pos == limit && !fill()) {
+                break;
+            }
+            int esc = indexOf(ESC, pos, limit);
+            int stop = esc < 0 ? limit : esc;
+            if (size + (stop - pos) > pasted.length) {
+                pasted = Arrays.copyOf(pasted, Math.max(pasted.length * 2, size + (stop - pos)));
+            }
+            System.arraycopy(buf, pos, pasted, size, stop - pos);
+            size += stop - pos;
+            pos = stop;
+            if (esc < 0) {
+                continue;
+            }
+            // Make sure the whole end marker (if that is what this is) is in the buffer.
+            while (limit - pos < PASTE_END.length && fill()) {
+                // keep reading
+            }
+            if (limit - pos >= PASTE_END.length
+                    && Arrays.equals(buf, pos, pos + PASTE_END.length, PASTE_END, 0, PASTE_END.length)) {
+                pos += PASTE_END.length;
+                break;
+            }
+            if (size == pasted.length) {
+                pasted = Arrays.copyOf(pasted, pasted.length * 2);
+            }
+            pasted[size++] = ESC;
+            pos++;
+        }
+        return new Key(Type.PASTE, 0, 0, new String(pasted, 0, size, StandardCharsets.UTF_8));
+    }
+
+    private int indexOf(byte b, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buf[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int nextByte() throws IOException {
+        if (pos == limit && !fill()) {
+            return -1;
+        }
+        return buf[pos++] & 0xFF;
+    }
+
+    // Moves unread bytes to the front and reads at least one more byte; false at end of input.
+    private boolean fill() throws IOException {
+        if (pos > 0) {
+            System.arraycopy(buf, pos, buf, 0, limit - pos);
+            limit -= pos;
+            pos = 0;
+        }
+        if (limit == buf.length) {
+            return false;
+        }
+        int n = in.read(buf, limit, buf.length - limit);
+        if (n <= 0) {
+            return false;
+        }
+        limit += n;
+        return true;
+    }
+}
@@ -0,0 +1,273 @@
+package shell;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Single-pass, table-driven tokenizer for command lines.
+ *
+ * <p>Quotes and backslashes are resolved while scanning, and operators are recognised wherever they appear
+ * ({@code a|b}, {@code >out}, {@code 2>>err}, {@code 2>&1}, {@code <in}, {@code &>all}, {@code cmd&}), so the parser
+ * never has to rescan words. Every ASCII character is
+ * classified through a lookup table; any other character is part of a word.
+ */
+public final class Lexer {
+    public enum Kind {
+        WORD,
+        PIPE,
+        REDIRECT,
+        BACKGROUND
+    }
+
+    /**
+     * A token. {@code text} is the unquoted word for WORD tokens; REDIRECT tokens carry the file descriptor and the
+     * operation, and are followed by the WORD they redirect to (or, for a dup, the descriptor they copy).
+     *
+     * <p>A WORD with an unquoted {@code *}, {@code ?} or {@code [} also has a {@code pattern} for {@link Glob}: the
+     * word with its quotes resolved but its quoted pattern characters backslash-escaped, so {@code "*".c*} becomes
+     * {@code \*.c*}. Other tokens have none.
+     */
+    public record Token(Kind kind, String text, int fd, Redirect.Op op, String pattern) {
+        static final Token PIPE = new Token(Kind.PIPE, "|", -1, null, null);
+        static final Token BACKGROUND = new Token(Kind.BACKGROUND, "&", -1, null, null);
+
+        static Token word(String text, String pattern) {
+            return new Token(Kind.WORD, text, -1, null, pattern);
+        }
+
+        static Token redirect(int fd, String operator) {
+            Redirect.Op op = switch (operator) {
+                case "<" -> Redirect.Op.READ;
+                // >| truncates like > (there is no noclobber to override)
+                case ">", ">|" -> Redirect.Op.WRITE;
+                case ">>" -> Redirect.Op.APPEND;
+                case ">&", "<&" -> Redirect.Op.DUP;
+                case "&>" -> Redirect.Op.BOTH;
+                case "&>>" -> Redirect.Op.BOTH_APPEND;
+                default -> throw new IllegalArgumentException("unsupported redirection: " + operator);
+            };
+            return new Token(Kind.REDIRECT, operator.startsWith("&") ? operator : fd + operator, fd, op, null);
+        }
+    }
+
+    // Character classes
+    private static final byte WORD = 0;
+    private static final byte SPACE = 1;
+    private static final byte SQUOTE = 2;
+    private static final byte DQUOTE = 3;
+    private static final byte BACKSLASH = 4;
+    private static final byte PIPE = 5;
+    private static final byte GREAT = 6;
+    private static final byte AMP = 7;
+    private static final byte LESS = 8;
+
+    private static final byte[] CLASS = new byte[128];
+    // Characters a backslash escapes inside double quotes; before anything else the backslash is kept.
+    private static final boolean[] DQUOTE_ESCAPABLE = new boolean[128];
+
+    static {
+        for (char c : new char[] {' ', '\t', '\n', '\r', '\f', '\u000B'}) {
+            CLASS[c] = SPACE;
+        }
+        CLASS['\''] = SQUOTE;
+        CLASS['"'] = DQUOTE;
+        CLASS['\\'] = BACKSLASH;
+        CLASS['|'] = PIPE;
+        CLASS['>'] = GREAT;
+        CLASS['&'] = AMP;
+        CLASS['<'] = LESS;
+        for (char c : new char[] {'"', '\\', '$', '`'}) {
+            DQUOTE_ESCAPABLE[c] = true;
+        }
+    }
+
+    private Lexer() {}
+
+    private static byte classOf(char ch) {
+        return ch < 128 ? CLASS[ch] : WORD;
+    }
+
+    // The character at i, or 0 past the end.
+    private static char at(String line, int i) {
+        return i < line.length() ? line.charAt(i) : 0;
+    }
+
+    public static List<Token> lex(String line) {
+        var tokens = new ArrayList<Token>();
+        var lexer = new State(line);
+        int len = line.length();
+        int i = 0;
+        while (i < len) {
+            char ch = line.charAt(i);
+            switch (classOf(ch)) {
+                case SPACE -> {
+                    lexer.emit(tokens, i);
+                    i++;
+                }
+                case SQUOTE -> {
+                    int close = line.indexOf('\'', i + 1);
+                    if (close < 0) {
+                        throw new IllegalArgumentException("Unclosed quote.");
+                    }
+                    lexer.quoted(i);
+                    for (int j = i + 1; j < close; j++) {
+                        lexer.quotedChar(line.charAt(j));
+                    }
+                    i = close + 1;
+                }
+                case DQUOTE -> {
+                    lexer.quoted(i);
+                    i++;
+                    while (true) {
+                        if (i >= len) {
+                            throw new IllegalArgumentException("Unclosed quote.");
+                        }
+                        char c = line.charAt(i);
+                        if (c == '"') {
+                            i++;
+                            break;
+                        }
+                        if (c == '\\' && i + 1 < len) {
+                            char next = line.charAt(i + 1);
+                            if (next >= 128 || !DQUOTE_ESCAPABLE[next]) {
+                                lexer.quotedChar('\\');
+                            }
+                            lexer.quotedChar(next);
+                            i += 2;
+                            continue;
+                        }
+                        lexer.quotedChar(c);
+                        i++;
+                    }
+                }
+                case BACKSLASH -> {
+                    lexer.quoted(i);
+                    if (i + 1 < len) {
+                        lexer.quotedChar(line.charAt(i + 1));
+                    }
+                    i += 2;
+                }
+                case PIPE -> {
+                    lexer.emit(tokens, i);
+                    tokens.add(Token.PIPE);
+                    i++;
+                }
+                case AMP -> {
+                    lexer.emit(tokens, i);
+                    if (at(line, i + 1) == '>') {
+                        // &> and &>>: stdout and stderr to one file
+                        String operator = at(line, i + 2) == '>' ? "&>>" : "&>";
+                        tokens.add(Token.redirect(1, operator));
+                        i += operator.length();
+                    } else {
+                        tokens.add(Token.BACKGROUND);
+                        i++;
+                    }
+                }
+                case GREAT -> {
+                    int fd = lexer.takeFd(tokens, i, 1);
+                    char next = at(line, i + 1);
+                    String operator = next == '>' || next == '&' || next == '|' ? ">" + next : ">";
+                    tokens.add(Token.redirect(fd, operator));
+                    i += operator.length();
+                }
+                case LESS -> {
+                    int fd = lexer.takeFd(tokens, i, 0);
+                    char next = at(line, i + 1);
+                    // << and <> (here-documents, read-write) are not supported and fail in Token.redirect
+                    String operator = next == '&' || next == '<' || next == '>' ? "<" + next : "<";
+                    tokens.add(Token.redirect(fd, operator));
+                    i += operator.length();
+                }
+                default -> {
+                    lexer.plain(ch, i);
+                    i++;
+                }
+            }
+        }
+        lexer.emit(tokens, len);
+        return tokens;
+    }
+
+    // The word being built. Words made only of plain characters (the common case) are cut straight out of the line
+    // with one substring; the builders are used only once quotes or escapes show up.
+    private static final class State {
+        final String line;
+        final StringBuilder word = new StringBuilder();
+        // The word as a glob pattern: like `word`, with quoted pattern characters escaped.
+        final StringBuilder pattern = new StringBuilder();
+        // Whether the open word has an unquoted *, ? or [, i.e. is a pattern.
+        boolean glob;
+        // A word is "open" once anything (even empty quotes) has been seen, so '' yields an empty argument.
+        boolean open;
+        // Whether the open word is still a plain slice line[start, i) that has not been copied into `word`.
+        boolean slice;
+        int start;
+        // Whether the open word is only unquoted digits, i.e. could be the fd of a following '>' or '<'.
+        boolean fdCandidate;
+
+        State(String line) {
+            this.line = line;
+        }
+
+        void plain(char ch, int i) {
+            boolean digit = ch >= '0' && ch <= '9';
+            glob |= ch == '*' || ch == '?' || ch == '[';
+            if (!open) {
+                open = true;
+                slice = true;
+                start = i;
+                fdCandidate = digit;
+                return;
+            }
+            fdCandidate = fdCandidate && digit && i - start < 9;
+            if (!slice) {
+                word.append(ch);
+                pattern.append(ch);
+            }
+        }
+
+        // Switches to the builders for quoted or escaped text starting at i.
+        void quoted(int i) {
+            if (open && slice) {
+                word.append(line, start, i);
+                pattern.append(line, start, i);
+            }
+            open = true;
+            slice = false;
+            fdCandidate = false;
+        }
+
+        // A quoted or escaped character: literal text, also in a pattern.
+        void quotedChar(char ch) {
+            word.append(ch);
+            if (ch == '*' || ch == '?' || ch == '[' || ch == ']' || ch == '\\') {
+                pattern.append('\\');
+            }
+            pattern.append(ch);
+        }
+
+        void emit(List<Token> tokens, int end) {
+            if (!open) {
+                return;
+            }
+            String text = slice ? line.substring(start, end) : word.toString();
+            tokens.add(Token.word(text, !glob ? null : slice ? text : pattern.toString()));
+            word.setLength(0);
+            pattern.setLength(0);
+            open = false;
+            glob = false;
+        }
+
+        // Ends the open word before a '>' or '<' at i; returns the fd it names (a digits-only word right before the
+        // operator), or `standard`.
+        int takeFd(List<Token> tokens, int i, int standard) {
+            if (open && fdCandidate) {
+                open = false;
+                return Integer.parseInt(line, start, i, 10);
+            }
+            emit(tokens, i);
+            return standard;
+        }
+    }
+}
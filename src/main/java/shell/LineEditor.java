@@ -0,0 +1,378 @@
+package shell;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.function.IntSupplier;
+
+/**
+ * The editable input line: cursor movement, word motions, kill/yank, and terminal redraw.
+ *
+ * <p>Edits only change the model. {@link #refresh()} compares it with what the terminal currently shows and emits
+ * the smallest update it can (move to the first changed column, rewrite the tail, clear leftovers, move back to the
+ * cursor) as a single buffered write. Typing at the end of the line therefore costs exactly the typed character,
+ * and editing a long line over a slow link does not resend it. The cursor never splits a surrogate pair, and
+ * columns are counted in code points (East Asian wide characters are not accounted for).
+ *
+ * <p>A line wider than the terminal wraps onto further rows: the cursor is tracked as a cell counted from the start
+ * of the prompt, so moving it can cross rows, and leftovers are cleared to the end of the screen. The width is
+ * queried again after {@link #resized()} and at every prompt.
+ */
+public final class LineEditor {
+    private final OutputStream out;
+    private final IntSupplier columns;
+    private String prompt = "";
+
+    // The terminal's width (0 when unknown: nothing is taken to wrap), and whether to query it again.
+    private int width;
+    private volatile boolean resized = true;
+
+    private final StringBuilder text = new StringBuilder();
+    private int cursor;
+    // Last killed text, for yank.
+    private String killed = "";
+
+    // What the terminal shows after the prompt, and where its cursor is: a char index of `shown`, and the cell it
+    // is in, counted from the start of the prompt (whatever is shown).
+    private final StringBuilder shown = new StringBuilder();
+    private int shownCursor;
+    private int cursorCell;
+
+    // Whether show() has put something else on the line, so the next refresh starts over.
+    private boolean overlaid;
+
+    // Scratch buffer for the escape sequences and text of one refresh.
+    private final StringBuilder pending = new StringBuilder();
+
+    /** An editor for a terminal whose width is not known, where lines are not taken to wrap. */
+    public LineEditor(OutputStream out) {
+        this(out, () -> 0);
+    }
+
+    /** {@code columns} returns the terminal's width, or 0 when it is not known. */
+    public LineEditor(OutputStream out, IntSupplier columns) {
+        this.out = out;
+        this.columns = columns;
+    }
+
+    /** Queries the width again before the next redraw (e.g. on SIGWINCH); may be called from any thread. */
+    public void resized() {
+        resized = true;
+    }
+
+    public String text() {
+        return text.toString();
+    }
+
+    public String beforeCursor() {
+        return text.substring(0, cursor);
+    }
+
+    public int cursor() {
+        return cursor;
+    }
+
+    public boolean isEmpty() {
+        return text.length() == 0;
+    }
+
+    public boolean atEnd() {
+        return cursor == text.length();
+    }
+
+    /** Prints {@code prompt} on the current line and starts an empty line after it. */
+    public void start(String prompt) throws IOException {
+        // A resize while a command ran may have gone unnoticed.
+        resized = true;
+        updateWidth();
+        this.prompt = prompt;
+        text.setLength(0);
+        cursor = 0;
+        shown.setLength(0);
+        shownCursor = 0;
+        pending.setLength(0);
+        pending.append(prompt);
+        cursorCell = wrapped(cells(prompt, 0, prompt.length()));
+        write();
+    }
+
+    /**
+     * Temporarily shows {@code prompt} and {@code line} in place of the edited line, with the cursor at char index
+     * {@code cursor} of {@code line} (incremental search uses this). The next {@link #refresh()} puts the editor's own
+     * prompt and text back.
+     */
+    public void show(String prompt, String line, int cursor) throws IOException {
+        updateWidth();
+        clearLine();
+        pending.append(prompt).append(line);
+        int start = cells(prompt, 0, prompt.length());
+        cursorCell = wrapped(start + cells(line, 0, line.length()));
+        moveTo(start + cells(line, 0, cursor));
+        overlaid = true;
+        write();
+    }
+
+    /** Prints the prompt and the whole line again, e.g. after something else was printed below it. */
+    public void redrawAll() throws IOException {
+        updateWidth();
+        shown.setLength(0);
+        shownCursor = 0;
+        pending.append(prompt);
+        cursorCell = wrapped(cells(prompt, 0, prompt.length()));
+        refresh();
+    }
+
+    // --- edits (model only; call refresh() to update the terminal) ---
+
+    public void insert(CharSequence s) {
+        text.insert(cursor, s);
+        cursor += s.length();
+    }
+
+    public void insert(char c) {
+        text.insert(cursor, c);
+        cursor++;
+    }
+
+    /** Replaces the whole line (history navigation) and moves the cursor to its end. */
+    public void replace(String line) {
+        text.setLength(0);
+        text.append(line);
+        cursor = text.length();
+    }
+
+    /** Replaces the whole line and puts the cursor at char index {@code cursor}. */
+    public void replace(String line, int cursor) {
+        replace(line);
+        this.cursor = Math.min(Math.max(cursor, 0), text.length());
+    }
+
+    public void clear() {
+        replace("");
+    }
+
+    public boolean backspace() {
+        if (cursor == 0) {
+            return false;
+        }
+        int from = previous(cursor);
+        text.delete(from, cursor);
+        cursor = from;
+        return true;
+    }
+
+    public boolean deleteForward() {
+        if (cursor >= text.length()) {
+            return false;
+        }
+        text.delete(cursor, next(cursor));
+        return true;
+    }
+
+    public void left() {
+        if (cursor > 0) {
+            cursor = previous(cursor);
+        }
+    }
+
+    public void right() {
+        if (cursor < text.length()) {
+            cursor = next(cursor);
+        }
+    }
+
+    // Index of the code point before / after i.
+    private int previous(int i) {
+        return i >= 2 && Character.isLowSurrogate(text.charAt(i - 1)) && Character.isHighSurrogate(text.charAt(i - 2))
+                ? i - 2 : i - 1;
+    }
+
+    private int next(int i) {
+        return i + 1 < text.length() && Character.isHighSurrogate(text.charAt(i))
+                && Character.isLowSurrogate(text.charAt(i + 1)) ? i + 2 : i + 1;
+    }
+
+    public void home() {
+        cursor = 0;
+    }
+
+    public void end() {
+        cursor = text.length();
+    }
+
+    public void wordLeft() {
+        cursor = previousWordStart();
+    }
+
+    public void wordRight() {
+        cursor = nextWordEnd();
+    }
+
+    /** Ctrl-K */
+    public void killToEnd() {
+        kill(cursor, text.length());
+    }
+
+    /** Ctrl-U */
+    public void killToStart() {
+        kill(0, cursor);
+    }
+
+    /** Ctrl-W / Alt-Backspace */
+    public void killWordBack() {
+        kill(previousWordStart(), cursor);
+    }
+
+    /** Alt-D */
+    public void killWordForward() {
+        kill(cursor, nextWordEnd());
+    }
+
+    /** Ctrl-Y */
+    public void yank() {
+        insert(killed);
+    }
+
+    private void kill(int from, int to) {
+        if (from >= to) {
+            return;
+        }
+        killed = text.substring(from, to);
+        text.delete(from, to);
+        cursor = from;
+    }
+
+    private int previousWordStart() {
+        int i = cursor;
+        while (i > 0 && !isWordChar(text.charAt(i - 1))) {
+            i--;
+        }
+        while (i > 0 && isWordChar(text.charAt(i - 1))) {
+            i--;
+        }
+        return i;
+    }
+
+    private int nextWordEnd() {
+        int i = cursor;
+        int len = text.length();
+        while (i < len && !isWordChar(text.charAt(i))) {
+            i++;
+        }
+        while (i < len && isWordChar(text.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    private static boolean isWordChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '_';
+    }
+
+    // --- rendering ---
+
+    /** Brings the terminal in line with the model using as few bytes as possible, in one write. */
+    public void refresh() throws IOException {
+        updateWidth();
+        int start = cells(prompt, 0, prompt.length());
+        if (overlaid) {
+            overlaid = false;
+            clearLine();
+            pending.append(prompt);
+            cursorCell = wrapped(start);
+            shown.setLength(0);
+            shownCursor = 0;
+        }
+        int common = 0;
+        int max = Math.min(shown.length(), text.length());
+        while (common < max && shown.charAt(common) == text.charAt(common)) {
+            common++;
+        }
+        if (common > 0 && Character.isHighSurrogate(text.charAt(common - 1))) {
+            common--; // rewrite the whole pair
+        }
+
+        if (common < shown.length() || common < text.length()) {
+            int shownEnd = start + cells(shown, 0, shown.length());
+            moveTo(start + cells(text, 0, common));
+            pending.append(text, common, text.length());
+            int end = start + cells(text, 0, text.length());
+            // Only text just written can leave the cursor waiting at the margin; after a deletion it is already there.
+            cursorCell = common < text.length() ? wrapped(end) : end;
+            if (shownEnd > end) {
+                pending.append("\033[J");
+            }
+            shown.setLength(common);
+            shown.append(text, common, text.length());
+        }
+        moveTo(start + cells(text, 0, cursor));
+        shownCursor = cursor;
+        write();
+    }
+
+    private void updateWidth() {
+        if (resized) {
+            resized = false;
+            width = Math.max(columns.getAsInt(), 0);
+        }
+    }
+
+    private static int cells(CharSequence s, int from, int to) {
+        return Character.codePointCount(s, from, to);
+    }
+
+    // Once output fills the last column of a row, the terminal keeps the cursor there until the next character;
+    // move it to the start of the next row so the cursor is where `cell` says. Returns `cell`.
+    private int wrapped(int cell) {
+        if (width > 0 && cell > 0 && cell % width == 0) {
+            pending.append("\r\n");
+        }
+        return cell;
+    }
+
+    // Moves the terminal cursor to `cell`: up or down to its row, then along it.
+    private void moveTo(int cell) {
+        int from = cursorCell;
+        int to = cell;
+        cursorCell = cell;
+        if (width > 0) {
+            int rows = to / width - from / width;
+            if (rows < 0) {
+                pending.append("\033[").append(-rows).append('A');
+            } else if (rows > 0) {
+                pending.append("\033[").append(rows).append('B');
+            }
+            from %= width;
+            to %= width;
+        }
+        if (to < from) {
+            int n = from - to;
+            if (n == 1) {
+                pending.append('\b');
+            } else {
+                pending.append("\033[").append(n).append('D');
+            }
+        } else if (to > from) {
+            pending.append("\033[").append(to - from).append('C');
+        }
+    }
+
+    // Goes back to the start of the line's first row and clears everything from there, to draw something else.
+    private void clearLine() {
+        int rows = width > 0 ? cursorCell / width : 0;
+        if (rows > 0) {
+            pending.append("\033[").append(rows).append('A');
+        }
+        pending.append("\r\033[J");
+        cursorCell = 0;
+    }
+
+    private void write() throws IOException {
+        if (pending.length() == 0) {
+            return;
+        }
+        out.write(pending.toString().getBytes(StandardCharsets.UTF_8));
+        out.flush();
+        pending.setLength(0);
+    }
+}
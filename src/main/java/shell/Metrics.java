@@ -0,0 +1,194 @@
+package shell;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Always-on latency timers for the shell's own overhead (mode switches, process spawns, ...), plain counters (bytes,
+ * CPU time, failed commands) and the {@link CommandStats} of the last command line; the {@code stats} builtin shows
+ * them.
+ *
+ * <p>Recording is a map lookup plus a few adds, cheap enough for every command. Set {@code SHELL_METRICS=1} to get a
+ * summary on stderr when the shell exits, {@code SHELL_METRICS=json} for the same as JSON, or
+ * {@code SHELL_METRICS=<file>.json} to write the JSON to a file.
+ */
+public final class Metrics {
+    private static final Map<String, Timer> timers = new ConcurrentHashMap<>();
+    private static final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private static volatile CommandStats last;
+
+    private Metrics() {}
+
+    public static final class Timer {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final AtomicLong maxNanos = new AtomicLong();
+        private volatile long lastNanos;
+
+        void record(long nanos) {
+            count.increment();
+            totalNanos.add(nanos);
+            maxNanos.accumulateAndGet(nanos, Math::max);
+            lastNanos = nanos;
+        }
+
+        public long count() {
+            return count.sum();
+        }
+
+        public long totalNanos() {
+            return totalNanos.sum();
+        }
+
+        public long maxNanos() {
+            return maxNanos.get();
+        }
+
+        public long lastNanos() {
+            return lastNanos;
+        }
+    }
+
+    public static void record(String name, long nanos) {
+        timers.computeIfAbsent(name, k -> new Timer()).record(nanos);
+    }
+
+    /** Records the time elapsed since {@code startNanos} (a {@link System#nanoTime()} value). */
+    public static void since(String name, long startNanos) {
+        record(name, System.nanoTime() - startNanos);
+    }
+
+    public static Timer timer(String name) {
+        return timers.get(name);
+    }
+
+    public static void add(String name, long delta) {
+        counters.computeIfAbsent(name, k -> new LongAdder()).add(delta);
+    }
+
+    public static long counter(String name) {
+        LongAdder counter = counters.get(name);
+        return counter == null ? 0 : counter.sum();
+    }
+
+    /** Records a finished command line: its timers and counters, and it becomes {@link #last()}. */
+    public static void command(CommandStats stats) {
+        last = stats;
+        record("command.parse", stats.parseNanos());
+        record("command.spawn", stats.spawnNanos());
+        record("command.wall", stats.wallNanos());
+        addIfKnown("cpu.shell.ns", stats.shellCpuNanos());
+        addIfKnown("cpu.child.user.ns", stats.childUserNanos());
+        addIfKnown("cpu.child.system.ns", stats.childSystemNanos());
+        for (long bytes : stats.stageBytes()) {
+            addIfKnown("pipeline.bytes", bytes);
+        }
+        if (stats.exitStatus() != 0) {
+            add("command.failed", 1);
+        }
+    }
+
+    private static void addIfKnown(String name, long value) {
+        if (value >= 0) {
+            add(name, value);
+        }
+    }
+
+    public static CommandStats last() {
+        return last;
+    }
+
+    public static void reset() {
+        timers.clear();
+        counters.clear();
+        last = null;
+    }
+
+    /** One line per timer, sorted by name: count, mean, max and last in microseconds. */
+    public static List<String> summary() {
+        var lines = new ArrayList<String>();
+        timers.entrySet().stream().sorted(Map.Entry.comparingByKey()).forEach(e -> {
+            Timer t = e.getValue();
+            long n = t.count();
+            lines.add(String.format("%-24s count=%d mean=%dus max=%dus last=%dus",
+                    e.getKey(), n, n == 0 ? 0 : t.totalNanos() / n / 1000, t.maxNanos() / 1000, t.lastNanos() / 1000));
+        });
+        counters.entrySet().stream().sorted(Map.Entry.comparingByKey()).forEach(e ->
+                lines.add(String.format("%-24s %d", e.getKey(), e.getValue().sum())));
+        return lines;
+    }
+
+    /** Timers, counters and the last command as one JSON object. */
+    public static String json() {
+        var sb = new StringBuilder(1024).append("{\"timers\":{");
+        String separator = "";
+        for (var e : new TreeMap<>(timers).entrySet()) {
+            Timer t = e.getValue();
+            sb.append(separator).append('"').append(e.getKey()).append("\":{\"count\":").append(t.count())
+                    .append(",\"total_us\":").append(t.totalNanos() / 1000)
+                    .append(",\"max_us\":").append(t.maxNanos() / 1000)
+                    .append(",\"last_us\":").append(t.lastNanos() / 1000).append('}');
+            separator = ",";
+        }
+        sb.append("},\"counters\":{");
+        separator = "";
+        for (var e : new TreeMap<>(counters).entrySet()) {
+            sb.append(separator).append('"').append(e.getKey()).append("\":").append(e.getValue().sum());
+            separator = ",";
+        }
+        sb.append("},\"last\":");
+        CommandStats stats = last;
+        if (stats == null) {
+            sb.append("null");
+        } else {
+            sb.append("{\"line\":\"");
+            Trace.escape(sb, stats.line());
+            sb.append("\",\"parse_us\":").append(micros(stats.parseNanos()))
+                    .append(",\"spawn_us\":").append(micros(stats.spawnNanos()))
+                    .append(",\"wall_us\":").append(micros(stats.wallNanos()))
+                    .append(",\"shell_cpu_us\":").append(micros(stats.shellCpuNanos()))
+                    .append(",\"child_user_us\":").append(micros(stats.childUserNanos()))
+                    .append(",\"child_system_us\":").append(micros(stats.childSystemNanos()))
+                    .append(",\"exit\":").append(stats.exitStatus())
+                    .append(",\"stage_bytes\":").append(Arrays.toString(stats.stageBytes()).replace(" ", ""))
+                    .append('}');
+        }
+        return sb.append('}').toString();
+    }
+
+    private static long micros(long nanos) {
+        return nanos < 0 ? -1 : nanos / 1000;
+    }
+
+    /** Prints {@link #summary()} (or {@link #json()}) on JVM shutdown when {@code SHELL_METRICS} is set. */
+    public static void dumpOnExitIfEnabled() {
+        String flag = System.getenv("SHELL_METRICS");
+        if (flag == null || flag.isBlank() || "0".equals(flag)) {
+            return;
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            if (flag.endsWith(".json")) {
+                try {
+                    Files.writeString(Path.of(flag), json() + "\n");
+                } catch (IOException e) {
+                    System.err.println("metrics: cannot write " + flag + ": " + e.getMessage());
+                }
+            } else if ("json".equals(flag)) {
+                System.err.println(json());
+            } else {
+                for (String line : summary()) {
+                    System.err.println(line);
+                }
+            }
+        }));
+    }
+}
@@ -0,0 +1,410 @@
+package shell;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * {@code parallel}: runs a command once per input, up to {@code -j N} at a time, in the style of GNU parallel.
+ *
+ * <pre>
+ * parallel [-j N] [-k] [-a file] command [arg...] [::: input...]
+ * </pre>
+ *
+ * <p>Inputs are the words after {@code :::}, the lines of {@code -a file}, or the lines of stdin. In the command,
+ * {@code {}} is the input, {@code {.}} the input without its extension, {@code {/}} its basename, {@code {//}} its
+ * directory, {@code {/.}} the basename without extension and {@code {#}} the job's number; with none of these the input
+ * is appended as the last argument. A command given as one quoted word ({@code 'gzip -c {} > {}.gz'}) is a command line
+ * of its own, with each input quoted into it; without a command each input is itself a command line. Either way it
+ * may have redirections, but not pipes.
+ * {@code -j} takes N, {@code +N} or {@code -N} (cores plus or minus N), {@code N%} of the cores, or 0 for no limit;
+ * the default is one job per core.
+ *
+ * <p>Every job runs on its own virtual thread and a semaphore bounds how many run at once, so waiting for a process
+ * ({@link Process#onExit}) only parks. A builtin that can run in a pipeline (e.g. the coreutils builtins) runs
+ * in-process; anything else is started as a process. A job's stdout and stderr are held back (a process writes them
+ * to temporary files) and printed together when it finishes, so lines of different jobs never interleave; with
+ * {@code -k} in input order. The exit status is the number of failed jobs, 101 for more than 100, as in GNU parallel.
+ *
+ * <p>Options it does not know, several input sources, or reading the terminal make it decline
+ * ({@link Builtin#accepts}), so an installed GNU parallel runs instead.
+ */
+public final class Parallel implements Builtin {
+    private static final File NULL_FILE = new File("/dev/null");
+
+    private final Supplier<Path> cwd;
+    private final Function<String, Builtin> builtins;
+
+    /** {@code builtins} looks up the shell's builtins for jobs (null for anything else). */
+    public Parallel(Supplier<Path> cwd, Function<String, Builtin> builtins) {
+        this.cwd = cwd;
+        this.builtins = builtins;
+    }
+
+    @Override
+    public String name() {
+        return "parallel";
+    }
+
+    private static final class Options {
+        int jobs = Runtime.getRuntime().availableProcessors();
+        boolean keepOrder;
+        String argFile;
+        // Inputs given after :::, or null
+        List<String> inputs;
+        List<String> template = List.of();
+    }
+
+    // Parsed options, or null for an option (or combination) that is not implemented here.
+    private static Options parse(String[] args) {
+        var options = new Options();
+        int i = 0;
+        for (; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--")) {
+                i++;
+                break;
+            }
+            if (arg.equals("-k") || arg.equals("--keep-order")) {
+                options.keepOrder = true;
+            } else if (arg.equals("-j") || arg.equals("--jobs") || arg.equals("-P")) {
+                if (++i == args.length || (options.jobs = jobs(args[i])) < 0) {
+                    return null;
+                }
+            } else if (arg.startsWith("-j") || arg.startsWith("-P")) {
+                if ((options.jobs = jobs(arg.substring(2))) < 0) {
+                    return null;
+                }
+            } else if (arg.equals("-a") || arg.equals("--arg-file")) {
+                if (++i == args.length) {
+                    return null;
+                }
+                options.argFile = args[i];
+            } else if (arg.startsWith("-") && !arg.equals("-") || arg.equals(":::") || arg.equals("::::")) {
+                if (!arg.equals(":::")) {
+                    return null;
+                }
+                break;
+            } else {
+                break;
+            }
+        }
+        int separator = i;
+        while (separator < args.length && !args[separator].equals(":::") && !args[separator].equals("::::")) {
+            separator++;
+        }
+        options.template = List.of(args).subList(i, separator);
+        if (separator < args.length) {
+            if (args[separator].equals("::::") || options.argFile != null) {
+                return null;
+            }
+            options.inputs = List.of(args).subList(separator + 1, args.length);
+            if (options.inputs.contains(":::") || options.inputs.contains("::::")) {
+                // Several input sources (GNU combines them) are not implemented.
+                return null;
+            }
+        }
+        return options;
+    }
+
+    // -j N, +N, -N, N%: the number of jobs, Integer.MAX_VALUE for 0 (no limit), or -1.
+    private static int jobs(String spec) {
+        int cores = Runtime.getRuntime().availableProcessors();
+        try {
+            int n;
+            if (spec.endsWith("%")) {
+                n = cores * Integer.parseInt(spec.substring(0, spec.length() - 1)) / 100;
+            } else if (spec.startsWith("+") || spec.startsWith("-")) {
+                n = cores + Integer.parseInt(spec);
+            } else {
+                n = Integer.parseInt(spec);
+                if (n == 0) {
+                    return Integer.MAX_VALUE;
+                }
+            }
+            return Math.max(1, n);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    @Override
+    public boolean accepts(Command command, boolean pipedInput) {
+        Options options = parse(command.args());
+        return options != null && (pipedInput || options.inputs != null || options.argFile != null);
+    }
+
+    @Override
+    public int run(Command command, Stdio io) throws IOException, InterruptedException {
+        Options options = parse(command.args());
+        if (options == null) {
+            io.err().println("parallel: unsupported option");
+            return 255;
+        }
+        if (options.inputs != null) {
+            return run(options, options.inputs.iterator(), io);
+        }
+        if (options.argFile == null) {
+            // stdin belongs to whoever gave it to us; only -a's file is closed here.
+            var reader = new BufferedReader(new InputStreamReader(io.in(), StandardCharsets.UTF_8));
+            return run(options, reader.lines().iterator(), io);
+        }
+        try (var reader = Files.newBufferedReader(cwd.get().resolve(options.argFile))) {
+            return run(options, reader.lines().iterator(), io);
+        } catch (NoSuchFileException e) {
+            io.err().println("parallel: " + options.argFile + ": No such file or directory");
+            return 255;
+        }
+    }
+
+    // Runs one job per input and returns the exit status.
+    private int run(Options options, Iterator<String> inputs, Stdio io) throws InterruptedException {
+        var output = new Output(io, options.keepOrder);
+        var failed = new AtomicInteger();
+        var slots = new Semaphore(options.jobs);
+        long start = System.nanoTime();
+        int seq = 0;
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            while (inputs.hasNext()) {
+                String input = inputs.next();
+                int job = ++seq;
+                slots.acquire();
+                executor.execute(() -> {
+                    try {
+                        Result result = job(options.template, input, job);
+                        if (result.status != 0) {
+                            failed.incrementAndGet();
+                        }
+                        output.done(job, result);
+                    } finally {
+                        slots.release();
+                    }
+                });
+            }
+        }
+        Metrics.since("parallel", start);
+        Metrics.add("parallel.jobs", seq);
+        Trace.end("parallel", start, null, seq);
+        return Math.min(failed.get(), 101);
+    }
+
+    // A finished job: what it wrote, and its exit status.
+    private record Result(byte[] out, Path outFile, byte[] err, Path errFile, int status) {}
+
+    private Result job(List<String> template, String input, int job) {
+        Command command;
+        try {
+            if (template.isEmpty()) {
+                command = Parser.parse(input);
+            } else if (template.size() == 1 && template.get(0).chars().anyMatch(Character::isWhitespace)) {
+                command = Parser.parse(replace(template.get(0), input, job, true));
+            } else {
+                command = substitute(template, input, job);
+            }
+        } catch (IllegalArgumentException e) {
+            return failure("parallel: " + input + ": " + e.getMessage(), 2);
+        }
+        Redirections redirections;
+        try {
+            redirections = Redirections.open(command.redirects(), cwd.get());
+        } catch (IOException e) {
+            return failure(e.getMessage(), 1);
+        }
+        try (redirections) {
+            Builtin builtin = builtins.apply(command.command());
+            if (builtin != null && builtin.pipelineCapable() && !builtin.changesShellState()
+                    && builtin.accepts(command, true)) {
+                return runBuiltin(builtin, command, redirections);
+            }
+            return runProcess(command, redirections);
+        } catch (IOException e) {
+            return failure("parallel: " + e.getMessage(), 1);
+        }
+    }
+
+    // The template with {} etc. replaced in every word, or the input appended if no word has a replacement string.
+    private static Command substitute(List<String> template, String input, int job) {
+        var words = new ArrayList<String>(template.size() + 1);
+        boolean replaced = false;
+        for (String word : template) {
+            String result = replace(word, input, job, false);
+            replaced |= result != word;
+            words.add(result);
+        }
+        if (!replaced) {
+            words.add(input);
+        }
+        String[] argv = words.toArray(String[]::new);
+        String[] args = words.subList(1, words.size()).toArray(String[]::new);
+        return new Command(argv[0], args, argv, List.of());
+    }
+
+    // `word` itself (the same instance) when it has no replacement string. With `quote`, the values are quoted for a
+    // command line.
+    private static String replace(String word, String input, int job, boolean quote) {
+        int open = word.indexOf('{');
+        if (open < 0) {
+            return word;
+        }
+        var result = new StringBuilder(word.length() + input.length());
+        int from = 0;
+        boolean replaced = false;
+        for (; open >= 0; open = word.indexOf('{', from)) {
+            int close = word.indexOf('}', open);
+            if (close < 0) {
+                break;
+            }
+            String value = switch (word.substring(open + 1, close)) {
+                case "" -> input;
+                case "." -> withoutExtension(input);
+                case "/" -> basename(input);
+                case "//" -> dirname(input);
+                case "/." -> withoutExtension(basename(input));
+                case "#" -> Integer.toString(job);
+                default -> null;
+            };
+            if (value == null) {
+                result.append(word, from, open + 1);
+                from = open + 1;
+                continue;
+            }
+            result.append(word, from, open).append(quote ? quote(value) : value);
+            from = close + 1;
+            replaced = true;
+        }
+        return replaced ? result.append(word, from, word.length()).toString() : word;
+    }
+
+    // Single-quoted for the Lexer: 'it'\''s'
+    private static String quote(String input) {
+        return "'" + input.replace("'", "'\\''") + "'";
+    }
+
+    private static String basename(String path) {
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+
+    private static String dirname(String path) {
+        int slash = path.lastIndexOf('/');
+        return slash < 0 ? "." : slash == 0 ? "/" : path.substring(0, slash);
+    }
+
+    // "dir/a.tar.gz" -> "dir/a.tar"; a dot that starts the basename is not an extension.
+    private static String withoutExtension(String path) {
+        int dot = path.lastIndexOf('.');
+        int slash = path.lastIndexOf('/');
+        return dot > slash + 1 ? path.substring(0, dot) : path;
+    }
+
+    private static Result failure(String message, int status) {
+        return new Result(new byte[0], null, (message + "\n").getBytes(StandardCharsets.UTF_8), null, status);
+    }
+
+    private static Result runBuiltin(Builtin builtin, Command command, Redirections redirections) {
+        var out = new ByteArrayOutputStream();
+        var err = new ByteArrayOutputStream();
+        var own = new Stdio(InputStream.nullInputStream(), new PrintStream(out), new PrintStream(err));
+        Stdio io = redirections.stdio(own);
+        int code;
+        try {
+            code = builtin.run(command, io);
+        } catch (Exception e) {
+            io.err().println(command.command() + ": " + e.getMessage());
+            code = 1;
+        }
+        io.out().flush();
+        io.err().flush();
+        return new Result(out.toByteArray(), null, err.toByteArray(), null, code);
+    }
+
+    private Result runProcess(Command command, Redirections redirections) throws IOException {
+        Path out = Files.createTempFile("parallel", ".out");
+        Path err = Files.createTempFile("parallel", ".err");
+        var builder = new ProcessBuilder(command.commandWithArgs())
+                .directory(cwd.get().toFile())
+                .redirectInput(NULL_FILE)
+                .redirectOutput(out.toFile())
+                .redirectError(err.toFile());
+        redirections.applyTo(builder);
+        Process process;
+        try {
+            process = builder.start();
+        } catch (IOException e) {
+            Files.deleteIfExists(out);
+            Files.deleteIfExists(err);
+            return failure(command.command() + ": command not found", 127);
+        }
+        int code = process.onExit().join().exitValue();
+        return new Result(null, out, null, err, code);
+    }
+
+    // Prints each finished job's output in one piece, in completion order or (keepOrder) input order. A lock rather
+    // than a monitor: printing may block on a pipe, and a virtual thread blocked in a monitor pins its carrier.
+    private static final class Output {
+        private final Stdio io;
+        private final boolean keepOrder;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final TreeMap<Integer, Result> waiting = new TreeMap<>();
+        private int next = 1;
+
+        Output(Stdio io, boolean keepOrder) {
+            this.io = io;
+            this.keepOrder = keepOrder;
+        }
+
+        void done(int job, Result result) {
+            lock.lock();
+            try {
+                if (!keepOrder) {
+                    print(result);
+                    return;
+                }
+                waiting.put(job, result);
+                while (!waiting.isEmpty() && waiting.firstKey() == next) {
+                    print(waiting.pollFirstEntry().getValue());
+                    next++;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void print(Result result) {
+            write(result.out(), result.outFile(), io.out());
+            write(result.err(), result.errFile(), io.err());
+        }
+
+        private static void write(byte[] bytes, Path file, PrintStream stream) {
+            try {
+                if (file != null) {
+                    Files.copy(file, stream);
+                    Files.deleteIfExists(file);
+                } else {
+                    stream.write(bytes);
+                }
+            } catch (IOException ignored) {
+                // The output is gone (e.g. the next pipeline stage exited); PrintStream records that too.
+            }
+            stream.flush();
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package shell;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import shell.Lexer.Token;
+
+/** Turns command lines into {@link Command}s: pipeline stages, argv and redirections, from {@link Lexer} tokens. */
+public final class Parser {
+    private Parser() {}
+
+    /**
+     * Parses a command line into one command per pipeline stage (a single element when there is no {@code |}).
+     * The line is tokenized exactly once. A trailing {@code &} is accepted and dropped; see {@link #parsePipeline}.
+     */
+    public static List<Command> parseLine(String line) {
+        return parsePipeline(line).stages();
+    }
+
+    /** Parses a command line into its pipeline stages, noting a trailing {@code &} (run in the background). */
+    public static Pipeline parsePipeline(String line) {
+        if (line == null || line.isEmpty()) {
+            throw new IllegalArgumentException("command cannot be null or empty");
+        }
+
+        List<Token> tokens = Lexer.lex(line);
+        boolean background = !tokens.isEmpty() && tokens.get(tokens.size() - 1).kind() == Lexer.Kind.BACKGROUND;
+        if (background) {
+            tokens = tokens.subList(0, tokens.size() - 1);
+        }
+        List<Command> commands = new ArrayList<>(1);
+        int start = 0;
+        for (int i = 0; i < tokens.size(); i++) {
+            if (tokens.get(i).kind() == Lexer.Kind.PIPE) {
+                if (i == start) {
+                    throw new IllegalArgumentException("pipeline needs command on both sides");
+                }
+                commands.add(parseTokens(tokens, start, i));
+                start = i + 1;
+            }
+        }
+        if (start >= tokens.size()) {
+            throw new IllegalArgumentException(commands.isEmpty() ? "command cannot be empty" : "pipeline needs command on both sides");
+        }
+        commands.add(parseTokens(tokens, start, tokens.size()));
+        return new Pipeline(commands, background);
+    }
+
+    /** Parses a line that must be a single command (no pipeline). */
+    public static Command parse(String line) {
+        List<Command> commands = parseLine(line);
+        if (commands.size() != 1) {
+            throw new IllegalArgumentException("expected a single command");
+        }
+        return commands.get(0);
+    }
+
+    // Builds a command from tokens[from, to): words become the argv, redirect operators take the following word.
+    private static Command parseTokens(List<Token> tokens, int from, int to) {
+        String[] words = new String[to - from];
+        String[] patterns = null;
+        int count = 0;
+        List<Redirect> redirects = List.of();
+
+        for (int i = from; i < to; i++) {
+            Token token = tokens.get(i);
+            if (token.kind() == Lexer.Kind.WORD) {
+                if (token.pattern() != null) {
+                    if (patterns == null) {
+                        patterns = new String[words.length];
+                    }
+                    patterns[count] = token.pattern();
+                }
+                words[count++] = token.text();
+                continue;
+            }
+            if (token.kind() == Lexer.Kind.BACKGROUND) {
+                // Only a whole line can be put in the background (no `a & b` lists).
+                throw new IllegalArgumentException("syntax error near unexpected token `&'");
+            }
+
+            // REDIRECT
+            if (i + 1 >= to || tokens.get(i + 1).kind() != Lexer.Kind.WORD) {
+                throw new IllegalArgumentException("syntax error: redirection without a target");
+            }
+            String target = tokens.get(++i).text();
+            Redirect.Op op = token.op();
+            if (op == Redirect.Op.DUP && !isDescriptor(target)) {
+                // `>&file` is bash's older spelling of `&>file`; `2>&file` has no meaning.
+                if (!token.text().equals("1>&")) {
+                    throw new IllegalArgumentException(target + ": ambiguous redirect");
+                }
+                op = Redirect.Op.BOTH;
+            }
+            if (redirects.isEmpty()) {
+                redirects = new ArrayList<>(2);
+            }
+            redirects.add(new Redirect(token.fd(), op, target));
+            Trace.event("parse.redirect", target, token.fd());
+        }
+
+        if (count == 0) {
+            throw new IllegalArgumentException("command cannot be empty");
+        }
+
+        String[] commandWithArgs = count == words.length ? words : Arrays.copyOf(words, count);
+        String[] args = Arrays.copyOfRange(commandWithArgs, 1, count);
+        if (patterns != null && patterns.length != count) {
+            patterns = Arrays.copyOf(patterns, count);
+        }
+        return new Command(commandWithArgs[0], args, commandWithArgs, redirects, patterns);
+    }
+
+    // A dup target: a descriptor number, or "-" to close.
+    private static boolean isDescriptor(String word) {
+        if (word.equals("-")) {
+            return true;
+        }
+        if (word.isEmpty() || word.length() > 9) {
+            return false;
+        }
+        for (int i = 0; i < word.length(); i++) {
+            if (word.charAt(i) < '0' || word.charAt(i) > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+}
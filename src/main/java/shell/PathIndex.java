@@ -0,0 +1,255 @@
+package shell;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+
+/**
+ * Cached index of the executables reachable through {@code PATH}, in the spirit of bash's {@code hash}.
+ *
+ * <p>The index is built once (directories are listed in parallel) and afterwards only revalidated with one
+ * {@code stat} per PATH directory: a directory whose mtime changed is rescanned on its own, and a changed
+ * {@code PATH} value rebuilds everything.
+ */
+public final class PathIndex {
+    private static final String PATH = "PATH";
+
+    private final Supplier<String> pathSupplier;
+    private String pathValue;
+    private List<Dir> dirs = List.of();
+    // name -> absolute path of the first match in PATH order
+    private Map<String, String> executables = Map.of();
+    private String[] sortedNames = new String[0];
+    private long generation;
+    // Commands resolved through lookup(), with hit counts (what `hash` prints)
+    private final Map<String, Hit> remembered = new LinkedHashMap<>();
+
+    private static final class Dir {
+        final Path path;
+        long mtime;
+        String[] names;
+
+        Dir(Path path) {
+            this.path = path;
+        }
+    }
+
+    private static final class Hit {
+        final String path;
+        int hits;
+
+        Hit(String path) {
+            this.path = path;
+        }
+    }
+
+    public PathIndex() {
+        this(() -> System.getenv(PATH));
+    }
+
+    /** Index over the directories listed in whatever {@code pathSupplier} returns (read on every revalidation). */
+    public PathIndex(Supplier<String> pathSupplier) {
+        this.pathSupplier = pathSupplier;
+    }
+
+    /** Scans PATH eagerly; later calls only revalidate. */
+    public synchronized void build() {
+        validate();
+    }
+
+    /** Drops everything (including remembered hits) and rescans PATH, like {@code hash -r}. */
+    public synchronized void reset() {
+        remembered.clear();
+        pathValue = null;
+        validate();
+    }
+
+    /** Bumped every time the set of known executables may have changed. */
+    public synchronized long generation() {
+        validate();
+        return generation;
+    }
+
+    /**
+     * Resolves a command name to the absolute path of the executable, or null if PATH has none.
+     * Successful lookups are remembered for {@code hash}.
+     */
+    public synchronized String lookup(String name) {
+        String found = resolve(name);
+        if (found != null) {
+            remembered.computeIfAbsent(name, k -> new Hit(found)).hits++;
+        }
+        return found;
+    }
+
+    /** Same as {@link #lookup} without touching the hit counters (used by {@code type}). */
+    public synchronized String resolve(String name) {
+        if (name == null || name.isEmpty()) {
+            return null;
+        }
+        validate();
+        String found = executables.get(name);
+        if (found != null && Files.isExecutable(Path.of(found))) {
+            return found;
+        }
+        if (found != null) {
+            // Removed or chmod'ed without touching the directory mtime: forget and rescan.
+            remembered.remove(name);
+            scan(dirs);
+            merge();
+            return executables.get(name);
+        }
+        // A chmod +x doesn't change the directory mtime either, so probe directly on a miss.
+        for (Dir dir : dirs) {
+            Path candidate = dir.path.resolve(name);
+            if (Files.isExecutable(candidate) && !Files.isDirectory(candidate)) {
+                scan(List.of(dir));
+                merge();
+                return candidate.toAbsolutePath().toString();
+            }
+        }
+        return null;
+    }
+
+    /** All executable names on PATH, sorted and without duplicates. The array must not be modified. */
+    public synchronized String[] names() {
+        validate();
+        return sortedNames;
+    }
+
+    /** Forgets a single remembered command, like {@code hash -d}. Returns false if it was not remembered. */
+    public synchronized boolean forget(String name) {
+        return remembered.remove(name) != null;
+    }
+
+    /** Path a command was remembered with, or null, like {@code hash -t}. */
+    public synchronized String remembered(String name) {
+        Hit hit = remembered.get(name);
+        return hit == null ? null : hit.path;
+    }
+
+    /** Lines in the format bash's {@code hash} uses: a header followed by hit count and path per command. */
+    public synchronized List<String> describe() {
+        List<String> lines = new ArrayList<>();
+        if (remembered.isEmpty()) {
+            return lines;
+        }
+        lines.add("hits\tcommand");
+        for (Hit hit : remembered.values()) {
+            lines.add(String.format("%4d\t%s", hit.hits, hit.path));
+        }
+        return lines;
+    }
+
+    private void validate() {
+        String current = pathSupplier.get();
+        if (current == null) {
+            current = "";
+        }
+
+        if (!current.equals(pathValue)) {
+            rebuild(current);
+            return;
+        }
+
+        List<Dir> stale = new ArrayList<>();
+        for (Dir dir : dirs) {
+            if (mtime(dir.path) != dir.mtime) {
+                stale.add(dir);
+            }
+        }
+        if (!stale.isEmpty()) {
+            scan(stale);
+            merge();
+        }
+    }
+
+    private void rebuild(String current) {
+        List<Dir> fresh = new ArrayList<>();
+        String sep = System.getProperty("path.separator");
+        for (String entry : current.split(Pattern.quote(sep))) {
+            if (entry == null || entry.isBlank()) {
+                continue;
+            }
+            fresh.add(new Dir(Paths.get(entry)));
+        }
+        dirs = fresh;
+        pathValue = current;
+        scan(fresh);
+        merge();
+    }
+
+    private static void scan(List<Dir> toScan) {
+        if (toScan.size() == 1) {
+            scanDir(toScan.get(0));
+            return;
+        }
+        // Listing a directory and checking the exec bit of every entry is the expensive part; do dirs in parallel.
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[toScan.size()];
+        for (int i = 0; i < toScan.size(); i++) {
+            Dir dir = toScan.get(i);
+            futures[i] = CompletableFuture.runAsync(() -> scanDir(dir));
+        }
+        CompletableFuture.allOf(futures).join();
+    }
+
+    private static void scanDir(Dir dir) {
+        // Read the mtime first so that a change racing with the listing triggers another rescan.
+        dir.mtime = mtime(dir.path);
+        List<String> names = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir.path)) {
+            for (Path p : stream) {
+                try {
+                    if (Files.isExecutable(p) && !Files.isDirectory(p)) {
+                        names.add(p.getFileName().toString());
+                    }
+                } catch (Exception ignored) {
+                    // ignore unreadable entries
+                }
+            }
+        } catch (IOException | RuntimeException ignored) {
+            // ignore unreadable or missing PATH directories
+        }
+        dir.names = names.toArray(new String[0]);
+    }
+
+    private void merge() {
+        Map<String, String> merged = new HashMap<>();
+        for (Dir dir : dirs) {
+            if (dir.names == null) {
+                continue;
+            }
+            Path base = dir.path.toAbsolutePath();
+            for (String name : dir.names) {
+                if (!merged.containsKey(name)) {
+                    merged.put(name, base.resolve(name).toString());
+                }
+            }
+        }
+        String[] names = merged.keySet().toArray(new String[0]);
+        Arrays.sort(names);
+        executables = merged;
+        sortedNames = names;
+        generation++;
+    }
+
+    private static long mtime(Path dir) {
+        try {
+            return Files.getLastModifiedTime(dir).to(TimeUnit.NANOSECONDS);
+        } catch (IOException | RuntimeException e) {
+            return -1;
+        }
+    }
+}
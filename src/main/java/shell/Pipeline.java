@@ -0,0 +1,6 @@
+package shell;
+
+import java.util.List;
+
+/** A parsed command line: its pipeline stages, and whether it ends in {@code &}. */
+public record Pipeline(List<Command> stages, boolean background) {}
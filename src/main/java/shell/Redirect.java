@@ -0,0 +1,25 @@
+package shell;
+
+/**
+ * One redirection of a command, as written: {@code 2>>log} is {@code (2, APPEND, "log")}. A command's redirections
+ * are applied left to right by {@link Redirections}, so {@code >out 2>&1} and {@code 2>&1 >out} differ as in bash.
+ *
+ * <p>For {@link Op#DUP} the target is the descriptor to copy ({@code "1"}) or {@code "-"} to close {@code fd}. The
+ * {@code &>} forms redirect both stdout and stderr; their {@code fd} is 1.
+ */
+public record Redirect(int fd, Op op, String target) {
+    public enum Op {
+        /** {@code n<file} */
+        READ,
+        /** {@code n>file} */
+        WRITE,
+        /** {@code n>>file} */
+        APPEND,
+        /** {@code n>&m}, {@code n<&m}, {@code n>&-} */
+        DUP,
+        /** {@code &>file} */
+        BOTH,
+        /** {@code &>>file} */
+        BOTH_APPEND
+    }
+}
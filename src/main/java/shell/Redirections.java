@@ -0,0 +1,276 @@
+package shell;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The descriptor table of one command after its redirections: which file, or which of the command's own streams,
+ * each of fds 0-9 refers to. Redirections are applied left to right, so {@code >out 2>&1} sends both streams to
+ * {@code out} while {@code 2>&1 >out} sends stderr to where stdout was.
+ *
+ * <p>Every file is opened once, as a {@link FileChannel}, when the table is built; a failed open is reported before
+ * the command runs, as bash does. A builtin gets streams over those channels ({@link #stdio}); a child process is
+ * pointed at the same files by path ({@link #applyTo}) and opens them itself, so its output never passes through the
+ * shell. Closing the table flushes and closes every channel.
+ *
+ * <p>A command's "own" streams are what it would have without redirections: the shell's stdin/stdout/stderr, or the
+ * pipes of its pipeline stage. Only fds 0-2 reach a child process.
+ */
+public final class Redirections implements Closeable {
+    private static final int FDS = 10;
+
+    /** No redirections: every stream is the command's own. */
+    public static final Redirections NONE = new Redirections();
+
+    // What an fd refers to: one of the command's own streams, an opened file, or nothing (closed with n>&-).
+    private sealed interface Target permits Own, Opened, Closed {}
+
+    private record Own(int fd) implements Target {}
+
+    private enum Closed implements Target {
+        INSTANCE
+    }
+
+    private static final class Opened implements Target {
+        final Path path;
+        final FileChannel channel;
+        final boolean output;
+        final boolean append;
+        // Shared by every fd that points here, so `>f 2>&1` keeps the builtin's stdout and stderr in order.
+        PrintStream stream;
+
+        Opened(Path path, FileChannel channel, boolean output, boolean append) {
+            this.path = path;
+            this.channel = channel;
+            this.output = output;
+            this.append = append;
+        }
+    }
+
+    private final Target[] table = new Target[FDS];
+    private final List<Opened> opened = new ArrayList<>(1);
+
+    private Redirections() {
+        for (int fd = 0; fd < 3; fd++) {
+            table[fd] = new Own(fd);
+        }
+    }
+
+    /**
+     * Opens the files of {@code redirects}, relative paths against {@code cwd}. On failure everything opened so far
+     * is closed and the exception's message is bash's, e.g. {@code "in.txt: No such file or directory"}.
+     */
+    public static Redirections open(List<Redirect> redirects, Path cwd) throws IOException {
+        if (redirects.isEmpty()) {
+            return NONE;
+        }
+        var table = new Redirections();
+        try {
+            for (Redirect redirect : redirects) {
+                table.apply(redirect, cwd);
+            }
+        } catch (IOException e) {
+            table.close();
+            throw e;
+        }
+        return table;
+    }
+
+    private void apply(Redirect redirect, Path cwd) throws IOException {
+        int fd = redirect.fd();
+        if (fd >= FDS) {
+            throw new IOException(fd + ": Bad file descriptor");
+        }
+        switch (redirect.op()) {
+            case READ -> table[fd] = open(cwd, redirect.target(), false, StandardOpenOption.READ);
+            case WRITE -> table[fd] = open(cwd, redirect.target(), true,
+                    StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+            case APPEND -> table[fd] = open(cwd, redirect.target(), true,
+                    StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            case BOTH, BOTH_APPEND -> {
+                table[1] = open(cwd, redirect.target(), true, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                        redirect.op() == Redirect.Op.BOTH
+                                ? StandardOpenOption.TRUNCATE_EXISTING
+                                : StandardOpenOption.APPEND);
+                table[2] = table[1];
+            }
+            case DUP -> {
+                if (redirect.target().equals("-")) {
+                    table[fd] = Closed.INSTANCE;
+                    return;
+                }
+                int from = Integer.parseInt(redirect.target());
+                if (from >= FDS || table[from] == null || table[from] == Closed.INSTANCE) {
+                    throw new IOException(from + ": Bad file descriptor");
+                }
+                table[fd] = table[from];
+            }
+        }
+    }
+
+    // Opens a redirect target. A missing parent directory of an output file is created, as this shell always has.
+    private Opened open(Path cwd, String target, boolean output, OpenOption... options) throws IOException {
+        Path path = cwd.resolve(target).normalize();
+        FileChannel channel;
+        try {
+            if (output && Files.isDirectory(path)) {
+                throw new IOException(target + ": Is a directory");
+            }
+            try {
+                channel = FileChannel.open(path, options);
+            } catch (NoSuchFileException e) {
+                if (!output || path.getParent() == null || Files.isDirectory(path.getParent())) {
+                    throw e;
+                }
+                Files.createDirectories(path.getParent());
+                channel = FileChannel.open(path, options);
+            }
+        } catch (NoSuchFileException e) {
+            throw new IOException(target + ": No such file or directory", e);
+        } catch (AccessDeniedException e) {
+            throw new IOException(target + ": Permission denied", e);
+        } catch (FileSystemException e) {
+            throw new IOException(target + ": " + (e.getReason() != null ? e.getReason() : e.getMessage()), e);
+        }
+        var file = new Opened(path, channel, output, Arrays.asList(options).contains(StandardOpenOption.APPEND));
+        opened.add(file);
+        return file;
+    }
+
+    /** Whether fd {@code fd} is still the command's own stream, e.g. the pipe to the next pipeline stage. */
+    public boolean keeps(int fd) {
+        return table[fd] instanceof Own own && own.fd() == fd;
+    }
+
+    /** Whether stdout or stderr still goes to the command's own stdout, e.g. {@code 2>&1 >/dev/null} in a pipeline. */
+    public boolean writesOwnStdout() {
+        return keeps(1) || table[2] instanceof Own own && own.fd() == 1;
+    }
+
+    /** The streams a builtin sees: {@code own} with the redirections applied. */
+    public Stdio stdio(Stdio own) {
+        if (this == NONE) {
+            return own;
+        }
+        return new Stdio(input(table[0], own), output(table[1], own), output(table[2], own),
+                channel(table[0], false), channel(table[1], true));
+    }
+
+    private static InputStream input(Target target, Stdio own) {
+        return switch (target) {
+            case Own o -> o.fd() == 0 ? own.in() : InputStream.nullInputStream();
+            case Opened file when !file.output -> Channels.newInputStream(file.channel);
+            default -> InputStream.nullInputStream();
+        };
+    }
+
+    private static PrintStream output(Target target, Stdio own) {
+        return switch (target) {
+            case Own o -> o.fd() == 2 ? own.err() : own.out();
+            case Opened file when file.output -> {
+                if (file.stream == null) {
+                    file.stream = new PrintStream(new BufferedOutputStream(Channels.newOutputStream(file.channel)));
+                }
+                yield file.stream;
+            }
+            // A closed fd, or a file opened for reading: every write fails, which PrintStream records in checkError.
+            default -> new PrintStream(new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    throw new IOException("Bad file descriptor");
+                }
+            });
+        };
+    }
+
+    private static FileChannel channel(Target target, boolean output) {
+        return target instanceof Opened file && file.output == output ? file.channel : null;
+    }
+
+    /**
+     * Points a child's stdin, stdout and stderr at their targets. Call it after setting the child's own streams on
+     * {@code builder} (INHERIT, PIPE, ...), which the unredirected fds keep.
+     *
+     * <p>A child opens a file redirect by its path, with the mode it was given: {@code >} truncates again, which is
+     * harmless since the shell has written nothing to it, and only {@code >>} is opened for appending. A dup of one of the shell's own inherited descriptors goes
+     * through {@code /dev/fd}. A dup of a PIPE stays a PIPE: with {@code 2>&1 >file} in a pipeline the next stage
+     * reads the child's {@link Process#getErrorStream}.
+     */
+    public void applyTo(ProcessBuilder builder) {
+        if (this == NONE) {
+            return;
+        }
+        ProcessBuilder.Redirect[] own = {builder.redirectInput(), builder.redirectOutput(), builder.redirectError()};
+        builder.redirectInput(redirect(table[0], 0, own));
+        builder.redirectOutput(redirect(table[1], 1, own));
+        if (table[2].equals(table[1]) && table[2] != Closed.INSTANCE) {
+            // One stream, as after `2>&1`: the child gets the same descriptor twice.
+            builder.redirectErrorStream(true);
+        } else {
+            builder.redirectError(redirect(table[2], 2, own));
+        }
+    }
+
+    private static ProcessBuilder.Redirect redirect(Target target, int fd, ProcessBuilder.Redirect[] own) {
+        return switch (target) {
+            case Opened file when fd == 0 -> ProcessBuilder.Redirect.from(file.path.toFile());
+            // Only a file the shell opened with `>` may be truncated again; `1<in` must not clobber in.
+            case Opened file when file.output && !file.append -> ProcessBuilder.Redirect.to(file.path.toFile());
+            case Opened file -> ProcessBuilder.Redirect.appendTo(file.path.toFile());
+            case Own o when o.fd() == fd -> own[fd];
+            case Own o when own[o.fd()] == ProcessBuilder.Redirect.PIPE -> ProcessBuilder.Redirect.PIPE;
+            case Own o -> {
+                File named = own[o.fd()] == ProcessBuilder.Redirect.INHERIT
+                        ? new File("/dev/fd/" + o.fd())
+                        : own[o.fd()].file();
+                if (named == null) {
+                    yield own[fd];
+                }
+                yield fd == 0 ? ProcessBuilder.Redirect.from(named) : ProcessBuilder.Redirect.appendTo(named);
+            }
+            case Closed c -> fd == 0
+                    ? ProcessBuilder.Redirect.from(new File("/dev/null"))
+                    : ProcessBuilder.Redirect.DISCARD;
+        };
+    }
+
+    /** Flushes what builtins wrote and closes every file. */
+    @Override
+    public void close() throws IOException {
+        IOException failed = null;
+        for (Opened file : opened) {
+            try {
+                if (file.stream != null) {
+                    file.stream.flush();
+                }
+            } finally {
+                try {
+                    file.channel.close();
+                } catch (IOException e) {
+                    failed = failed == null ? e : failed;
+                }
+            }
+        }
+        opened.clear();
+        if (failed != null) {
+            throw failed;
+        }
+    }
+}
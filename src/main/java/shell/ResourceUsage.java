@@ -0,0 +1,84 @@
+package shell;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.MethodHandle;
+import java.time.Duration;
+
+/**
+ * CPU time used by the shell itself and by its finished children, from libc's {@code getrusage} (FFM API).
+ *
+ * <p>A sample is two system calls, cheap enough to take around every command. Children's time covers every child the
+ * JVM has reaped, so the difference across a foreground command is what that command used (plus any background job
+ * that ended meanwhile). {@link ProcessHandle.Info} cannot give this: it reads {@code /proc/<pid>}, which is gone
+ * once a child has exited. Without native access the shell's own time comes from
+ * {@code ProcessHandle.current().info()} and children's time is unknown (-1).
+ */
+public final class ResourceUsage {
+    private static final int RUSAGE_SELF = 0;
+    private static final int RUSAGE_CHILDREN = -1;
+    // Larger than struct rusage on every platform we run on; it starts with ru_utime and ru_stime (struct timeval).
+    private static final long STRUCT_SIZE = 256;
+    private static final long TIMEVAL_SIZE = 16;
+
+    private static final MethodHandle GETRUSAGE;
+
+    static {
+        MethodHandle getrusage = null;
+        try {
+            Linker linker = Linker.nativeLinker();
+            getrusage = linker.downcallHandle(linker.defaultLookup().find("getrusage").orElseThrow(),
+                    FunctionDescriptor.of(ValueLayout.JAVA_INT, ValueLayout.JAVA_INT, ValueLayout.ADDRESS));
+        } catch (Throwable e) {
+            // No native access: fall back to ProcessHandle for our own time.
+        }
+        GETRUSAGE = getrusage;
+    }
+
+    private ResourceUsage() {}
+
+    /** User and system CPU time in nanoseconds; -1 where unknown. */
+    public record Sample(long selfUserNanos, long selfSystemNanos, long childUserNanos, long childSystemNanos) {
+        /** Time used between {@code earlier} and this sample. */
+        public Sample since(Sample earlier) {
+            return new Sample(
+                    diff(selfUserNanos, earlier.selfUserNanos),
+                    diff(selfSystemNanos, earlier.selfSystemNanos),
+                    diff(childUserNanos, earlier.childUserNanos),
+                    diff(childSystemNanos, earlier.childSystemNanos));
+        }
+
+        private static long diff(long now, long then) {
+            return now < 0 || then < 0 ? -1 : now - then;
+        }
+    }
+
+    public static Sample sample() {
+        if (GETRUSAGE != null) {
+            try (Arena arena = Arena.ofConfined()) {
+                MemorySegment usage = arena.allocate(STRUCT_SIZE);
+                if ((int) GETRUSAGE.invokeExact(RUSAGE_SELF, usage) == 0) {
+                    long selfUser = timeval(usage, 0);
+                    long selfSystem = timeval(usage, TIMEVAL_SIZE);
+                    if ((int) GETRUSAGE.invokeExact(RUSAGE_CHILDREN, usage) == 0) {
+                        return new Sample(selfUser, selfSystem, timeval(usage, 0), timeval(usage, TIMEVAL_SIZE));
+                    }
+                }
+            } catch (Throwable e) {
+                // fall through
+            }
+        }
+        long self = ProcessHandle.current().info().totalCpuDuration().map(Duration::toNanos).orElse(-1L);
+        return new Sample(self, self < 0 ? -1 : 0, -1, -1);
+    }
+
+    // struct timeval { time_t tv_sec; suseconds_t tv_usec; }: tv_usec fits in its low 32 bits on every ABI we run on.
+    private static long timeval(MemorySegment usage, long offset) {
+        long seconds = usage.get(ValueLayout.JAVA_LONG, offset);
+        long micros = usage.get(ValueLayout.JAVA_INT, offset + 8);
+        return seconds * 1_000_000_000L + micros * 1_000L;
+    }
+}
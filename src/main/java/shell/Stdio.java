@@ -0,0 +1,23 @@
+package shell;
+
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.channels.FileChannel;
+
+/**
+ * The standard streams of one command. Builtins write to these instead of {@code System.out}, so several of them can
+ * run at once (e.g. in different pipeline stages) without swapping global streams.
+ *
+ * <p>When stdin or stdout is redirected to a file, {@code inFile} / {@code outFile} is the channel under that stream
+ * (otherwise null), so a builtin can move bytes between files with {@link FileChannel#transferTo} instead of copying
+ * them through the heap. Flush {@code out} before writing to {@code outFile} directly.
+ */
+public record Stdio(InputStream in, PrintStream out, PrintStream err, FileChannel inFile, FileChannel outFile) {
+    public Stdio(InputStream in, PrintStream out, PrintStream err) {
+        this(in, out, err, null, null);
+    }
+
+    public static Stdio system() {
+        return new Stdio(System.in, System.out, System.err);
+    }
+}
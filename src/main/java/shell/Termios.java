@@ -0,0 +1,169 @@
+package shell;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.MethodHandle;
+import java.lang.reflect.Proxy;
+
+/**
+ * In-process terminal mode switching through libc's termios functions (FFM API), so entering and leaving raw mode
+ * does not have to fork {@code stty}.
+ *
+ * <p>The {@code struct termios} layout differs between platforms (60 bytes on Linux/glibc, 72 on macOS), so it is
+ * treated as an opaque buffer: {@code cfmakeraw} does the flag twiddling and the saved state is a byte copy.
+ * The terminal's size comes from the {@code TIOCGWINSZ} ioctl.
+ */
+public final class Termios {
+    // Larger than struct termios on every platform we run on.
+    private static final long STRUCT_SIZE = 256;
+    private static final int TCSANOW = 0;
+    private static final long TIOCGWINSZ = System.getProperty("os.name").startsWith("Linux") ? 0x5413 : 0x40087468L;
+
+    private static final MethodHandle TCGETATTR;
+    private static final MethodHandle TCSETATTR;
+    private static final MethodHandle CFMAKERAW;
+    private static final MethodHandle ISATTY;
+    private static final MethodHandle IOCTL;
+
+    static {
+        MethodHandle get = null;
+        MethodHandle set = null;
+        MethodHandle raw = null;
+        MethodHandle tty = null;
+        MethodHandle ioctl = null;
+        try {
+            Linker linker = Linker.nativeLinker();
+            var libc = linker.defaultLookup();
+            get = linker.downcallHandle(libc.find("tcgetattr").orElseThrow(),
+                    FunctionDescriptor.of(ValueLayout.JAVA_INT, ValueLayout.JAVA_INT, ValueLayout.ADDRESS));
+            set = linker.downcallHandle(libc.find("tcsetattr").orElseThrow(),
+                    FunctionDescriptor.of(ValueLayout.JAVA_INT, ValueLayout.JAVA_INT, ValueLayout.JAVA_INT, ValueLayout.ADDRESS));
+            raw = linker.downcallHandle(libc.find("cfmakeraw").orElseThrow(),
+                    FunctionDescriptor.ofVoid(ValueLayout.ADDRESS));
+            tty = linker.downcallHandle(libc.find("isatty").orElseThrow(),
+                    FunctionDescriptor.of(ValueLayout.JAVA_INT, ValueLayout.JAVA_INT));
+            ioctl = linker.downcallHandle(libc.find("ioctl").orElseThrow(),
+                    FunctionDescriptor.of(ValueLayout.JAVA_INT, ValueLayout.JAVA_INT, ValueLayout.JAVA_LONG, ValueLayout.ADDRESS),
+                    Linker.Option.firstVariadicArg(2));
+        } catch (Throwable e) {
+            // No native access (or no libc termios): callers fall back to stty.
+            get = null;
+            set = null;
+            raw = null;
+            tty = null;
+            ioctl = null;
+        }
+        TCGETATTR = get;
+        TCSETATTR = set;
+        CFMAKERAW = raw;
+        ISATTY = tty;
+        IOCTL = ioctl;
+    }
+
+    private Termios() {}
+
+    public static boolean available() {
+        return TCGETATTR != null;
+    }
+
+    /**
+     * Whether {@code fd} is a terminal. Without native access this falls back to {@link System#console()}, which is
+     * only non-null when both stdin and stdout are terminals.
+     */
+    public static boolean isTerminal(int fd) {
+        if (ISATTY == null) {
+            return System.console() != null;
+        }
+        try {
+            return (int) ISATTY.invokeExact(fd) == 1;
+        } catch (Throwable e) {
+            return System.console() != null;
+        }
+    }
+
+    /**
+     * Puts {@code fd} into raw mode and returns the previous settings, or null if {@code fd} is not a terminal
+     * or termios is unavailable.
+     */
+    public static byte[] makeRaw(int fd) {
+        if (!available()) {
+            return null;
+        }
+        try (Arena arena = Arena.ofConfined()) {
+            MemorySegment attrs = arena.allocate(STRUCT_SIZE);
+            if ((int) TCGETATTR.invokeExact(fd, attrs) != 0) {
+                return null;
+            }
+            byte[] saved = attrs.toArray(ValueLayout.JAVA_BYTE);
+            CFMAKERAW.invokeExact(attrs);
+            if ((int) TCSETATTR.invokeExact(fd, TCSANOW, attrs) != 0) {
+                return null;
+            }
+            return saved;
+        } catch (Throwable e) {
+            return null;
+        }
+    }
+
+    /** Restores settings returned by {@link #makeRaw}. Returns false if the terminal rejected them. */
+    public static boolean restore(int fd, byte[] saved) {
+        if (!available() || saved == null) {
+            return false;
+        }
+        try (Arena arena = Arena.ofConfined()) {
+            MemorySegment attrs = arena.allocate(STRUCT_SIZE);
+            attrs.copyFrom(MemorySegment.ofArray(saved));
+            return (int) TCSETATTR.invokeExact(fd, TCSANOW, attrs) == 0;
+        } catch (Throwable e) {
+            return false;
+        }
+    }
+
+    /** The width in columns of the terminal on {@code fd}, or 0 if it is not a terminal or termios is unavailable. */
+    public static int columns(int fd) {
+        if (IOCTL == null) {
+            return 0;
+        }
+        try (Arena arena = Arena.ofConfined()) {
+            // struct winsize: unsigned short rows, columns, then the size in pixels
+            MemorySegment size = arena.allocate(8);
+            if ((int) IOCTL.invokeExact(fd, TIOCGWINSZ, size) != 0) {
+                return 0;
+            }
+            return Short.toUnsignedInt(size.get(ValueLayout.JAVA_SHORT, 2));
+        } catch (Throwable e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Runs {@code action} (on the JVM's signal dispatch thread) whenever the terminal is resized, i.e. on SIGWINCH.
+     * Returns false if the signal cannot be handled.
+     */
+    public static boolean onResize(Runnable action) {
+        // sun.misc.Signal through reflection: javac warns about every direct use of it, and that warning cannot be
+        // suppressed.
+        try {
+            Class<?> signal = Class.forName("sun.misc.Signal");
+            Class<?> handler = Class.forName("sun.misc.SignalHandler");
+            Object proxy = Proxy.newProxyInstance(handler.getClassLoader(), new Class<?>[] {handler},
+                    (self, method, args) -> switch (method.getName()) {
+                        case "handle" -> {
+                            action.run();
+                            yield null;
+                        }
+                        case "hashCode" -> System.identityHashCode(self);
+                        case "equals" -> self == args[0];
+                        default -> "SIGWINCH handler";
+                    });
+            signal.getMethod("handle", signal, handler)
+                    .invoke(null, signal.getConstructor(String.class).newInstance("WINCH"), proxy);
+            return true;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package shell;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Low-overhead event tracing. Off by default; enable with {@code SHELL_TRACE=stderr} or {@code SHELL_TRACE=<file>}
+ * (or the {@code --trace=<sink>} flag).
+ *
+ * <p>Events are copied into a preallocated ring buffer and formatted as JSON lines by a background writer thread,
+ * so the recording thread never does I/O. When the ring is full, events are dropped and counted rather than blocking
+ * the shell. When tracing is disabled every call is a single static field check.
+ *
+ * <pre>{@code
+ * long start = Trace.begin();
+ * ... work ...
+ * Trace.end("spawn", start, command.command(), 0);
+ * }</pre>
+ */
+public final class Trace {
+    private static final int CAPACITY = 1 << 14;
+    private static final int MASK = CAPACITY - 1;
+
+    // Set once by configure(); read by every thread that records.
+    private static volatile boolean enabled;
+
+    // Slots, indexed by sequence & MASK.
+    private static final String[] names = new String[CAPACITY];
+    private static final String[] details = new String[CAPACITY];
+    private static final long[] times = new long[CAPACITY];
+    private static final long[] durations = new long[CAPACITY];
+    private static final long[] values = new long[CAPACITY];
+    private static final long[] threads = new long[CAPACITY];
+    // published[i] == seq + 1 once slot i holds the event with sequence seq.
+    private static final AtomicLongArray published = new AtomicLongArray(CAPACITY);
+
+    // Next sequence to claim (producers) and next sequence to drain (writer only).
+    private static final AtomicLong head = new AtomicLong();
+    private static volatile long tail;
+    private static final LongAdder dropped = new LongAdder();
+
+    // nanoTime -> epoch micros
+    private static final long EPOCH_MICROS = System.currentTimeMillis() * 1000;
+    private static final long NANO_BASE = System.nanoTime();
+
+    private static Writer sink;
+    private static Thread writer;
+    // Set by the writer before it parks with nothing to drain; a producer that sees it wakes the writer.
+    private static volatile boolean idle;
+
+    private Trace() {}
+
+    /** Reads {@code SHELL_TRACE}; called once at startup. */
+    public static void configureFromEnv() {
+        String spec = System.getenv("SHELL_TRACE");
+        if (spec != null && !spec.isBlank() && !"0".equals(spec)) {
+            configure(spec);
+        }
+    }
+
+    /** Starts tracing to {@code stderr} ("stderr" or "1") or to the file at {@code spec} (appended). */
+    public static synchronized void configure(String spec) {
+        if (enabled) {
+            return;
+        }
+        try {
+            if ("stderr".equals(spec) || "1".equals(spec)) {
+                sink = new BufferedWriter(new OutputStreamWriter(System.err, StandardCharsets.UTF_8));
+            } else {
+                sink = Files.newBufferedWriter(Path.of(spec), StandardCharsets.UTF_8,
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.println("trace: cannot open " + spec + ": " + e.getMessage());
+            return;
+        }
+
+        writer = new Thread(Trace::drainLoop, "shell-trace");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Trace::flush));
+        enabled = true;
+    }
+
+    public static boolean enabled() {
+        return enabled;
+    }
+
+    /** Start timestamp for a span, or 0 when tracing is off. */
+    public static long begin() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /** Records a span named {@code name} that started at {@code start} (from {@link #begin()}). */
+    public static void end(String name, long start, String detail, long value) {
+        if (enabled) {
+            long now = System.nanoTime();
+            record(name, start, now - start, detail, value);
+        }
+    }
+
+    /** Records a point event. */
+    public static void event(String name, String detail, long value) {
+        if (enabled) {
+            record(name, System.nanoTime(), -1, detail, value);
+        }
+    }
+
+    private static void record(String name, long time, long duration, String detail, long value) {
+        long seq;
+        do {
+            seq = head.get();
+            if (seq - tail >= CAPACITY) {
+                dropped.increment();
+                return;
+            }
+        } while (!head.compareAndSet(seq, seq + 1));
+
+        int slot = (int) (seq & MASK);
+        names[slot] = name;
+        details[slot] = detail;
+        times[slot] = time;
+        durations[slot] = duration;
+        values[slot] = value;
+        threads[slot] = Thread.currentThread().threadId();
+        // A volatile write, so either this thread sees the writer idle or the writer sees this event before parking.
+        published.set(slot, seq + 1);
+        if (idle) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    // Drains until there is nothing left, then parks until a producer publishes the next event.
+    private static void drainLoop() {
+        while (true) {
+            if (!drain()) {
+                idle = true;
+                if (published.get((int) (tail & MASK)) != tail + 1) {
+                    LockSupport.park();
+                }
+                idle = false;
+            }
+        }
+    }
+
+    // Writes out everything published so far; returns false if there was nothing to do.
+    private static synchronized boolean drain() {
+        boolean any = false;
+        var sb = new StringBuilder(160);
+        try {
+            long seq = tail;
+            while (true) {
+                int slot = (int) (seq & MASK);
+                if (published.get(slot) != seq + 1) {
+                    break;
+                }
+                sb.setLength(0);
+                format(sb, slot);
+                names[slot] = null;
+                details[slot] = null;
+                tail = ++seq;
+                sink.append(sb);
+                any = true;
+            }
+            long lost = dropped.sumThenReset();
+            if (lost > 0) {
+                sink.append("{\"event\":\"trace.dropped\",\"value\":").append(String.valueOf(lost)).append("}\n");
+            }
+            if (any || lost > 0) {
+                sink.flush();
+            }
+        } catch (IOException ignored) {
+            // A broken sink must not take the shell down.
+        }
+        return any;
+    }
+
+    private static void format(StringBuilder sb, int slot) {
+        sb.append("{\"ts_us\":").append(EPOCH_MICROS + (times[slot] - NANO_BASE) / 1000)
+                .append(",\"thread\":").append(threads[slot])
+                .append(",\"event\":\"").append(names[slot]).append('"');
+        if (durations[slot] >= 0) {
+            sb.append(",\"dur_us\":").append(durations[slot] / 1000);
+        }
+        sb.append(",\"value\":").append(values[slot]);
+        if (details[slot] != null) {
+            sb.append(",\"detail\":\"");
+            escape(sb, details[slot]);
+            sb.append('"');
+        }
+        sb.append("}\n");
+    }
+
+    static void escape(StringBuilder sb, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"' -> sb.append("\\\"");
+                case '\\' -> sb.append("\\\\");
+                case '\n' -> sb.append("\\n");
+                case '\r' -> sb.append("\\r");
+                case '\t' -> sb.append("\\t");
+                default -> {
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+                }
+            }
+        }
+    }
+
+    /** Drains pending events to the sink (also run on shutdown). */
+    public static void flush() {
+        if (enabled) {
+            drain();
+        }
+    }
+}
@@ -0,0 +1,58 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Builtin pipeline stages each get their own streams, so two pipelines running at once must not see each other's
+ * output: an intermediate stage's output only reaches the next stage, and each last stage prints its own line.
+ */
+class ConcurrentPipelinesTest {
+    private static final int ROUNDS = 20;
+    private static final Pattern LINE = Pattern.compile("(left|right)-\\d+");
+
+    @Test
+    void concurrentBuiltinPipelinesKeepTheirOutputApart() throws Exception {
+        PrintStream original = System.out;
+        var captured = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(captured, true));
+        try {
+            for (int i = 0; i < ROUNDS; i++) {
+                Thread left = start("echo leaked | echo left-" + i);
+                Thread right = start("echo leaked | echo right-" + i);
+                left.join();
+                right.join();
+            }
+        } finally {
+            System.setOut(original);
+        }
+
+        // Lines of the two pipelines may interleave; what each printed must not.
+        String output = captured.toString();
+        assertFalse(output.contains("leaked"), output);
+        List<String> printed = LINE.matcher(output).results().map(r -> r.group()).sorted().toList();
+        List<String> expected = IntStream.range(0, ROUNDS)
+                .boxed()
+                .flatMap(i -> Stream.of("left-" + i, "right-" + i))
+                .sorted()
+                .toList();
+        assertEquals(expected, printed);
+    }
+
+    // Runs `line` on a thread of its own; a failure shows up as missing output.
+    private static Thread start(String line) {
+        return Thread.ofPlatform().start(() -> {
+            try {
+                Main.execute(line);
+            } catch (Exception e) {
+                throw new AssertionError(line, e);
+            }
+        });
+    }
+}
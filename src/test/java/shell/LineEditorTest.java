@@ -0,0 +1,37 @@
+package shell;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.Test;
+
+class LineEditorTest {
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    private final LineEditor editor = new LineEditor(out, () -> 10);
+
+    @Test
+    void typingUpToTheMarginMovesToTheNextRow() throws Exception {
+        editor.start("$ ");
+        editor.insert("abcdefgh");
+        editor.refresh();
+        assertEquals("$ abcdefgh\r\n", written());
+    }
+
+    @Test
+    void deletingBackToTheMarginClearsFromTheRightRow() throws Exception {
+        editor.start("$ ");
+        editor.insert("abcdefghi");
+        editor.refresh();
+        out.reset();
+
+        editor.backspace();
+        editor.refresh();
+        // Back to the start of the second row (cell 10), where "i" was, and clear from there: no extra newline.
+        assertEquals("\b\033[J", written());
+    }
+
+    private String written() {
+        return out.toString(StandardCharsets.UTF_8);
+    }
+}